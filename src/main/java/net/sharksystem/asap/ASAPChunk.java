@@ -2,9 +2,13 @@ package net.sharksystem.asap;
 
 import net.sharksystem.asap.engine.MessagesContainer;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * An ASAP chunk is a set of message with the same format, same uri and same era.
@@ -35,6 +39,52 @@ public interface ASAPChunk extends MessagesContainer {
      */
     Iterator<byte[]> getMessages() throws IOException;
 
+    /**
+     * Message without copying it - if possible. Chunks in file system provide a view of
+     * memory mapped content.
+     * @param index message index in this chunk, starting with 0
+     * @return read-only buffer, position 0, limit message length
+     * @throws IOException index out of range or message cannot be read
+     */
+    default ByteBuffer getMessageBuffer(int index) throws IOException {
+        if(index < 0 || index >= this.getNumberMessage()) {
+            throw new IOException("no message with index " + index + " in chunk");
+        }
+        Iterator<byte[]> messages = this.getMessages();
+        for(int i = 0; i < index; i++) messages.next();
+        return ByteBuffer.wrap(messages.next()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Pass each message as read-only buffer to consumer - oldest message first.
+     * @param consumer
+     * @throws IOException
+     * @see #getMessageBuffer(int)
+     */
+    default void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        Iterator<byte[]> messages = this.getMessages();
+        while(messages.hasNext()) {
+            consumer.accept(ByteBuffer.wrap(messages.next()).asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * Read a message piece by piece - meant for messages that are too large to be kept in memory.
+     * Stream must be closed by caller.
+     * @param index message index in this chunk, starting with 0
+     * @return stream that ends with the message
+     * @throws IOException index out of range or message cannot be read
+     */
+    default InputStream openMessageStream(int index) throws IOException {
+        if(index < 0 || index >= this.getNumberMessage()) {
+            throw new IOException("no message with index " + index + " in chunk");
+        }
+        // message is kept in memory - implementations should do better
+        Iterator<byte[]> messages = this.getMessages();
+        for(int i = 0; i < index; i++) messages.next();
+        return new ByteArrayInputStream(messages.next());
+    }
+
     /**
      * remove that chunk.. drop all object references after
      * calling this methods. Further calls on this object
@@ -24,6 +24,13 @@ public interface ASAPChunkStorage {
     List<ASAPInternalChunk> getChunks(int era) throws IOException;
 
     void dropChunks(int era) throws IOException;
+
+    /**
+     * Write changes that are kept in memory to persistent storage. Nothing happens if
+     * there are no such changes. Default implementation keeps nothing in memory and does nothing.
+     * @throws IOException
+     */
+    default void flush() throws IOException { }
     
     /**
      * 
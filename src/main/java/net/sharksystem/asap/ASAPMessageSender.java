@@ -1,6 +1,10 @@
 package net.sharksystem.asap;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 public interface ASAPMessageSender {
     /**
@@ -13,6 +17,47 @@ public interface ASAPMessageSender {
     void sendASAPMessage(CharSequence appName, CharSequence uri,
                          byte[] message) throws ASAPException;
 
+    /**
+     * Send a message that is read from a stream. It is copied into local storage piece by piece and
+     * never kept in memory as a whole - meant for large messages (media etc.). Message is not sent
+     * over existing connections immediately but delivered with its chunk during the next encounter.
+     * Default implementation reads the whole message and sends it like a byte array message.
+     * @param appName
+     * @param uri
+     * @param messageIS stream providing the message
+     * @param length number of bytes to be read from stream
+     * @throws ASAPException
+     */
+    default void sendASAPMessage(CharSequence appName, CharSequence uri,
+                         InputStream messageIS, long length) throws ASAPException {
+        // message is kept in memory - implementations should do better
+        if(length < 0 || length > Integer.MAX_VALUE) {
+            throw new ASAPException("cannot keep message in memory - length: " + length);
+        }
+        byte[] message = new byte[(int) length];
+        try {
+            new DataInputStream(messageIS).readFully(message);
+        } catch (IOException e) {
+            throw new ASAPException("could not read message", e);
+        }
+        this.sendASAPMessage(appName, uri, message);
+    }
+
+    /**
+     * Send a message that is read from a channel.
+     * @param appName
+     * @param uri
+     * @param messageChannel channel providing the message
+     * @param length number of bytes to be read from channel
+     * @throws ASAPException
+     * @see #sendASAPMessage(CharSequence, CharSequence, InputStream, long)
+     */
+    default void sendASAPMessage(CharSequence appName, CharSequence uri,
+                         ReadableByteChannel messageChannel, long length) throws ASAPException {
+        // stream is not closed - channel remains open for caller
+        this.sendASAPMessage(appName, uri, Channels.newInputStream(messageChannel), length);
+    }
+
     /**
      * When calling this methode, this asap message is sent over any existing connection.
      * It is not stored on sender or receiver side. Message listeners are called as usual. Nothing happens (no
@@ -3,9 +3,14 @@ package net.sharksystem.asap;
 import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.engine.ASAPInternalChunk;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 
 /**
  * Chunks are identified by an URI and ordered by era numbers.
@@ -56,6 +61,39 @@ public interface ASAPMessages {
      */
     Iterator<byte[]> getMessages() throws IOException;
 
+    /**
+     * Messages are read when requested. Iterating newest message first does not
+     * require reading older messages first.
+     * @param chronologically in chronological order: true: oldest message comes
+     * first, false: newest message comes first
+     * @return iterator of all messages in that chunk cache
+     * @throws IOException
+     */
+    default Iterator<byte[]> getMessages(boolean chronologically) throws IOException {
+        if(chronologically) return this.getMessages();
+
+        // newest first - message by message
+        final int size = this.size();
+        return new Iterator<byte[]>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.position < size;
+            }
+
+            @Override
+            public byte[] next() {
+                if(!this.hasNext()) throw new NoSuchElementException();
+                try {
+                    return ASAPMessages.this.getMessage(this.position++, false);
+                } catch (ASAPException | IOException e) {
+                    throw new NoSuchElementException(e.getLocalizedMessage());
+                }
+            }
+        };
+    }
+
     /**
      * Returns a message with a given position
      * @param position
@@ -72,6 +110,54 @@ public interface ASAPMessages {
     byte[] getMessage(int position, boolean chronologically)
             throws ASAPException, IOException;
 
+    /**
+     * Returns a message with a given position without copying it - if possible.
+     * Applications that only parse a header or forward a message should prefer
+     * this method.
+     * @param position
+     * @param chronologically in chronological order: true: oldest message comes
+     * first, false: newest message comes first
+     * @return read-only buffer, position 0, limit message length
+     * @throws ASAPException message on that position does
+     * not exist
+     * @throws IOException couldn't read from storage
+     */
+    default ByteBuffer getMessageBuffer(int position, boolean chronologically)
+            throws ASAPException, IOException {
+        return ByteBuffer.wrap(this.getMessage(position, chronologically)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Pass each message as read-only buffer to consumer - oldest message first.
+     * @param consumer
+     * @throws IOException couldn't read from storage
+     * @see #getMessageBuffer(int, boolean)
+     */
+    default void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        Iterator<byte[]> messages = this.getMessages(true);
+        while(messages.hasNext()) {
+            consumer.accept(ByteBuffer.wrap(messages.next()).asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * Returns a message with a given position as stream. Message is read piece
+     * by piece - meant for large messages (media etc.) that should not be kept in memory.
+     * Stream must be closed by caller.
+     * @param position
+     * @param chronologically in chronological order: true: oldest message comes
+     * first, false: newest message comes first
+     * @return stream that ends with the message
+     * @throws ASAPException message on that position does
+     * not exist
+     * @throws IOException couldn't read from storage
+     */
+    default InputStream openMessageStream(int position, boolean chronologically)
+            throws ASAPException, IOException {
+        // message is kept in memory - implementations should do better
+        return new ByteArrayInputStream(this.getMessage(position, chronologically));
+    }
+
     /**
      * Return chunk in which message at position is to be found
      * @param position
@@ -3,11 +3,11 @@ package net.sharksystem.asap;
 import net.sharksystem.SharkException;
 import net.sharksystem.asap.crypto.ASAPKeyStore;
 import net.sharksystem.asap.engine.*;
-import net.sharksystem.asap.utils.ASAPLogHelper;
 import net.sharksystem.fs.ExtraData;
 import net.sharksystem.utils.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -24,6 +24,18 @@ public class ASAPPeerFS extends ASAPInternalPeerWrapper implements ASAPPeerServi
         this.rootFolder = rootFolder.toString();
     }
 
+    /**
+     * @param inMemory true: chunks are kept in memory and not written to root folder. Received and sent
+     *                 messages are lost when the process ends. Meant for relays and simulations.
+     */
+    public ASAPPeerFS(CharSequence owner, CharSequence rootFolder,
+                      Collection<CharSequence> supportFormats, boolean inMemory) throws IOException, ASAPException {
+        super.setInternalPeer(inMemory ?
+                ASAPInternalPeerFS.createASAPPeerInMemory(owner, rootFolder, supportFormats, this) :
+                ASAPInternalPeerFS.createASAPPeer(owner, rootFolder, supportFormats, this));
+        this.rootFolder = rootFolder.toString();
+    }
+
     public ASAPPeerFS(CharSequence owner, CharSequence rootFolder) throws IOException, ASAPException {
         super.setInternalPeer(ASAPInternalPeerFS.createASAPPeer(owner, rootFolder, null, this));
         this.rootFolder = rootFolder.toString();
@@ -113,8 +125,15 @@ public class ASAPPeerFS extends ASAPInternalPeerWrapper implements ASAPPeerServi
             this.chunkAssimilated(null, format, senderE2E, uri, era, asapHopList, false);
         } else {
             Log.writeLog(this, this.getPeerID(),"extract messages from chunk and notify listener");
-            ASAPMessages receivedMessages =
-                    ASAPLogHelper.getMessagesByChunkReceivedInfos(format, senderE2E, uri, this.rootFolder, era);
+            ASAPMessages receivedMessages = null;
+            try {
+                // ask engine - chunks are not necessarily in file system
+                ASAPEngine engine = this.getInternalPeer().getEngineByFormat(format);
+                receivedMessages = engine.getReceivedChunksStorage(senderE2E).getASAPMessages(uri, era, era);
+            } catch (IOException | ASAPException e) {
+                Log.writeLog(this, this.getPeerID(), "could not access messages after being informed about "
+                        + "new chunk arrival: " + e.getLocalizedMessage());
+            }
 
             this.chunkAssimilated(receivedMessages, format, senderE2E, uri, era, asapHopList, true);
         }
@@ -150,6 +169,18 @@ public class ASAPPeerFS extends ASAPInternalPeerWrapper implements ASAPPeerServi
         }
     }
 
+    @Override
+    public void sendASAPMessage(CharSequence appName, CharSequence uri, InputStream messageIS, long length)
+            throws ASAPException {
+        try {
+            ASAPEngine engine = this.getInternalPeer().createEngineByFormat(appName);
+            engine.add(uri, messageIS, length);
+        } catch (IOException e) {
+            Log.writeLog(this, this.getPeerID(),e.getLocalizedMessage());
+            throw new ASAPException("problems adding message to asap engine", e);
+        }
+    }
+
     public void sendTransientASAPMessage(CharSequence appName, CharSequence uri, byte[] message)
             throws ASAPException, IOException {
 
@@ -1,6 +1,8 @@
 package net.sharksystem.asap;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 public interface ASAPStorage {
@@ -125,6 +127,27 @@ public interface ASAPStorage {
      */
     void add(CharSequence uri, byte[] messageAsBytes) throws IOException;
 
+    /**
+     * Add a message that is read from a stream - it is copied into storage piece by piece and never
+     * kept in memory as a whole. Meant for large messages (media etc.).
+     * Such messages are not sent as online messages. They are delivered with their chunk during the next
+     * encounter. Default implementation reads the whole message and adds it like a byte array message.
+     * @param uri
+     * @param messageIS stream providing the message
+     * @param length number of bytes to be read from stream
+     * @throws IOException stream ended before length bytes were read or couldn't write to storage
+     * @see ASAPMessages#openMessageStream(int, boolean)
+     */
+    default void add(CharSequence uri, InputStream messageIS, long length) throws IOException {
+        // message is kept in memory - implementations should do better
+        if(length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("cannot keep message in memory - length: " + length);
+        }
+        byte[] messageAsBytes = new byte[(int) length];
+        new DataInputStream(messageIS).readFully(messageAsBytes);
+        this.add(uri, messageAsBytes);
+    }
+
     /**
      * Put some extra information on that channel
      * @param uri describing the channel
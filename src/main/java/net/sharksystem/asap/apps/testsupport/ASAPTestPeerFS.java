@@ -24,6 +24,11 @@ public class ASAPTestPeerFS extends ASAPPeerFS {
         super(peerName, rootFolder, supportedFormats);
     }
 
+    public ASAPTestPeerFS(CharSequence peerName, CharSequence rootFolder, Collection<CharSequence> supportedFormats,
+                          boolean inMemory) throws IOException, ASAPException {
+        super(peerName, rootFolder, supportedFormats, inMemory);
+    }
+
     public void startEncounter(int port, ASAPTestPeerFS otherPeer) throws IOException {
         this.serverSocket = new ServerSocket(port);
 
@@ -0,0 +1,606 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.fs.Durability;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.*;
+
+/**
+ * Channel meta data (recipients, extra data - owner is an extra) kept once for each channel. Chunks are not
+ * set up with each new era. A chunk is created with first message in an era and takes a copy of those data.
+ * <br/><br/>
+ * Descriptors of a folder are written into a single file and shared by all engine objects in this process.
+ * The file is a log: each change appends a record with the new state of that channel. File is rewritten
+ * (compacted) when outdated records take more space than current ones. Records appended by others are read
+ * when file length changed, the whole file is read when log id changed (compacted). Same scheme as
+ * {@link net.sharksystem.fs.ExtraDataFS}.
+ * Lookups (channel list, existence, position) are answered from memory - file is checked at most once in
+ * {@link #CHANGE_CHECK_INTERVAL} milliseconds. Changes by other processes are noticed that late.
+ * Descriptors of in memory engines are not written at all.
+ * <br/><br/>
+ * File layout: magic, log id, records (record length, uri, flag - false: channel removed, recipients, extras).
+ * Files written before the log was introduced (number of channels, descriptors) are read and replaced with
+ * the next change.
+ *
+ * @author thsc
+ */
+class ASAPChannelDescriptors {
+    public static final String DESCRIPTOR_FILENAME = "asapChannels";
+    private static final Map<String, ASAPChannelDescriptors> fileDescriptors = new HashMap<>();
+
+    /** null: in memory only */
+    private final File file;
+    public static final long CHANGE_CHECK_INTERVAL = 500;
+
+    /** negative - files written before log was introduced start with number of channels */
+    private static final int LOG_MAGIC = 0xA5A9C4D1;
+    private static final int HEADER_LENGTH = 4 + 8;
+    /** outdated records are kept until they take that many bytes */
+    private static final long MIN_COMPACTION_GARBAGE = 4096;
+
+    /** log id of file as known by this object - 0: file unknown or without log */
+    private long logID = 0;
+    /** records up to this position are in memory - -1: not yet read */
+    private long knownLength = -1;
+    /** channel -> length of its latest record */
+    private Map<String, Long> recordLengths = new HashMap<>();
+    /** bytes in file taken by records that were replaced by later ones */
+    private long garbageLength = 0;
+    /** time of last look at file */
+    private long lastChecked = 0;
+    /** insertion order: channels are listed in order of creation */
+    private Map<String, Descriptor> descriptors = new LinkedHashMap<>();
+    /** channel uris in order of creation - null: to be set up after a change */
+    private List<CharSequence> uriList = null;
+
+    private static class Descriptor {
+        private Set<CharSequence> recipients = new HashSet<>();
+        private HashMap<String, String> extraData = new HashMap<>();
+    }
+
+    /**
+     * descriptors that are kept in memory only
+     */
+    ASAPChannelDescriptors() {
+        this(null);
+    }
+
+    private ASAPChannelDescriptors(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param rootDirectory engine root directory
+     * @return descriptors stored in that folder
+     */
+    static ASAPChannelDescriptors getDescriptors(String rootDirectory) {
+        File file = new File(rootDirectory, DESCRIPTOR_FILENAME).getAbsoluteFile();
+        String key = file.toPath().normalize().toString();
+
+        synchronized(fileDescriptors) {
+            ASAPChannelDescriptors descriptors = fileDescriptors.get(key);
+            if(descriptors == null) {
+                descriptors = new ASAPChannelDescriptors(file);
+                fileDescriptors.put(key, descriptors);
+            }
+            return descriptors;
+        }
+    }
+
+    /**
+     * Called once by each engine object - file is checked for changes in any case.
+     * @return false if descriptors were never written - folder was set up by an older version
+     */
+    synchronized boolean exists() throws IOException {
+        this.validate();
+        return this.file == null || this.file.exists();
+    }
+
+    /**
+     * Take meta data of existing chunks. Older versions kept channel meta data in chunks of current era.
+     */
+    synchronized void takeOver(Collection<ASAPInternalChunk> chunks) throws IOException {
+        this.validate();
+        List<String> takenOver = new ArrayList<>();
+        for(ASAPInternalChunk chunk : chunks) {
+            if(this.descriptors.containsKey(chunk.getUri())) continue;
+
+            Descriptor descriptor = new Descriptor();
+            setRecipients(descriptor, chunk.getRecipients());
+            descriptor.extraData.putAll(chunk.getExtraData());
+            this.descriptors.put(chunk.getUri(), descriptor);
+            takenOver.add(chunk.getUri());
+        }
+        this.save(takenOver);
+    }
+
+    synchronized boolean contains(CharSequence uri) throws IOException {
+        this.validateLazily();
+        return this.descriptors.containsKey(uri.toString());
+    }
+
+    /**
+     * @return channel uris in order of creation - list is not changed
+     */
+    synchronized List<CharSequence> getURIs() throws IOException {
+        this.validateLazily();
+        return this.getURIList();
+    }
+
+    /**
+     * @return uri of channel at position (order of creation) - null if there is no such channel
+     */
+    synchronized CharSequence getURI(int position) throws IOException {
+        this.validateLazily();
+        List<CharSequence> uris = this.getURIList();
+        return position < 0 || position >= uris.size() ? null : uris.get(position);
+    }
+
+    private List<CharSequence> getURIList() {
+        if(this.uriList == null) {
+            this.uriList = Collections.unmodifiableList(new ArrayList<CharSequence>(this.descriptors.keySet()));
+        }
+        return this.uriList;
+    }
+
+    /**
+     * @return copy of recipients - empty if channel is unknown
+     */
+    synchronized Set<CharSequence> getRecipients(CharSequence uri) throws IOException {
+        this.validateLazily();
+        Descriptor descriptor = this.descriptors.get(uri.toString());
+        return descriptor == null ? new HashSet<CharSequence>() : new HashSet<>(descriptor.recipients);
+    }
+
+    /**
+     * @return copy of extra data - empty if channel is unknown
+     */
+    synchronized HashMap<String, String> getExtraData(CharSequence uri) throws IOException {
+        this.validateLazily();
+        Descriptor descriptor = this.descriptors.get(uri.toString());
+        return descriptor == null ? new HashMap<String, String>() : new HashMap<>(descriptor.extraData);
+    }
+
+    /**
+     * Add a channel - nothing happens if it is already known
+     */
+    synchronized void add(CharSequence uri, Collection<CharSequence> recipients, Map<String, String> extraData)
+            throws IOException {
+
+        this.validate();
+        if(this.descriptors.containsKey(uri.toString())) return;
+
+        Descriptor descriptor = new Descriptor();
+        setRecipients(descriptor, recipients);
+        if(extraData != null) descriptor.extraData.putAll(extraData);
+        this.descriptors.put(uri.toString(), descriptor);
+        this.save(uri.toString());
+    }
+
+    synchronized void remove(CharSequence uri) throws IOException {
+        this.validate();
+        if(this.descriptors.remove(uri.toString()) != null) this.save(uri.toString());
+    }
+
+    synchronized void setRecipients(CharSequence uri, Collection<CharSequence> recipients) throws IOException {
+        setRecipients(this.getDescriptor(uri), recipients);
+        this.save(uri.toString());
+    }
+
+    synchronized void addRecipient(CharSequence uri, CharSequence recipient) throws IOException {
+        Descriptor descriptor = this.getDescriptor(uri);
+        // null is no recipient - same as in chunks
+        if(recipient != null) descriptor.recipients.add(recipient);
+        this.save(uri.toString());
+    }
+
+    synchronized void removeRecipient(CharSequence uri, CharSequence recipient) throws IOException {
+        this.getDescriptor(uri).recipients.remove(recipient);
+        this.save(uri.toString());
+    }
+
+    synchronized void putExtra(CharSequence uri, String key, String value) throws IOException {
+        this.getDescriptor(uri).extraData.put(key, value);
+        this.save(uri.toString());
+    }
+
+    synchronized CharSequence removeExtra(CharSequence uri, String key) throws IOException {
+        CharSequence value = this.getDescriptor(uri).extraData.remove(key);
+        this.save(uri.toString());
+        return value;
+    }
+
+    private static void setRecipients(Descriptor descriptor, Collection<CharSequence> recipients) {
+        descriptor.recipients = new HashSet<>();
+        if(recipients != null) {
+            for(CharSequence recipient : recipients) {
+                if(recipient != null) descriptor.recipients.add(recipient);
+            }
+        }
+    }
+
+    /**
+     * @return descriptor - created if channel is unknown
+     */
+    private Descriptor getDescriptor(CharSequence uri) throws IOException {
+        this.validate();
+        Descriptor descriptor = this.descriptors.get(uri.toString());
+        if(descriptor == null) {
+            descriptor = new Descriptor();
+            this.descriptors.put(uri.toString(), descriptor);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Read file again if changed - but not more often than once in check interval.
+     */
+    private void validateLazily() throws IOException {
+        if(this.file == null) return;
+        if(this.knownLength != -1 && System.currentTimeMillis() - this.lastChecked < CHANGE_CHECK_INTERVAL) return;
+        this.validate();
+    }
+
+    /**
+     * Read records appended by others - whole file if it was compacted or replaced. Called before changes.
+     */
+    private void validate() throws IOException {
+        if(this.file == null) return;
+        this.lastChecked = System.currentTimeMillis();
+
+        if(!this.file.exists()) {
+            if(this.knownLength != -1) {
+                // removed by someone else
+                this.descriptors = new LinkedHashMap<>();
+                this.uriList = null;
+                this.resetLog();
+            }
+            return;
+        }
+
+        long fileLength = this.file.length();
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            long fileLogID = readLogID(raf);
+            if(fileLogID == this.logID && fileLength == this.knownLength) return; // no change
+
+            if(fileLogID == 0) {
+                // written before log was introduced - replaced with next change
+                this.descriptors = readWithoutLog(raf);
+                this.uriList = null;
+                this.resetLog();
+                this.knownLength = fileLength;
+                return;
+            }
+
+            long position = this.knownLength;
+            if(fileLogID != this.logID || fileLength < this.knownLength) {
+                // compacted or replaced - read all
+                this.descriptors = new LinkedHashMap<>();
+                this.recordLengths = new HashMap<>();
+                this.garbageLength = 0;
+                position = HEADER_LENGTH;
+            }
+
+            this.logID = fileLogID;
+            this.knownLength = position + this.readRecords(raf, position);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private void resetLog() {
+        this.logID = 0;
+        this.knownLength = -1;
+        this.recordLengths = new HashMap<>();
+        this.garbageLength = 0;
+    }
+
+    /**
+     * @return log id in file header - 0: no log
+     */
+    private static long readLogID(RandomAccessFile raf) throws IOException {
+        try {
+            raf.seek(0);
+            return raf.readInt() == LOG_MAGIC ? raf.readLong() : 0;
+        }
+        catch(EOFException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return number of bytes of complete records read from that position
+     */
+    private long readRecords(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        // stream is not closed - would close file
+        return this.readRecords(new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(raf.getChannel()))));
+    }
+
+    /**
+     * @return number of bytes of complete records - an incomplete last record is not read
+     */
+    private long readRecords(DataInputStream dis) throws IOException {
+        long read = 0;
+        for(;;) {
+            String uri;
+            Descriptor descriptor = null;
+            try {
+                int recordLength = dis.readInt();
+                uri = dis.readUTF();
+                if(dis.readBoolean()) {
+                    descriptor = new Descriptor();
+                    int numberRecipients = dis.readInt();
+                    for(int j = 0; j < numberRecipients; j++) {
+                        descriptor.recipients.add(dis.readUTF());
+                    }
+                    int numberExtras = dis.readInt();
+                    for(int j = 0; j < numberExtras; j++) {
+                        String key = dis.readUTF();
+                        descriptor.extraData.put(key, dis.readUTF());
+                    }
+                }
+                this.putInMemory(uri, descriptor, recordLength);
+                read += recordLength;
+            }
+            catch(EOFException e) {
+                // end of log - or record not yet written completely
+                return read;
+            }
+        }
+    }
+
+    private static Map<String, Descriptor> readWithoutLog(RandomAccessFile raf) throws IOException {
+        Map<String, Descriptor> descriptors = new LinkedHashMap<>();
+        raf.seek(0);
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+        int number;
+        try {
+            number = dis.readInt();
+        }
+        catch(EOFException e) {
+            // nothing written
+            return descriptors;
+        }
+        for(int i = 0; i < number; i++) {
+            String uri = dis.readUTF();
+            Descriptor descriptor = new Descriptor();
+            int numberRecipients = dis.readInt();
+            for(int j = 0; j < numberRecipients; j++) {
+                descriptor.recipients.add(dis.readUTF());
+            }
+            int numberExtras = dis.readInt();
+            for(int j = 0; j < numberExtras; j++) {
+                String key = dis.readUTF();
+                descriptor.extraData.put(key, dis.readUTF());
+            }
+            descriptors.put(uri, descriptor);
+        }
+        return descriptors;
+    }
+
+    /**
+     * @param descriptor null: channel removed
+     */
+    private void putInMemory(String uri, Descriptor descriptor, long recordLength) {
+        // record of previous state is outdated
+        Long previousLength = this.recordLengths.remove(uri);
+        if(previousLength != null) this.garbageLength += previousLength;
+
+        if(descriptor == null) {
+            this.descriptors.remove(uri);
+            this.garbageLength += recordLength;
+        } else {
+            // channel keeps its position if already known
+            this.descriptors.put(uri, descriptor);
+            this.recordLengths.put(uri, recordLength);
+        }
+        this.uriList = null;
+    }
+
+    /**
+     * @return record with current state of that channel - channel removed if there is no descriptor
+     */
+    private byte[] serializeRecord(String uri) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(uri);
+        Descriptor descriptor = this.descriptors.get(uri);
+        dos.writeBoolean(descriptor != null);
+        if(descriptor != null) {
+            dos.writeInt(descriptor.recipients.size());
+            for(CharSequence recipient : descriptor.recipients) {
+                dos.writeUTF(recipient.toString());
+            }
+
+            // null values cannot be written
+            List<String> keys = new ArrayList<>();
+            for(Map.Entry<String, String> extra : descriptor.extraData.entrySet()) {
+                if(extra.getKey() != null && extra.getValue() != null) keys.add(extra.getKey());
+            }
+            dos.writeInt(keys.size());
+            for(String key : keys) {
+                dos.writeUTF(key);
+                dos.writeUTF(descriptor.extraData.get(key));
+            }
+        }
+        dos.close();
+
+        // record starts with its length
+        byte[] content = baos.toByteArray();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        dos = new DataOutputStream(record);
+        dos.writeInt(4 + content.length);
+        dos.write(content);
+        dos.close();
+        return record.toByteArray();
+    }
+
+    private void save(String uri) throws IOException {
+        this.save(Collections.singletonList(uri));
+    }
+
+    /**
+     * Append a record for each of those channels - or compact file. File is created if there is none.
+     */
+    private void save(Collection<String> uris) throws IOException {
+        // channels could have been added or removed
+        this.uriList = null;
+        if(this.file == null || (uris.isEmpty() && this.logID != 0)) return;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for(String uri : uris) baos.write(this.serializeRecord(uri));
+        byte[] records = baos.toByteArray();
+
+        for(;;) {
+            if(this.logID == 0 || this.file.length() != this.knownLength
+                    || (this.garbageLength > MIN_COMPACTION_GARBAGE
+                    && this.garbageLength > this.knownLength - HEADER_LENGTH - this.garbageLength)) {
+                // no log yet, incomplete record at the end or too many outdated records
+                this.compact(records);
+                return;
+            }
+
+            if(this.append(records)) {
+                // same state - records it replaces become outdated
+                this.readRecords(new DataInputStream(new ByteArrayInputStream(records)));
+                return;
+            }
+
+            // compacted by another process meanwhile - records could be in replaced log only
+            this.validate();
+            this.readRecords(new DataInputStream(new ByteArrayInputStream(records)));
+        }
+    }
+
+    /**
+     * Replace file with a log of current descriptors. Records appended to replaced log meanwhile are
+     * carried over.
+     * @param records changes made here - applied again after records of others were read
+     */
+    private void compact(byte[] records) throws IOException {
+        // keep replaced log open - others could append to it until it is replaced
+        RandomAccessFile replacedLog = null;
+        if(this.logID != 0 && this.file.exists()) {
+            replacedLog = new RandomAccessFile(this.file, "r");
+            if(readLogID(replacedLog) != this.logID) {
+                replacedLog.close();
+                replacedLog = null;
+            }
+        }
+
+        try {
+            long replacedPosition = this.knownLength;
+            if(replacedLog != null) {
+                // appended by others since last read - changes made here are newer
+                replacedPosition += this.readRecords(replacedLog, replacedPosition);
+                this.readRecords(new DataInputStream(new ByteArrayInputStream(records)));
+            }
+
+            this.writeLog();
+
+            // not replaced but overwritten if written without durability
+            if(replacedLog != null && readLogID(replacedLog) != this.logID) {
+                this.carryOver(replacedLog, replacedPosition);
+            }
+        }
+        finally {
+            if(replacedLog != null) replacedLog.close();
+        }
+    }
+
+    private void writeLog() throws IOException {
+        long newLogID = new Random().nextLong();
+        if(newLogID == 0) newLogID = 1;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(LOG_MAGIC);
+        dos.writeLong(newLogID);
+        Map<String, Long> recordLengths = new HashMap<>();
+        for(String uri : this.descriptors.keySet()) {
+            byte[] record = this.serializeRecord(uri);
+            dos.write(record);
+            recordLengths.put(uri, (long) record.length);
+        }
+        dos.close();
+
+        // folder could have been removed in the meantime
+        File folder = this.file.getParentFile();
+        if(folder != null && !folder.exists()) folder.mkdirs();
+
+        byte[] content = baos.toByteArray();
+        Durability.writeFile(this.file, content);
+
+        this.logID = newLogID;
+        this.knownLength = content.length;
+        this.recordLengths = recordLengths;
+        this.garbageLength = 0;
+        this.lastChecked = System.currentTimeMillis();
+    }
+
+    /**
+     * Append records that were appended to replaced log after it was read to new log.
+     */
+    private void carryOver(RandomAccessFile replacedLog, long position) throws IOException {
+        replacedLog.seek(position);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = replacedLog.read(buffer)) > 0) baos.write(buffer, 0, read);
+        if(baos.size() == 0) return;
+
+        // complete records only
+        byte[] appended = baos.toByteArray();
+        long complete = this.readRecords(new DataInputStream(new ByteArrayInputStream(appended)));
+        if(complete == 0) return;
+        byte[] records = Arrays.copyOf(appended, (int) complete);
+
+        while(!this.append(records)) {
+            // compacted by another process meanwhile - records could be in replaced log only
+            this.validate();
+            this.readRecords(new DataInputStream(new ByteArrayInputStream(records)));
+        }
+    }
+
+    /**
+     * Append records with a single write call - records of different processes are not mixed.
+     * @return false if log was replaced (compacted) meanwhile - appended records could be lost
+     */
+    private boolean append(byte[] records) throws IOException {
+        FileOutputStream fos = new FileOutputStream(this.file, true);
+        try {
+            fos.write(records);
+            Durability.written(fos, this.file);
+        }
+        finally {
+            fos.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            if(readLogID(raf) != this.logID) return false;
+        }
+        finally {
+            raf.close();
+        }
+
+        if(this.file.length() == this.knownLength + records.length) {
+            this.knownLength += records.length;
+            this.lastChecked = System.currentTimeMillis();
+        } else {
+            // someone else appended meanwhile - records are read again in file order with next validation
+            this.lastChecked = 0;
+        }
+        return true;
+    }
+
+    public String toString() {
+        return "channel descriptors: " + (this.file == null ? "in memory" : this.file.toString())
+                + " | channels: " + this.descriptors.keySet();
+    }
+}
@@ -35,17 +35,17 @@ public class ASAPChannelImpl implements ASAPChannel {
 
     @Override
     public HashMap<String, String> getExtraData() throws IOException {
-        return this.asapEngine.getStorage().getChunk(uri, this.asapEngine.getEra()).getExtraData();
+        return this.asapEngine.getExtraData(this.getUri());
     }
 
     @Override
     public void putExtraData(String key, String value) throws IOException {
-        this.asapEngine.getStorage().getChunk(uri, this.asapEngine.getEra()).putExtra(key, value);
+        this.asapEngine.putExtra(this.getUri(), key, value);
     }
 
     @Override
     public void removeExtraData(String key) throws IOException {
-        this.asapEngine.getStorage().getChunk(uri, this.asapEngine.getEra()).removeExtra(key);
+        this.asapEngine.removeExtra(this.getUri(), key);
     }
 
     @Override
@@ -63,9 +63,11 @@ public class ASAPChannelImpl implements ASAPChannel {
     @Override
     public ASAPMessages getMessages(ASAPMessageCompare compare) throws IOException, ASAPException {
         List<ASAPMessages> messagesSource = new ArrayList<>();
+        List<CharSequence> sourceIDs = new ArrayList<>();
 
         // add message from local peer first
         messagesSource.add(this.getMessages());
+        sourceIDs.add(this.asapEngine.getOwner());
 
         // other sender?
         List<CharSequence> sender = this.asapEngine.getSender();
@@ -78,12 +80,14 @@ public class ASAPChannelImpl implements ASAPChannel {
                 // currentEra -> direct predecessor
                 messagesSource.add(existingIncomingStorage.getChunkStorage().getASAPMessages(
                         this.getUri(), currentEra, beforeCurrentEra));
+                sourceIDs.add(senderID);
             } catch (ASAPException e) {
                 // no such storage - ok ignore and go ahead
             }
         }
 
-        return new ASAPMessagesMerger(messagesSource, compare);
+        return new ASAPMessagesMerger(messagesSource, sourceIDs, compare,
+                this.asapEngine.getMergedIndexFile(this.getUri()));
     }
 
     @Override
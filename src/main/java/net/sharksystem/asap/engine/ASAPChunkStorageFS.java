@@ -3,8 +3,9 @@ package net.sharksystem.asap.engine;
 import net.sharksystem.utils.Utils;
 import net.sharksystem.asap.ASAP;
 import net.sharksystem.asap.ASAPException;
-import net.sharksystem.asap.ASAPChunkStorage;
 import net.sharksystem.asap.ASAPMessages;
+import net.sharksystem.utils.AlarmClock;
+import net.sharksystem.utils.AlarmClockListener;
 import net.sharksystem.utils.Log;
 import net.sharksystem.fs.FSUtils;
 
@@ -12,15 +13,21 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import static net.sharksystem.asap.engine.ASAPInternalChunkFS.DATA_EXTENSION;
 import static net.sharksystem.asap.engine.ASAPInternalChunkFS.META_DATA_EXTENSION;
 
 /**
  *
  * @author thsc
  */
-class ASAPChunkStorageFS implements ASAPChunkStorage {
+class ASAPChunkStorageFS implements ASAPInternalChunkStorage, AlarmClockListener {
     private final String rootDirectory;
     private final String format;
     private int era = -1;
@@ -46,7 +53,13 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
 
     @Override
     public ASAPInternalChunk getChunk(CharSequence uriTarget, int era) throws IOException {
-        return new ASAPInternalChunkFS(this, uriTarget.toString(), era);
+        String trunkName = this.getChunkFileTrunkname(era, uriTarget.toString());
+        ASAPInternalChunkFS chunk = this.getKnownChunk(trunkName);
+        if(chunk != null) return chunk;
+
+        chunk = new ASAPInternalChunkFS(this, uriTarget.toString(), era);
+        this.rememberChunk(chunk);
+        return chunk;
     }
 
     @Override
@@ -78,7 +91,7 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
         //Log.writeLog(this, "produced chunk folder name: " + eraFolderString);
         if(!eraFolder.exists()) {
             //Log.writeLog(this, "folder does not exist - create: " + eraFolderString);
-            eraFolder.mkdirs();
+            if(eraFolder.mkdirs()) ASAPFolderCatalogue.getCatalogue(this.rootDirectory).eraAdded(era);
         }
 
         //Log.writeLog(this, "chunk folder exists: " + eraFolder);
@@ -124,7 +137,12 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
                 if(index != -1) {
                     String chunkName = name.substring(0, index);
                     String fName = this.getFileNameByUri(era, chunkName);
-                    chunkList.add(new ASAPInternalChunkFS(this, fName));
+                    ASAPInternalChunkFS chunk = this.getKnownChunk(fName);
+                    if(chunk == null) {
+                        chunk = new ASAPInternalChunkFS(this, fName);
+                        this.rememberChunk(chunk);
+                    }
+                    chunkList.add(chunk);
                 }
             }
         }
@@ -132,12 +150,255 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
         return chunkList;
     }
 
+    @Override
+    public Collection<Integer> getEras() {
+        // folder is not read with each call
+        return ASAPFolderCatalogue.getCatalogue(this.rootDirectory).getEras();
+    }
+
+    @Override
+    public long getEraLastModified(int era) {
+        File dir = new File(this.getPath(era));
+
+        // meta data change with each delivery - only content counts
+        File[] contentFileList = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String fileName) {
+                return fileName.endsWith(ASAPInternalChunkFS.DATA_EXTENSION);
+            }
+        });
+
+        if(contentFileList == null || contentFileList.length == 0) {
+            // no content (yet) - folder was created with era; 0 if there is no folder
+            return dir.lastModified();
+        }
+
+        long lastModified = 0;
+        for(File contentFile : contentFileList) {
+            lastModified = Math.max(lastModified, contentFile.lastModified());
+        }
+        return lastModified;
+    }
+
     @Override
     public void dropChunks(int era) throws IOException {
         // here comes a Java 6 compatible version - fits to android SDK 23
         String eraPathName = this.rootDirectory + "/" + Integer.toString(era);
 
+        // changes of removed chunks are obsolete
+        synchronized(this) {
+            Iterator<String> trunkNameIter = this.dirtyChunks.keySet().iterator();
+            while(trunkNameIter.hasNext()) {
+                if(trunkNameIter.next().startsWith(eraPathName + "/")) trunkNameIter.remove();
+            }
+            trunkNameIter = this.chunkCache.keySet().iterator();
+            while(trunkNameIter.hasNext()) {
+                if(trunkNameIter.next().startsWith(eraPathName + "/")) trunkNameIter.remove();
+            }
+        }
+
+        if(this.contentStore != null) {
+            File[] files = new File(eraPathName).listFiles();
+            if(files != null) {
+                for(File file : files) {
+                    if(file.getName().endsWith(DATA_EXTENSION)) this.contentStore.removing(file);
+                }
+            }
+        }
         FSUtils.removeFolder(eraPathName);
+        ASAPFolderCatalogue.getCatalogue(this.rootDirectory).eraRemoved(era);
+        ASAPMessageCache.getMessageCache().eraDropped(ASAPMessageCache.getFolderKey(this.rootDirectory), era);
+        this.contentRemoved();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                 write behind meta data                               //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    public static final long DEFAULT_WRITE_BEHIND_MAX_DELAY = 1000;
+
+    private boolean writeBehind = false;
+    private long writeBehindMaxDelay = DEFAULT_WRITE_BEHIND_MAX_DELAY;
+    /** chunks with changed meta data - key: trunk name */
+    private final Map<String, ASAPInternalChunkFS> dirtyChunks = new HashMap<>();
+    private AlarmClock flushAlarmClock = null;
+
+    /**
+     * Chunk meta data (recipients, extra data, hop list, delivered to) are written with each change by default.
+     * In write behind mode, changed chunks are remembered and written together - latest after maxDelay
+     * milliseconds, with each flush() and when storage leaves write behind mode.
+     * <br/><br/>
+     * Changes are only visible to this storage object before they are written. Other storage objects - even
+     * in the same process - read data from file system.
+     *
+     * @param on write behind on / off
+     * @param maxDelay milliseconds after which changes are written. Changes are written on flush() only
+     *                 if value is not positive.
+     * @throws IOException problems when writing pending changes (leaving write behind mode)
+     */
+    public void setWriteBehind(boolean on, long maxDelay) throws IOException {
+        synchronized(this) {
+            this.writeBehind = on;
+            this.writeBehindMaxDelay = maxDelay;
+        }
+
+        if(!on) this.flush();
+    }
+
+    boolean isWriteBehind() {
+        return this.writeBehind;
+    }
+
+    synchronized void metaDataChanged(ASAPInternalChunkFS chunk) {
+        this.dirtyChunks.put(chunk.getTrunkName(), chunk);
+
+        if(this.writeBehindMaxDelay > 0 && this.flushAlarmClock == null) {
+            this.flushAlarmClock = new AlarmClock(this.writeBehindMaxDelay, this);
+            this.flushAlarmClock.setDaemon(true);
+            this.flushAlarmClock.start();
+        }
+    }
+
+    synchronized void chunkDropped(ASAPInternalChunkFS chunk) {
+        this.dirtyChunks.remove(chunk.getTrunkName());
+        this.chunkCache.remove(chunk.getTrunkName());
+        try {
+            ASAPMessageCache.getMessageCache().eraDropped(
+                    ASAPMessageCache.getFolderKey(this.rootDirectory), chunk.getEra());
+        } catch (IOException e) {
+            // cannot happen - era is kept in memory
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                       compression                                    //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    /** a file with that name in engine root directory tells to compress chunk content */
+    public static final String COMPRESSION_MARKER = "asapCompression";
+
+    private boolean compression = false;
+
+    /**
+     * @param rootDirectory engine root or root of a sender folder in that engine
+     * @return true if new chunks in that folder are to be compressed
+     */
+    static boolean isCompressionFolder(String rootDirectory) {
+        File root = new File(rootDirectory);
+        if(new File(root, COMPRESSION_MARKER).exists()) return true;
+
+        // sender folder?
+        return root.getParentFile() != null && new File(root.getParentFile(), COMPRESSION_MARKER).exists();
+    }
+
+    static void markAsCompressionFolder(String rootDirectory) throws IOException {
+        File root = new File(rootDirectory);
+        if(!root.exists()) root.mkdirs();
+        new File(root, COMPRESSION_MARKER).createNewFile();
+    }
+
+    /**
+     * @param on chunks created from now on keep messages compressed. Existing chunks keep their format.
+     */
+    void setCompression(boolean on) {
+        this.compression = on;
+    }
+
+    boolean isCompression() {
+        return this.compression;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                  content deduplication                               //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    private ASAPContentStore contentStore = null;
+
+    /**
+     * @param contentStore chunk content can be shared with other chunks in that store - null: no sharing
+     */
+    void setContentStore(ASAPContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
+    ASAPContentStore getContentStore() {
+        return this.contentStore;
+    }
+
+    /**
+     * content files were removed - shared content could be obsolete
+     */
+    void contentRemoved() {
+        if(this.contentStore != null) this.contentStore.collectGarbage();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                      chunk cache                                     //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    public static final int DEFAULT_CHUNK_CACHE_SIZE = 64;
+
+    /** recently used chunks - key: trunk name (era and uri), least recently used first */
+    private final LinkedHashMap<String, ASAPInternalChunkFS> chunkCache =
+            new LinkedHashMap<String, ASAPInternalChunkFS>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ASAPInternalChunkFS> eldest) {
+                    return this.size() > DEFAULT_CHUNK_CACHE_SIZE;
+                }
+            };
+
+    /**
+     * @return chunk with changes not yet written or a cached chunk whose files were not changed
+     * by others in the meantime - null otherwise.
+     */
+    private synchronized ASAPInternalChunkFS getKnownChunk(String trunkName) {
+        // changed but not yet written?
+        ASAPInternalChunkFS chunk = this.dirtyChunks.get(trunkName);
+        if(chunk != null) return chunk;
+
+        chunk = this.chunkCache.get(trunkName);
+        if(chunk == null) return null;
+
+        if(!chunk.isUpToDate()) {
+            // files changed e.g. by another storage object on same folder - read again
+            this.chunkCache.remove(trunkName);
+            return null;
+        }
+
+        return chunk;
+    }
+
+    private synchronized void rememberChunk(ASAPInternalChunkFS chunk) {
+        this.chunkCache.put(chunk.getTrunkName(), chunk);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        List<ASAPInternalChunkFS> chunks2Write;
+        synchronized(this) {
+            if(this.dirtyChunks.isEmpty()) return;
+
+            chunks2Write = new ArrayList<>(this.dirtyChunks.values());
+            this.dirtyChunks.clear();
+        }
+
+        Log.writeLog(this, this.toString(), "write meta data of changed chunks: " + chunks2Write.size());
+        for(ASAPInternalChunkFS chunk : chunks2Write) {
+            chunk.flush();
+        }
+    }
+
+    @Override
+    public void alarmClockRinging(int yourKey) {
+        synchronized(this) {
+            this.flushAlarmClock = null;
+        }
+
+        try {
+            this.flush();
+        } catch (IOException e) {
+            Log.writeLogErr(this, this.toString(), "cannot write chunk meta data: " + e.getLocalizedMessage());
+        }
     }
 
     @Override
@@ -154,6 +415,7 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
 
         return new ASAPInMemoMessages(
                 this,
+                ASAPMessageCache.getFolderKey(this.rootDirectory),
                 this.getFormat(),
                 uri,
                 fromEra, // set starting era
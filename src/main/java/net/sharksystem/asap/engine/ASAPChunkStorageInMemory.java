@@ -0,0 +1,129 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAP;
+import net.sharksystem.asap.ASAPMessages;
+import net.sharksystem.utils.Utils;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Chunk storage that keeps everything in heap. Nothing is written - content is lost when
+ * the process ends. Meant for relay peers and simulations.
+ *
+ * @author thsc
+ */
+class ASAPChunkStorageInMemory implements ASAPInternalChunkStorage {
+    private final String format;
+    private ASAPEngineInMemory engine;
+
+    /** era -> (chunk name -> chunk) */
+    private final Map<Integer, Map<String, ASAPInternalChunkInMemory>> chunks = new HashMap<>();
+
+    ASAPChunkStorageInMemory(String format) {
+        this.format = format;
+    }
+
+    /** engine that uses this storage - provides current era */
+    void setEngine(ASAPEngineInMemory engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public String getFormat() {
+        return this.format;
+    }
+
+    private static String getChunkName(CharSequence uri) {
+        // same mapping as in file system: different uris can end up in same chunk
+        return Utils.url2FileName(uri.toString());
+    }
+
+    @Override
+    public synchronized ASAPInternalChunk getChunk(CharSequence uri, int era) {
+        Map<String, ASAPInternalChunkInMemory> eraChunks = this.chunks.get(era);
+        if(eraChunks == null) {
+            eraChunks = new HashMap<>();
+            this.chunks.put(era, eraChunks);
+        }
+
+        String chunkName = getChunkName(uri);
+        ASAPInternalChunkInMemory chunk = eraChunks.get(chunkName);
+        if(chunk == null) {
+            chunk = new ASAPInternalChunkInMemory(this, uri.toString(), era);
+            eraChunks.put(chunkName, chunk);
+        }
+
+        return chunk;
+    }
+
+    @Override
+    public synchronized boolean existsChunk(CharSequence uri, int era) {
+        Map<String, ASAPInternalChunkInMemory> eraChunks = this.chunks.get(era);
+        return eraChunks != null && eraChunks.containsKey(getChunkName(uri));
+    }
+
+    @Override
+    public synchronized List<ASAPInternalChunk> getChunks(int era) {
+        Map<String, ASAPInternalChunkInMemory> eraChunks = this.chunks.get(era);
+        if(eraChunks == null) return new ArrayList<>();
+
+        return new ArrayList<ASAPInternalChunk>(eraChunks.values());
+    }
+
+    @Override
+    public synchronized Collection<Integer> getEras() {
+        return new HashSet<>(this.chunks.keySet());
+    }
+
+    @Override
+    public synchronized long getEraLastModified(int era) {
+        long lastModified = 0;
+        Map<String, ASAPInternalChunkInMemory> eraChunks = this.chunks.get(era);
+        if(eraChunks != null) {
+            for(ASAPInternalChunkInMemory chunk : eraChunks.values()) {
+                lastModified = Math.max(lastModified, chunk.getLastModified());
+            }
+        }
+        return lastModified;
+    }
+
+    @Override
+    public synchronized void dropChunks(int era) {
+        this.chunks.remove(era);
+        ASAPMessageCache.getMessageCache().eraDropped(this, era);
+    }
+
+    synchronized void chunkDropped(ASAPInternalChunkInMemory chunk) {
+        Map<String, ASAPInternalChunkInMemory> eraChunks = this.chunks.get(chunk.getEra());
+        if(eraChunks == null) return;
+
+        String chunkName = getChunkName(chunk.getUri());
+        // a new chunk could already be there
+        if(eraChunks.get(chunkName) == chunk) {
+            eraChunks.remove(chunkName);
+            ASAPMessageCache.getMessageCache().eraDropped(this, chunk.getEra());
+        }
+        // keep era - an existing era (folder) survives dropping its chunks in file system as well
+    }
+
+    @Override
+    public ASAPMessages getASAPMessages(CharSequence uri, int toEra) throws IOException {
+        int fromEra = ASAP.nextEra(toEra); // the whole cycle
+        return this.getASAPMessages(uri, fromEra, toEra);
+    }
+
+    @Override
+    public ASAPMessages getASAPMessages(CharSequence uri, int fromEra, int toEra) throws IOException {
+        return new ASAPInMemoMessages(this, this, this.getFormat(), uri, fromEra, toEra);
+    }
+
+    @Override
+    public ASAPMessages getASAPMessages(String uri) throws IOException {
+        return this.getASAPMessages(uri, this.engine.getEra());
+    }
+
+    public String toString() {
+        return this.getClass().getSimpleName() + ": " + this.format + " | " + this.engine.getOwner();
+    }
+}
@@ -0,0 +1,182 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAP;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPMessages;
+import net.sharksystem.utils.Log;
+import net.sharksystem.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Chunk storage that keeps all chunks of an era in a single segment file instead of two files
+ * for each chunk. Segment files are placed in root directory and named by era, e.g. 42.asapSegment.
+ * <br/><br/>
+ * Index of each segment is kept in memory. It is read from a footer which is written with flush
+ * (e.g. when a new era begins).
+ *
+ * @author thsc
+ * @see ASAPSegmentFile
+ */
+class ASAPChunkStorageSegments implements ASAPInternalChunkStorage {
+    /** a file with that name in root directory tells to use segments */
+    public static final String SEGMENT_STORE_MARKER = "asapSegmentStore";
+
+    private final String rootDirectory;
+    private final String format;
+    private int era = -1;
+
+    private final Map<Integer, ASAPSegmentFile> segments = new HashMap<>();
+
+    ASAPChunkStorageSegments(String rootDirectory, String format) {
+        this.rootDirectory = rootDirectory;
+        this.format = format;
+    }
+
+    ASAPChunkStorageSegments(String rootDirectory, String format, int era) {
+        this(rootDirectory, format);
+        this.era = era;
+    }
+
+    static boolean isSegmentStore(String rootDirectory) {
+        return new File(rootDirectory, SEGMENT_STORE_MARKER).exists();
+    }
+
+    /**
+     * Mark a folder to be used as segment store.
+     * @throws ASAPException folder already keeps chunks in one file per chunk
+     */
+    static void markAsSegmentStore(String rootDirectory) throws IOException, ASAPException {
+        File root = new File(rootDirectory);
+        if(!root.exists()) root.mkdirs();
+
+        if(isSegmentStore(rootDirectory)) return;
+
+        if(!Utils.getErasInFolder(rootDirectory).isEmpty()) {
+            throw new ASAPException("folder already contains chunks - cannot be a segment store: " + rootDirectory);
+        }
+
+        new File(root, SEGMENT_STORE_MARKER).createNewFile();
+    }
+
+    @Override
+    public String getFormat() {
+        return this.format;
+    }
+
+    private File getSegmentFile(int era) {
+        return new File(this.rootDirectory, era + "." + ASAPSegmentFile.SEGMENT_EXTENSION);
+    }
+
+    private synchronized ASAPSegmentFile getSegment(int era) throws IOException {
+        ASAPSegmentFile segment = this.segments.get(era);
+        if(segment == null) {
+            segment = new ASAPSegmentFile(this.getSegmentFile(era), era);
+            this.segments.put(era, segment);
+        }
+        return segment;
+    }
+
+    @Override
+    public ASAPInternalChunk getChunk(CharSequence uri, int era) throws IOException {
+        ASAPSegmentFile segment = this.getSegment(era);
+        // chunk exists from now on
+        segment.getEntry(uri.toString(), true);
+        return new ASAPInternalChunkSegment(segment, uri.toString());
+    }
+
+    @Override
+    public boolean existsChunk(CharSequence uri, int era) throws IOException {
+        if(!this.getSegmentFile(era).exists()) return false;
+        return this.getSegment(era).getEntry(uri.toString(), false) != null;
+    }
+
+    @Override
+    public List<ASAPInternalChunk> getChunks(int era) throws IOException {
+        List<ASAPInternalChunk> chunkList = new ArrayList<>();
+        if(!this.getSegmentFile(era).exists()) return chunkList;
+
+        ASAPSegmentFile segment = this.getSegment(era);
+        for(String uri : segment.getURIs()) {
+            chunkList.add(new ASAPInternalChunkSegment(segment, uri));
+        }
+        return chunkList;
+    }
+
+    @Override
+    public Collection<Integer> getEras() {
+        Collection<Integer> eras = new HashSet<>();
+        String[] fileNames = new File(this.rootDirectory).list();
+        if(fileNames == null) return eras;
+
+        String extension = "." + ASAPSegmentFile.SEGMENT_EXTENSION;
+        for(String fileName : fileNames) {
+            if(!fileName.endsWith(extension)) continue;
+            try {
+                eras.add(Integer.parseInt(fileName.substring(0, fileName.length() - extension.length())));
+            } catch (NumberFormatException e) {
+                // no segment file - ignore
+            }
+        }
+        return eras;
+    }
+
+    @Override
+    public long getEraLastModified(int era) {
+        // 0 if there is no such file
+        return this.getSegmentFile(era).lastModified();
+    }
+
+    @Override
+    public void dropChunks(int era) throws IOException {
+        synchronized(this) {
+            this.segments.remove(era);
+        }
+        File segmentFile = this.getSegmentFile(era);
+        if(segmentFile.exists() && !segmentFile.delete()) {
+            Log.writeLogErr(this, this.toString(), "cannot remove segment file: " + segmentFile);
+        }
+        ASAPMessageCache.getMessageCache().eraDropped(ASAPMessageCache.getFolderKey(this.rootDirectory), era);
+    }
+
+    /**
+     * Write an index footer to each changed segment.
+     */
+    @Override
+    public void flush() throws IOException {
+        List<ASAPSegmentFile> segmentList;
+        synchronized(this) {
+            segmentList = new ArrayList<>(this.segments.values());
+        }
+
+        for(ASAPSegmentFile segment : segmentList) {
+            segment.writeFooter();
+        }
+    }
+
+    @Override
+    public ASAPMessages getASAPMessages(CharSequence uri, int toEra) throws IOException {
+        int fromEra = ASAP.nextEra(toEra); // the whole cycle
+        return this.getASAPMessages(uri, fromEra, toEra);
+    }
+
+    @Override
+    public ASAPMessages getASAPMessages(CharSequence uri, int fromEra, int toEra) throws IOException {
+        return new ASAPInMemoMessages(this, ASAPMessageCache.getFolderKey(this.rootDirectory),
+                this.getFormat(), uri, fromEra, toEra);
+    }
+
+    @Override
+    public ASAPMessages getASAPMessages(String uri) throws ASAPException, IOException {
+        if(this.era == -1) {
+            throw new ASAPException("internal error: era not set - use other constructor or method");
+        }
+        return this.getASAPMessages(uri, this.era);
+    }
+
+    public String toString() {
+        return this.getClass().getSimpleName() + ": " + this.rootDirectory + " | " + this.format + " | " + this.era;
+    }
+}
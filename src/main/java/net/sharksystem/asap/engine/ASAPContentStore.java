@@ -0,0 +1,253 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.utils.Log;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Keeps chunk content that was received more than once (e.g. routed by different peers) only once.
+ * Content files are hard links to a file in this store which is named by hash of its content.
+ * Number of links is the reference counter - stored content is removed if no chunk refers to it anymore.
+ * <br/><br/>
+ * Store is a folder in engine root directory. Chunk storages of senders (sub folders) share it.
+ * Shared content files must be copied before anything is appended - see unshare.
+ * <br/><br/>
+ * Stored contents are known by their file keys (device and inode). Content files that are about to be removed
+ * are checked against those keys - only stored contents that lost a link are candidates for garbage collection.
+ * Store objects are shared by all chunk storages on a folder in this process.
+ *
+ * @author thsc
+ */
+class ASAPContentStore {
+    public static final String CONTENT_STORE_FOLDER = ".asapContent";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String LINK_COUNT_ATTRIBUTE = "unix:nlink";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final Map<String, ASAPContentStore> stores = new HashMap<>();
+
+    private final File folder;
+
+    /** file key -> stored content - null: not yet read */
+    private Map<Object, File> storedContents = null;
+    /** stored contents that lost a link */
+    private final Set<File> garbageCandidates = new HashSet<>();
+
+    private ASAPContentStore(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Set up a content store in that engine root directory
+     * @throws IOException file system does not support hard links / link counter
+     */
+    static void create(String rootDirectory) throws IOException {
+        File folder = new File(rootDirectory, CONTENT_STORE_FOLDER);
+        if(!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("cannot create content store: " + folder);
+        }
+
+        if(getLinkCount(folder) < 0) {
+            folder.delete();
+            throw new IOException("file system does not count links - no content store possible: " + folder);
+        }
+    }
+
+    /**
+     * @param rootDirectory engine root or root of a sender folder in that engine
+     * @return content store or null if there is none
+     */
+    static ASAPContentStore find(String rootDirectory) {
+        File root = new File(rootDirectory);
+        File folder = new File(root, CONTENT_STORE_FOLDER);
+        if(folder.isDirectory()) return getStore(folder);
+
+        // sender folder?
+        if(root.getParentFile() != null) {
+            folder = new File(root.getParentFile(), CONTENT_STORE_FOLDER);
+            if(folder.isDirectory()) return getStore(folder);
+        }
+
+        return null;
+    }
+
+    private static ASAPContentStore getStore(File folder) {
+        String key = ASAPMessageCache.getFolderKey(folder.getPath());
+        synchronized(stores) {
+            ASAPContentStore store = stores.get(key);
+            if(store == null) {
+                store = new ASAPContentStore(folder);
+                stores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * @return number of hard links to that file or -1 if unknown
+     */
+    static int getLinkCount(File file) {
+        try {
+            return (Integer) Files.getAttribute(file.toPath(), LINK_COUNT_ATTRIBUTE);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return device and inode of that file - null if unknown
+     */
+    private static Object getFileKey(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return digest that is to be fed with content while it is written - see share
+     */
+    static MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("hash algorithm not available: " + HASH_ALGORITHM);
+        }
+    }
+
+    /**
+     * Make a private copy of a content file if it is shared. Must be called before content file is changed.
+     * @return true if a copy was made
+     */
+    synchronized boolean unshare(File contentFile) throws IOException {
+        if(getLinkCount(contentFile) <= 1) return false;
+
+        this.removing(contentFile);
+        Path tempFile = new File(contentFile.getPath() + TEMP_EXTENSION).toPath();
+        Files.copy(contentFile.toPath(), tempFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tempFile, contentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Store content only once. Content file becomes a link to stored content if same content is already in store -
+     * the written copy is discarded. It is added to store otherwise. Nothing happens if links cannot be created.
+     * @param contentDigest digest fed with whole content while it was written - null: content file is read
+     */
+    synchronized void share(File contentFile, MessageDigest contentDigest) throws IOException {
+        if(!contentFile.exists() || contentFile.length() == 0) return;
+
+        String hash = toHexString(contentDigest != null ? contentDigest.digest() : hash(contentFile));
+        File storedContent = new File(this.folder, hash);
+        try {
+            if(storedContent.exists() && storedContent.length() == contentFile.length()) {
+                if(Files.isSameFile(storedContent.toPath(), contentFile.toPath())) return;
+
+                // replace our copy with a link
+                Path tempLink = new File(contentFile.getPath() + TEMP_EXTENSION).toPath();
+                Files.deleteIfExists(tempLink);
+                Files.createLink(tempLink, storedContent.toPath());
+                Files.move(tempLink, contentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Log.writeLog(this, this.toString(), "content already stored - linked: " + contentFile);
+            } else {
+                // first one - a stored content with another length was changed in place - replace it
+                if(storedContent.exists()) this.forget(storedContent);
+                Files.deleteIfExists(storedContent.toPath());
+                Files.createLink(storedContent.toPath(), contentFile.toPath());
+                if(this.storedContents != null) {
+                    Object fileKey = getFileKey(storedContent);
+                    if(fileKey != null) this.storedContents.put(fileKey, storedContent);
+                }
+            }
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Log.writeLogErr(this, this.toString(), "cannot link content - keep a copy: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * A content file is going to be removed or replaced. Stored content it refers to becomes a candidate for
+     * garbage collection.
+     */
+    synchronized void removing(File contentFile) {
+        if(getLinkCount(contentFile) <= 1) return; // not shared
+
+        Object fileKey = getFileKey(contentFile);
+        File storedContent = fileKey == null ? null : this.getStoredContents().get(fileKey);
+        if(storedContent == null && fileKey != null) {
+            // could have been stored by another process
+            this.storedContents = null;
+            storedContent = this.getStoredContents().get(fileKey);
+        }
+
+        if(storedContent != null) this.garbageCandidates.add(storedContent);
+    }
+
+    /**
+     * Remove stored content no chunk refers to - candidates only.
+     * @see #removing(File)
+     */
+    synchronized void collectGarbage() {
+        for(File storedContent : this.garbageCandidates) {
+            // unknown link count (-1): keep it
+            if(getLinkCount(storedContent) == 1) {
+                this.forget(storedContent);
+                storedContent.delete();
+            }
+        }
+        this.garbageCandidates.clear();
+    }
+
+    private Map<Object, File> getStoredContents() {
+        if(this.storedContents == null) {
+            this.storedContents = new HashMap<>();
+            File[] files = this.folder.listFiles();
+            if(files != null) {
+                for(File storedContent : files) {
+                    Object fileKey = getFileKey(storedContent);
+                    if(fileKey != null) this.storedContents.put(fileKey, storedContent);
+                }
+            }
+        }
+        return this.storedContents;
+    }
+
+    private void forget(File storedContent) {
+        if(this.storedContents != null) this.storedContents.values().remove(storedContent);
+    }
+
+    private static byte[] hash(File file) throws IOException {
+        MessageDigest digest = createDigest();
+
+        byte[] buffer = new byte[64 * 1024];
+        InputStream is = new FileInputStream(file);
+        try {
+            int read;
+            while((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        finally {
+            is.close();
+        }
+
+        return digest.digest();
+    }
+
+    private static String toHexString(byte[] hash) {
+        StringBuilder sb = new StringBuilder();
+        for(byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return "content store: " + this.folder;
+    }
+}
@@ -12,10 +12,13 @@ import net.sharksystem.asap.utils.PeerIDHelper;
 import net.sharksystem.utils.Log;
 import net.sharksystem.asap.crypto.ASAPPoint2PointCryptoSettings;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * That ASAPEngine manages exchange of stored messages with peers.
@@ -51,9 +54,15 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
 
     protected ASAPEngine(ASAPChunkStorage chunkStorage, CharSequence chunkContentFormat)
             throws ASAPException, IOException {
+        this(chunkStorage, new ASAPChannelDescriptors(), chunkContentFormat);
+    }
+
+    ASAPEngine(ASAPChunkStorage chunkStorage, ASAPChannelDescriptors channelDescriptors,
+               CharSequence chunkContentFormat) throws ASAPException, IOException {
         //super(chunkStorage, chunkContentFormat);
 
         this.chunkStorage = chunkStorage;
+        this.channelDescriptors = channelDescriptors;
         if(chunkContentFormat != null) {
             this.format = chunkContentFormat.toString();
         } else {
@@ -103,6 +112,30 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
 
     abstract void syncMemento() throws IOException;
 
+    /**
+     * Called after messages were received and stored in that chunk.
+     */
+    void chunkAssimilated(ASAPInternalChunk chunk) throws IOException {
+        // nothing to do by default
+    }
+
+    private ASAPRoutingIndex routingIndex = null;
+
+    /**
+     * @return index of chunks received from other peers - engines that share received chunks share it
+     */
+    synchronized ASAPRoutingIndex getRoutingIndex() {
+        if(this.routingIndex == null) this.routingIndex = new ASAPRoutingIndex();
+        return this.routingIndex;
+    }
+
+    /**
+     * @return file to keep merged index of channel messages in - null: merged index is not kept
+     */
+    File getMergedIndexFile(CharSequence uri) {
+        return null;
+    }
+
     @Override
     public void newEra() {
         this.newEra(false, -1);
@@ -113,7 +146,7 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
      * @param force
      * @param nextEra
      */
-    private void newEra(boolean force, int nextEra) {
+    private synchronized void newEra(boolean force, int nextEra) {
         try {
             this.syncMemento();
         } catch (IOException e) {
@@ -153,17 +186,15 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
                 } else {
                     // drop very very old chunks - if available - if not - don't care
                     this.getChunkStorage().dropChunks(this.era);
+                    // write pending meta data changes of previous era
+                    this.getChunkStorage().flush();
 
-                    Log.writeLog(this, this.toString(),
-                            "setup new era by cloning previous chunk meta data: "
-                                    + this.era + " <- " + previousEra);
-                    // setup new era - copy all chunks
-                    for(ASAPInternalChunk chunk : this.getChunkStorage().getChunks(previousEra)) {
-                        Log.writeLog(this, this.toString(),"going to clone: " + chunk);
-                        ASAPInternalChunk copyChunk = this.getChunkStorage().getChunk(chunk.getUri(), this.era);
-                        copyChunk.clone(chunk);
-                        Log.writeLog(this, this.toString(),"done cloning: " + copyChunk);
-                    }
+                    /* nothing is cloned: chunks of new era are created with first message and
+                    take channel meta data from channel descriptors - see getChunkToAdd
+                     */
+                    Log.writeLog(this, this.toString(), "new era set up: " + this.era + " <- " + previousEra);
+
+                    if(this.eraCompactor != null) this.eraCompactor.eraChanged();
                 }
 
                 Log.writeLog(this, this.toString(), "era incremented");
@@ -236,20 +267,95 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
         new ASAPManagementStorageImpl(this).notifyChannelCreated(appName, owner, uri, recipients);
     }
 
+    //////////////////////////////////////////////////////////////////////
+    //                      channel meta data                           //
+    //////////////////////////////////////////////////////////////////////
+
+    /* Channel meta data are kept in channel descriptors. Changes are applied to the chunk of current era
+    as well - if there is already one. Chunks of previous eras keep meta data they had.
+     */
+    private final ASAPChannelDescriptors channelDescriptors;
+    /** descriptors exist or were taken over - no need to look at file system again */
+    private boolean channelDescriptorsChecked = false;
+
+    private ASAPChannelDescriptors getChannelDescriptors() throws IOException {
+        if(this.channelDescriptorsChecked) return this.channelDescriptors;
+
+        if(!this.channelDescriptors.exists()) {
+            // set up by an older version - meta data are in chunks of current era
+            Log.writeLog(this, this.toString(), "take over channel meta data from chunks of era " + this.era);
+            this.channelDescriptors.takeOver(this.chunkStorage.getChunks(this.era));
+        }
+        this.channelDescriptorsChecked = true;
+        return this.channelDescriptors;
+    }
+
+    /**
+     * @return chunk of current era - null if there is none
+     */
+    private ASAPInternalChunk getCurrentChunk(CharSequence uri) throws IOException {
+        if(!this.chunkStorage.existsChunk(uri, this.era)) return null;
+        return this.chunkStorage.getChunk(uri, this.era);
+    }
+
+    /**
+     * Chunks are not set up with a new era. A chunk is created with first message in an era and gets
+     * channel meta data. Adding a message to an unknown channel creates that channel.
+     */
+    private ASAPInternalChunk getChunkToAdd(CharSequence uri) throws IOException {
+        ASAPInternalChunk chunk = this.getCurrentChunk(uri);
+        if(chunk != null) return chunk;
+
+        this.getChannelDescriptors().add(uri, null, null);
+        chunk = this.chunkStorage.getChunk(uri, this.era);
+        chunk.copyMetaData(new ASAPChannelImpl(this, uri));
+        return chunk;
+    }
+
     public void addRecipient(CharSequence urlTarget, CharSequence recipient) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).addRecipient(recipient);
+        this.getChannelDescriptors().addRecipient(urlTarget, recipient);
+        ASAPInternalChunk chunk = this.getCurrentChunk(urlTarget);
+        if(chunk != null) chunk.addRecipient(recipient);
     }
 
     public void setRecipients(CharSequence urlTarget, Collection<CharSequence> recipients) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).setRecipients(recipients);
+        this.getChannelDescriptors().setRecipients(urlTarget, recipients);
+        ASAPInternalChunk chunk = this.getCurrentChunk(urlTarget);
+        if(chunk != null) chunk.setRecipients(recipients);
     }
 
     public Set<CharSequence> getRecipients(CharSequence urlTarget) throws IOException {
-        return this.chunkStorage.getChunk(urlTarget, this.era).getRecipients();
+        return this.getChannelDescriptors().getRecipients(urlTarget);
     }
 
     public void removeRecipient(CharSequence urlTarget, CharSequence recipient) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).removeRecipient(recipient);
+        this.getChannelDescriptors().removeRecipient(urlTarget, recipient);
+        ASAPInternalChunk chunk = this.getCurrentChunk(urlTarget);
+        if(chunk != null) chunk.removeRecipient(recipient);
+    }
+
+    @Override
+    public void putExtra(CharSequence uri, String key, String value) throws IOException {
+        this.getChannelDescriptors().putExtra(uri, key, value);
+        ASAPInternalChunk chunk = this.getCurrentChunk(uri);
+        if(chunk != null) chunk.putExtra(key, value);
+    }
+
+    @Override
+    public CharSequence removeExtra(CharSequence uri, String key) throws IOException {
+        CharSequence value = this.getChannelDescriptors().removeExtra(uri, key);
+        ASAPInternalChunk chunk = this.getCurrentChunk(uri);
+        if(chunk != null) chunk.removeExtra(key);
+        return value;
+    }
+
+    @Override
+    public CharSequence getExtra(CharSequence uri, String key) throws IOException {
+        return this.getChannelDescriptors().getExtraData(uri).get(key);
+    }
+
+    HashMap<String, String> getExtraData(CharSequence uri) throws IOException {
+        return this.getChannelDescriptors().getExtraData(uri);
     }
 
     @Override
@@ -260,13 +366,21 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
     @Override
     public void add(CharSequence uri, byte[] messageAsBytes) throws IOException {
 //        Log.writeLog(this, this.toString(), "reached add(uri, byte[] message");
-        ASAPInternalChunk chunk = this.chunkStorage.getChunk(uri, this.era);
+        ASAPInternalChunk chunk;
+        Lock eraLock = this.getEraLock().readLock();
+        eraLock.lock();
+        try {
+            chunk = this.getChunkToAdd(uri);
 
-//        Log.writeLog(this, this.toString(), "call chunk.addMessage()");
-        chunk.addMessage(messageAsBytes);
+//            Log.writeLog(this, this.toString(), "call chunk.addMessage()");
+            chunk.addMessage(messageAsBytes);
 
-        // remember - something changed in that era
-        this.contentChanged();
+            // remember - something changed in that era
+            this.contentChanged();
+        }
+        finally {
+            eraLock.unlock();
+        }
 
 //        Log.writeLog(this, this.toString(), "online?");
         if(this.asapOnlineMessageSender != null) {
@@ -286,7 +400,29 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
         }
     }
 
+    @Override
+    public void add(CharSequence uri, InputStream messageIS, long length) throws IOException {
+        Lock eraLock = this.getEraLock().readLock();
+        eraLock.lock();
+        try {
+            ASAPInternalChunk chunk = this.getChunkToAdd(uri);
+            chunk.addMessage(messageIS, length);
+
+            // remember - something changed in that era
+            this.contentChanged();
+        }
+        finally {
+            eraLock.unlock();
+        }
+
+        // not sent online: online messages are serialized in memory. Chunk is sent in next encounter.
+        Log.writeLog(this, this.toString(), "streamed message added - not sent online");
+    }
+
     private void contentChanged() throws IOException {
+        // engine state only changes with first message in an era
+        if(this.contentChanged) return;
+
         this.contentChanged = true;
         Log.writeLog(this, this.toString(), "content changed - save status");
         this.saveStatus();
@@ -303,41 +439,18 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
 
     @Override
     public ASAPInternalChunk createNewChunk(String uri, int newEra) throws IOException {
-        ASAPInternalChunk chunk = this.getChunkStorage().getChunk(uri, newEra);
-        // set new era
+        // set new era first - it removes an outdated era with same number
         this.newEra(true, newEra);
-        return chunk;
+        this.getChannelDescriptors().add(uri, null, null);
+        return this.getChunkStorage().getChunk(uri, newEra);
     }
 
     ASAPChunkStorage getStorage() {
         return this.chunkStorage;
     }
 
-    @Override
-    public void putExtra(CharSequence uri, String key, String value) throws IOException {
-        this.chunkStorage.getChunk(uri, this.era).putExtra(key, value);
-    }
-
-    @Override
-    public CharSequence removeExtra(CharSequence uri, String key) throws IOException {
-        return this.chunkStorage.getChunk(uri, this.era).removeExtra(key);
-    }
-
-    @Override
-    public CharSequence getExtra(CharSequence uri, String key) throws IOException {
-        return this.chunkStorage.getChunk(uri, this.era).getExtra(key);
-    }
-
-
     public List<CharSequence> getChannelURIs() throws IOException {
-        List<CharSequence> uriList = new ArrayList<>();
-
-        List<ASAPInternalChunk> chunks = this.chunkStorage.getChunks(this.era);
-        for(ASAPInternalChunk chunk : chunks) {
-            uriList.add(chunk.getUri());
-        }
-
-        return uriList;
+        return this.getChannelDescriptors().getURIs();
     }
 
     @Override
@@ -355,7 +468,7 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
 
     @Override
     public boolean channelExists(CharSequence uri) throws IOException {
-        return this.chunkStorage.existsChunk(uri, this.getEra());
+        return this.getChannelDescriptors().contains(uri);
     }
 
     public void removeChannel(CharSequence uri) throws IOException {
@@ -363,10 +476,13 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
         int nextEra = this.getOldestEra();
         do {
             currentEra = nextEra;
-            ASAPInternalChunk chunk = this.chunkStorage.getChunk(uri, currentEra);
-            chunk.drop();
+            if(this.chunkStorage.existsChunk(uri, currentEra)) {
+                this.chunkStorage.getChunk(uri, currentEra).drop();
+            }
             nextEra = ASAP.nextEra(currentEra);
         } while(currentEra != this.getEra());
+
+        this.getChannelDescriptors().remove(uri);
     }
 
     public ASAPMessages getChunkChain(int uriPosition) throws IOException, ASAPException {
@@ -384,14 +500,9 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
     public ASAPMessages getChunkChain(int uriPosition, int toEra)
             throws IOException, ASAPException {
 
-        List<CharSequence> channelURIs = this.getChannelURIs();
-        if(channelURIs.size() - 1 < uriPosition) {
-            throw new ASAPException("position greater than number of channels");
-        }
-
-        CharSequence uri = channelURIs.get(uriPosition);
+        CharSequence uri = this.getChannelDescriptors().getURI(uriPosition);
         if(uri == null) {
-            throw new ASAPException("uri at postion is null. Position: " + uriPosition);
+            throw new ASAPException("position greater than number of channels: " + uriPosition);
         }
 
         return this.chunkStorage.getASAPMessages(uri, toEra);
@@ -442,40 +553,57 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
         ASAPHop lastHop = new ASAPHopImpl(encounteredPeer, asapAssimilationPDU.verified(),
                 asapAssimilationPDU.encrypted(), connectionType);
 
+        List<ASAPHop> asapHopList;
+
+        // received chunks are not removed while they are stored
+        Lock eraLock = this.getEraLock().readLock();
+        eraLock.lock();
         try {
-            if(eraSender != ASAP.TRANSIENT_ERA) {
-                    incomingChunk = this.getIncomingChunk(encounteredPeer, asapAssimilationPDU);
-                    messagesContainer = incomingChunk;
-            } else {
-                transientMessages =
-                        new ASAPInMemoTransientMessages(asapAssimilationPDU, lastHop);
+            try {
+                if(eraSender != ASAP.TRANSIENT_ERA) {
+                        incomingChunk = this.getIncomingChunk(encounteredPeer, asapAssimilationPDU);
+                        messagesContainer = incomingChunk;
+                } else {
+                    transientMessages =
+                            new ASAPInMemoTransientMessages(asapAssimilationPDU, lastHop);
 
-                messagesContainer = transientMessages;
+                    messagesContainer = transientMessages;
+                }
             }
-        }
-        catch(ASAPException e) {
-            asapAssimilationPDU.takeDataFromStream();
-            throw e;
-        }
+            catch(ASAPException e) {
+                asapAssimilationPDU.takeDataFromStream();
+                throw e;
+            }
+
+            // put messages into container - incoming chunk or transient message container
+            List<Integer> messageOffsets = asapAssimilationPDU.getMessageOffsets();
 
-        // put messages into container - incoming chunk or transient message container
-        List<Integer> messageOffsets = asapAssimilationPDU.getMessageOffsets();
+            // iterate messages and stream into chunk
+            InputStream protocolInputStream = asapAssimilationPDU.getInputStream();
+            Log.writeLog(this, this.toString(),
+                    "take data to local chunk or transient message: " + messagesContainer);
+            this.streamReceivedMessages2Container(messagesContainer, protocolInputStream,
+                    messageOffsets, asapAssimilationPDU.getLength());
 
-        // iterate messages and stream into chunk
-        InputStream protocolInputStream = asapAssimilationPDU.getInputStream();
-        Log.writeLog(this, this.toString(), "take data to local chunk or transient message: " + messagesContainer);
-        this.streamReceivedMessages2Container(messagesContainer, protocolInputStream,
-                messageOffsets, asapAssimilationPDU.getLength());
+            // add entry to hop list
+            asapHopList = asapAssimilationPDU.getASAPHopList();
+            Log.writeLog(this, this.toString(), "got hop list: " + asapHopList);
 
-        // add entry to hop list
-        List<ASAPHop> asapHopList = asapAssimilationPDU.getASAPHopList();
-        Log.writeLog(this, this.toString(), "got hop list: " + asapHopList);
+            // add this new hop
+            asapHopList.add(lastHop);
 
-        // add this new hop
-        asapHopList.add(lastHop);
+            // add hop list to newly create message container
+            messagesContainer.setASAPHopList(asapHopList);
 
-        // add hop list to newly create message container
-        messagesContainer.setASAPHopList(asapHopList);
+            if(incomingChunk != null) {
+                this.chunkAssimilated(incomingChunk);
+                this.getRoutingIndex().chunkAssimilated(senderE2E, eraSender, incomingChunk.getUri(),
+                        incomingChunk.getLength(), incomingChunk.getRecipients());
+            }
+        }
+        finally {
+            eraLock.unlock();
+        }
 
         ////////////////// write log
         String uri = asapAssimilationPDU.getChannelUri();
@@ -693,61 +821,62 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
             Log.writeLog(this, this.toString(), b.toString());
             //>>>>>>>>>>>>>>>>>>>debug
 
-            // make a breakpoint here
-            if (this.memento != null) this.memento.save(this);
-
-            this.sendChunks(this.owner, senderID, this.getChunkStorage(), protocol, workingEra, lastEra, os, true);
+            try {
+                this.sendChunks(this.owner, senderID, this.getChunkStorage(), protocol, workingEra, lastEra, os, true);
+            }
+            finally {
+                // write last seen eras at once - also those reached before a failure
+                if (this.memento != null) this.memento.flush(this);
+            }
+            // write delivered to lists of all sent chunks at once (write behind mode)
+            this.getChunkStorage().flush();
             Log.writeLog(this, this.toString(), "ended iterating local chunks");
         }
 
         /////////////////////////////////// asap routing
 
         if(this.routingAllowed()) {
+            // received chunks are looked up in memory - storages are not read with each encounter
+            ASAPRoutingIndex routingIndex = this.getRoutingIndex();
+
             // iterate: what sender do we know in our side?
-            for(CharSequence receivedFromID : this.getSender()) {
+            for(CharSequence receivedFromID : routingIndex.getOriginators(this)) {
                 if(PeerIDHelper.sameID(encounteredPeer, receivedFromID)) {
                     // do not send messages back
                     continue;
                 }
                 Log.writeLog(this, this.toString(), "going to route messages from " + receivedFromID);
-                try {
-                    ASAPStorage receivedMessagesStorage = this.getExistingIncomingStorage(receivedFromID);
-                    int eraLastToSend = receivedMessagesStorage.getEra();
-                    int eraFirstToSend = receivedMessagesStorage.getOldestEra();
-
-                    // got encounter information from other peer?
-                    if(encounterMap != null) {
-                        Integer eraLastMet = encounterMap.get(receivedFromID);
-                        if(eraLastMet != null) {
-                            Log.writeLog(this, this.toString(),
-                                    "found sender received encounter map; last encounter: " + eraLastMet);
-                            /*
-                            Peer told us last encounter era - from senders perspective of course.
-                            There are several options, sketch:
-
-                                              <------ our storage ------->
-                            ............ [eraFirst] +++++++++++++++ [eraLast] .........
-                               (a)                       (b)            (c)      (d)
-                            a) We send everything we have
-                            b) We send from b+1 until eraLast
-                            c) + d) We are in sync or behind - nothing to do
-                             */
-
-                            // we would start with the next era
-                            int eraAfterLastMet = ASAP.nextEra(eraLastMet);
-
-                            if(ASAP.isEraInRange(eraAfterLastMet, eraFirstToSend, eraLastToSend)) { // case b)
-                                eraFirstToSend = eraAfterLastMet;
-                            }
+                int eraLastToSend = routingIndex.getEra(receivedFromID);
+                int eraFirstToSend = routingIndex.getOldestEra(receivedFromID);
+
+                // got encounter information from other peer?
+                if(encounterMap != null) {
+                    Integer eraLastMet = encounterMap.get(receivedFromID);
+                    if(eraLastMet != null) {
+                        Log.writeLog(this, this.toString(),
+                                "found sender received encounter map; last encounter: " + eraLastMet);
+                        /*
+                        Peer told us last encounter era - from senders perspective of course.
+                        There are several options, sketch:
+
+                                          <------ our storage ------->
+                        ............ [eraFirst] +++++++++++++++ [eraLast] .........
+                           (a)                       (b)            (c)      (d)
+                        a) We send everything we have
+                        b) We send from b+1 until eraLast
+                        c) + d) We are in sync or behind - nothing to do
+                         */
+
+                        // we would start with the next era
+                        int eraAfterLastMet = ASAP.nextEra(eraLastMet);
+
+                        if(ASAP.isEraInRange(eraAfterLastMet, eraFirstToSend, eraLastToSend)) { // case b)
+                            eraFirstToSend = eraAfterLastMet;
                         }
                     }
-                    this.sendChunks(receivedFromID, senderID, receivedMessagesStorage.getChunkStorage(), protocol,
-                            eraFirstToSend, eraLastToSend, os,false);
-                }
-                catch(ASAPException e) {
-                    Log.writeLogErr(this, this.toString(),
-                            "internal problem: we know sender but cannot access its storage");
                 }
+                this.routeChunks(receivedFromID, senderID, routingIndex, protocol,
+                        eraFirstToSend, eraLastToSend, os);
             }
         } else {
             Log.writeLog(this, this.toString(), "engine does not send received chunks");
@@ -819,84 +948,32 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
         do {
             lastRound = workingEra == lastEra;
 
-            List<ASAPInternalChunk> chunks = chunkStorage.getChunks(workingEra);
-            //<<<<<<<<<<<<<<<<<<debug
-            StringBuilder b = new StringBuilder();
-            b.append("start iterating chunks with working era: ");
-            b.append(workingEra);
-            Log.writeLog(this, this.toString(), b.toString());
-            //>>>>>>>>>>>>>>>>>>>debug
-
-            for(ASAPInternalChunk chunk : chunks) {
-                boolean goAhead = true; // to avoid deep if-if-if-if structures
-
+            // era is not compacted while it is sent
+            Lock eraLock = this.getEraLock().readLock();
+            eraLock.lock();
+            try {
+                List<ASAPInternalChunk> chunks = chunkStorage.getChunks(workingEra);
                 //<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append("chunkUrl: ");
-                b.append(chunk.getUri());
-                b.append(" | isPublic: ");
-                b.append(this.isPublic(chunk));
-                b.append(" | len: ");
-                b.append(chunk.getLength());
-                b.append(" | recipients: ");
-                b.append(chunk.getRecipients());
+                StringBuilder b = new StringBuilder();
+                b.append("start iterating chunks with working era: ");
+                b.append(workingEra);
                 Log.writeLog(this, this.toString(), b.toString());
                 //>>>>>>>>>>>>>>>>>>>debug
 
-                if(chunk.getLength() < 1) {
-                    goAhead = false;
+                for(ASAPInternalChunk chunk : chunks) {
+                    this.sendChunk(sender, encounteredPeer, chunk, workingEra, protocol, os, remember);
                 }
 
-                // is not a public chunk
-                if (goAhead && !this.isPublic(chunk)) {
-                    Set<CharSequence> recipients = chunk.getRecipients();
-                    if (recipients == null || !recipients.contains(encounteredPeer)) {
-                        goAhead = false;
-                    }
-                }
+                if(remember) {
+                    // remember that we are in sync until that era
+                    this.setLastSeen(encounteredPeer, workingEra);
 
-                if (goAhead) {
-                    Log.writeLog(this, this.toString(), "send chunk");
-                    protocol.assimilate(sender, // owner or source from received message
-                            encounteredPeer, // peer to which we are connected right now
-                            this.format,
-                            chunk.getUri(), // channel ok
-                            workingEra, // era ok
-                            chunk.getLength(), // data length
-                            chunk.getOffsetList(),
-                            chunk.getASAPHopList(),
-                            chunk.getMessageInputStream(),
-                            os,
-                            this.getASAPCommunicationCryptoSettings());
-
-                    // remember sent
-                    if(remember) chunk.deliveredTo(encounteredPeer);
-                    Log.writeLog(this, this.toString(), "remembered delivered to " + encounteredPeer);
-
-                    //>>>>>>>>>>>>>>>>>>>debug
-                    // sent to all recipients
-                    if (chunk.getRecipients().size() == chunk.getDeliveredTo().size()) {
-                        Log.writeLog(this, this.toString(),
-                    "#recipients == #deliveredTo chunk delivered to any potential remotePeer - could drop it");
-                        if (this.isDropDeliveredChunks()) {
-                            chunk.drop();
-                            Log.writeLog(this, this.toString(), "chunk dropped");
-                        } else {
-                            Log.writeLog(this, this.toString(),
-                                    "drop flag set false - engine does not remove delivered chunks");
-                        }
-                    }
-                } else {
-                    Log.writeLog(this, this.toString(), "nothing sent: empty or not on recipient list");
+                    // written after sending all eras
+                    if (this.memento != null) this.memento.saveLater(this);
                 }
             }
-
-            if(remember) {
-                // remember that we are in sync until that era
-                this.setLastSeen(encounteredPeer, workingEra);
-
-                // make a breakpoint here
-                if (this.memento != null) this.memento.save(this);
+            finally {
+                eraLock.unlock();
             }
 
             // next era which isn't necessarily workingEra++
@@ -906,6 +983,128 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
         } while(!lastRound);
     }
 
+    /**
+     * Send chunks received from originator - taken from routing index. Chunks that do not exist any longer
+     * are removed from index.
+     */
+    private void routeChunks(CharSequence originator, String encounteredPeer, ASAPRoutingIndex routingIndex,
+                             ASAP_1_0 protocol, int firstEra, int lastEra, OutputStream os)
+            throws IOException, ASAPException {
+
+        Log.writeLog(this, this.toString(),
+                "routeChunks: originator: " + originator + " | encounteredPeer: " + encounteredPeer
+                        + " | firstEra: " + firstEra + " | lastEra: " + lastEra);
+
+        // received chunks are not removed while they are sent
+        Lock eraLock = this.getEraLock().readLock();
+        eraLock.lock();
+        try {
+            this.routeChunks(originator, encounteredPeer, routingIndex.getRoutes(originator, firstEra, lastEra),
+                    routingIndex, protocol, os);
+        }
+        finally {
+            eraLock.unlock();
+        }
+    }
+
+    private void routeChunks(CharSequence originator, String encounteredPeer, List<ASAPRoutingIndex.Route> routes,
+                             ASAPRoutingIndex routingIndex, ASAP_1_0 protocol, OutputStream os)
+            throws IOException, ASAPException {
+
+        ASAPChunkStorage chunkStorage = null;
+        for(ASAPRoutingIndex.Route route : routes) {
+            if(!route.routedTo(encounteredPeer)) {
+                Log.writeLog(this, this.toString(), "nothing sent: empty or not on recipient list: " + route);
+                continue;
+            }
+
+            // storage is only opened if there is something to send
+            if(chunkStorage == null) chunkStorage = this.getReceivedChunksStorage(originator);
+            if(!chunkStorage.existsChunk(route.uri, route.era)) {
+                Log.writeLog(this, this.toString(), "chunk does not exist any longer: " + route);
+                routingIndex.chunkRemoved(originator, route.era, route.uri);
+                continue;
+            }
+
+            ASAPInternalChunk chunk = chunkStorage.getChunk(route.uri, route.era);
+            if(this.sendChunk(originator, encounteredPeer, chunk, route.era, protocol, os, false)) {
+                routingIndex.chunkRemoved(originator, route.era, route.uri);
+            }
+        }
+    }
+
+    /**
+     * @return true if chunk was dropped after sending
+     */
+    private boolean sendChunk(CharSequence sender, String encounteredPeer, ASAPInternalChunk chunk,
+                              int workingEra, ASAP_1_0 protocol, OutputStream os, boolean remember)
+            throws IOException, ASAPException {
+
+        boolean goAhead = true; // to avoid deep if-if-if-if structures
+
+        //<<<<<<<<<<<<<<<<<<debug
+        StringBuilder b = new StringBuilder();
+        b.append("chunkUrl: ");
+        b.append(chunk.getUri());
+        b.append(" | isPublic: ");
+        b.append(this.isPublic(chunk));
+        b.append(" | len: ");
+        b.append(chunk.getLength());
+        b.append(" | recipients: ");
+        b.append(chunk.getRecipients());
+        Log.writeLog(this, this.toString(), b.toString());
+        //>>>>>>>>>>>>>>>>>>>debug
+
+        if(chunk.getLength() < 1) {
+            goAhead = false;
+        }
+
+        // is not a public chunk
+        if (goAhead && !this.isPublic(chunk)) {
+            Set<CharSequence> recipients = chunk.getRecipients();
+            if (recipients == null || !recipients.contains(encounteredPeer)) {
+                goAhead = false;
+            }
+        }
+
+        if (goAhead) {
+            Log.writeLog(this, this.toString(), "send chunk");
+            protocol.assimilate(sender, // owner or source from received message
+                    encounteredPeer, // peer to which we are connected right now
+                    this.format,
+                    chunk.getUri(), // channel ok
+                    workingEra, // era ok
+                    chunk.getLength(), // data length
+                    chunk.getOffsetList(),
+                    chunk.getASAPHopList(),
+                    chunk.getMessageInputStream(),
+                    os,
+                    this.getASAPCommunicationCryptoSettings());
+
+            // remember sent
+            if(remember) chunk.deliveredTo(encounteredPeer);
+            Log.writeLog(this, this.toString(), "remembered delivered to " + encounteredPeer);
+
+            //>>>>>>>>>>>>>>>>>>>debug
+            // sent to all recipients
+            if (chunk.getRecipients().size() == chunk.getDeliveredTo().size()) {
+                Log.writeLog(this, this.toString(),
+            "#recipients == #deliveredTo chunk delivered to any potential remotePeer - could drop it");
+                if (this.isDropDeliveredChunks()) {
+                    chunk.drop();
+                    Log.writeLog(this, this.toString(), "chunk dropped");
+                    return true;
+                } else {
+                    Log.writeLog(this, this.toString(),
+                            "drop flag set false - engine does not remove delivered chunks");
+                }
+            }
+        } else {
+            Log.writeLog(this, this.toString(), "nothing sent: empty or not on recipient list");
+        }
+        return false;
+    }
+
     private boolean isDropDeliveredChunks() {
         return this.dropDeliveredChunks;
     }
@@ -938,6 +1137,58 @@ public abstract class ASAPEngine extends ASAPStorageImpl implements ASAPInternal
         this.lastSeen.put(peer, era);
     }
 
+    synchronized void advanceOldestEra(int oldestEra) throws IOException {
+        this.oldestEra = oldestEra;
+        this.saveStatus();
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    //                             retention                            //
+    //////////////////////////////////////////////////////////////////////
+
+    private ASAPEraCompactor eraCompactor = null;
+    private final ReentrantReadWriteLock eraLock = new ReentrantReadWriteLock();
+
+    /**
+     * Remove and merge old chunks whenever a new era starts - in a background thread. Setting is not
+     * persistent.
+     * @param policy what is kept - null: stop compaction
+     * @param interval minimum milliseconds between two compactions
+     * @see ASAPRetentionPolicy
+     */
+    public synchronized void setRetentionPolicy(ASAPRetentionPolicy policy, long interval) {
+        this.eraCompactor = policy == null ? null : new ASAPEraCompactor(this, policy, interval);
+    }
+
+    /**
+     * Apply a retention policy once - in this thread.
+     * @param policy what is kept
+     * @throws IOException
+     */
+    public void compact(ASAPRetentionPolicy policy) throws IOException {
+        new ASAPEraCompactor(this, policy, 0).compact();
+    }
+
+    /**
+     * Wait until background compaction started with last new era is done.
+     */
+    void waitForCompaction() throws InterruptedException {
+        ASAPEraCompactor compactor;
+        synchronized(this) {
+            compactor = this.eraCompactor;
+        }
+        if(compactor != null) compactor.waitForCompaction();
+    }
+
+    /**
+     * Held for reading while chunks are written or sent, held for writing while chunks are compacted.
+     * Not held while a new era starts - compaction does not touch current era.
+     * @return lock of chunks of this engine (local and received ones)
+     */
+    ReentrantReadWriteLock getEraLock() {
+        return this.eraLock;
+    }
+
     @Override
     public int getOldestEra() {
         return this.oldestEra;
@@ -5,12 +5,16 @@ import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.ASAPChunkStorage;
 import net.sharksystem.asap.protocol.ASAP_1_0;
 import net.sharksystem.utils.Log;
+import net.sharksystem.utils.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * ASAPEngine that stores data in file system.
@@ -19,16 +23,124 @@ import java.util.List;
 public class ASAPEngineFS extends ASAPEngine {
     public static final String MEMENTO_FILENAME = "asapCurrentAttributes";
     private final String rootDirectory;
+    private final boolean mergedIndex;
     
     public static final String DEFAULT_ROOT_FOLDER_NAME = "SHARKSYSTEM_ASAP";
 
     private ASAPEngineFS(String owner, String rootDirectory, CharSequence format)
         throws ASAPException, IOException {
         
-        super(new ASAPChunkStorageFS(rootDirectory, format.toString()), format);
+        super(ASAPEngineFS.createChunkStorage(rootDirectory, format.toString(), -1),
+                ASAPChannelDescriptors.getDescriptors(rootDirectory), format);
 
         this.owner = owner;
         this.rootDirectory = rootDirectory;
+        this.mergedIndex = new File(rootDirectory, MERGED_INDEX_MARKER).exists();
+    }
+
+    private static ASAPChunkStorage createChunkStorage(String rootDirectory, String format, int era) {
+        if(ASAPChunkStorageSegments.isSegmentStore(rootDirectory)) {
+            return new ASAPChunkStorageSegments(rootDirectory, format, era);
+        }
+        ASAPChunkStorageFS chunkStorage = new ASAPChunkStorageFS(rootDirectory, format, era);
+        chunkStorage.setContentStore(ASAPContentStore.find(rootDirectory));
+        chunkStorage.setCompression(ASAPChunkStorageFS.isCompressionFolder(rootDirectory));
+        return chunkStorage;
+    }
+
+    /**
+     * Messages of new chunks are stored compressed - own and received ones. Each message is compressed on its
+     * own - messages that would not shrink are stored as they are. Messages are sent uncompressed. Existing
+     * chunks are not changed. Takes effect for engines created afterwards.
+     * @param rootDirectory engine root directory
+     */
+    public static void useCompression(String rootDirectory) throws IOException {
+        ASAPChunkStorageFS.markAsCompressionFolder(rootDirectory);
+    }
+
+    /**
+     * Received chunks with same content (e.g. routed by different peers) are stored only once. Content files
+     * become hard links to a shared file. Must be called before engine is created.
+     * @param rootDirectory engine root directory
+     * @throws IOException file system does not support hard links
+     */
+    public static void useContentDeduplication(String rootDirectory) throws IOException {
+        ASAPContentStore.create(rootDirectory);
+    }
+
+    /** a file with that name in engine root directory tells to keep merged indices */
+    public static final String MERGED_INDEX_MARKER = "asapMergedIndex";
+    public static final String MERGED_INDEX_EXTENSION = "mergedIndex";
+
+    /**
+     * Order of messages merged from local and received chunks with a message compare is kept in a file for
+     * each channel. It is only set up again if chunks of a merged source have changed. Takes effect for
+     * engines created afterwards.
+     * @param rootDirectory engine root directory
+     */
+    public static void useMergedIndex(String rootDirectory) throws IOException {
+        File root = new File(rootDirectory);
+        if(!root.exists()) root.mkdirs();
+        new File(root, MERGED_INDEX_MARKER).createNewFile();
+    }
+
+    @Override
+    File getMergedIndexFile(CharSequence uri) {
+        if(!this.mergedIndex) return null;
+        return new File(this.rootDirectory, Utils.url2FileName(uri.toString()) + "." + MERGED_INDEX_EXTENSION);
+    }
+
+    @Override
+    ASAPRoutingIndex getRoutingIndex() {
+        // received chunks are shared by all engine objects on that folder
+        return ASAPRoutingIndex.getIndex(this.rootDirectory);
+    }
+
+    private static final Map<String, ReentrantReadWriteLock> eraLocks = new HashMap<>();
+
+    @Override
+    ReentrantReadWriteLock getEraLock() {
+        // chunks are shared by all engine objects on that folder
+        String key = ASAPMessageCache.getFolderKey(this.rootDirectory);
+        synchronized(eraLocks) {
+            ReentrantReadWriteLock eraLock = eraLocks.get(key);
+            if(eraLock == null) {
+                eraLock = new ReentrantReadWriteLock();
+                eraLocks.put(key, eraLock);
+            }
+            return eraLock;
+        }
+    }
+
+    @Override
+    void chunkAssimilated(ASAPInternalChunk chunk) throws IOException {
+        if(chunk instanceof ASAPInternalChunkFS) {
+            ((ASAPInternalChunkFS) chunk).shareContent();
+        }
+    }
+
+    /**
+     * Store chunks of each era in a single segment file instead of two files for each chunk. Received chunks
+     * are stored in segments as well. Must be called before any chunk is stored in that folder.
+     * @param rootDirectory engine root directory
+     * @throws ASAPException folder already contains chunks
+     */
+    public static void useSegmentStore(String rootDirectory) throws IOException, ASAPException {
+        ASAPChunkStorageSegments.markAsSegmentStore(rootDirectory);
+    }
+
+    private boolean isSegmentStore() {
+        return this.getChunkStorage() instanceof ASAPChunkStorageSegments;
+    }
+
+    /**
+     * received chunks are stored like own ones
+     */
+    private void prepareIncomingFolder(CharSequence sender, boolean create) throws IOException, ASAPException {
+        String folder = this.rootDirectory + "/" + sender;
+        if(this.isSegmentStore() && (create || new File(folder).exists())) {
+            ASAPChunkStorageSegments.markAsSegmentStore(folder);
+        }
     }
 
     public String toString() {
@@ -101,8 +213,23 @@ public class ASAPEngineFS extends ASAPEngine {
         this.saveMemento();
     }
 
+    /**
+     * Chunk meta data (recipients, extra data, delivered to...) are written with each change by default.
+     * Write behind mode collects those changes and writes them together - latest after maxDelay milliseconds,
+     * when a new era begins and after local chunks are sent to an encountered peer.
+     * @param on write behind on / off
+     * @param maxDelay milliseconds changes can be kept in memory - not positive: wait for next flush
+     * @throws IOException problems when writing pending changes (leaving write behind mode)
+     */
+    public void setWriteBehind(boolean on, long maxDelay) throws IOException {
+        // segment store appends meta data anyway
+        if(this.getChunkStorage() instanceof ASAPChunkStorageFS) {
+            ((ASAPChunkStorageFS)this.getChunkStorage()).setWriteBehind(on, maxDelay);
+        }
+    }
+
     private void saveMemento() throws IOException {
-        this.getMemento(this.rootDirectory).save(this);
+        this.getMemento().save(this);
     }
 
     static ASAPEngineFS getASAPEngineFS(String owner, String rootDirectory, CharSequence format)
@@ -149,8 +276,7 @@ public class ASAPEngineFS extends ASAPEngine {
         );
 
         
-        ASAPMementoFS mementoFS = engine.getMemento(rootDirectory);
-        engine.memento = mementoFS;
+        ASAPMementoFS mementoFS = engine.getMemento();
         
         mementoFS.restore(engine);
 
@@ -182,20 +308,16 @@ public class ASAPEngineFS extends ASAPEngine {
     }
     
     private void restoreFromMemento() throws IOException {
-        ASAPMementoFS mementoFS = this.getMemento(rootDirectory);
-        this.memento = mementoFS;
-
-        mementoFS.restore(this);
-
+        // memento is newer - pending last seen eras are merged into it
+        this.getMemento().restore(this);
     }
 
+    /**
+     * Restore engine state if memento was written by another engine object (e.g. in another process).
+     * Memento is not read if unchanged.
+     */
     void syncMemento() throws IOException {
-        ASAPMementoFS asapMementoFS = new ASAPMementoFS(new File(this.rootDirectory));
-        asapMementoFS.read();
-//        Log.writeLog(this, this.toString(), "read memento: " + asapMementoFS);
-//        Log.writeLog(this, this.toString(), "this.lastwritten: " + this.lastMementoWritten);
-
-        if(asapMementoFS.lastMementoWritten != this.lastMementoWritten) {
+        if(this.getMemento().changedByOthers()) {
 //            Log.writeLog(this, this.toString(),"restore from memento - out of sync");
             this.restoreFromMemento();
         }
@@ -203,13 +325,19 @@ public class ASAPEngineFS extends ASAPEngine {
 
     @Override
     public void add(CharSequence uri, byte[] messageAsBytes) throws IOException {
-        // always re-read metainformation
-        this.restoreFromMemento();
+        // re-read meta information if changed by someone else
+        this.syncMemento();
         
         // do the real work
         super.add(uri, messageAsBytes);
     }
 
+    @Override
+    public void add(CharSequence uri, InputStream messageIS, long length) throws IOException {
+        this.syncMemento();
+        super.add(uri, messageIS, length);
+    }
+
     /*
     public static ASAPEngine getASAPEngine(String rootDirectory, CharSequence format)
             throws IOException, ASAPException {
@@ -218,8 +346,12 @@ public class ASAPEngineFS extends ASAPEngine {
 
     }*/
 
-    private ASAPMementoFS getMemento(String rootDirectory) {
-        return new ASAPMementoFS(new File(rootDirectory));
+    /**
+     * @return memento of this engine - same object for engine life time, it remembers pending changes
+     */
+    private ASAPMementoFS getMemento() {
+        if(this.memento == null) this.memento = new ASAPMementoFS(new File(this.rootDirectory));
+        return (ASAPMementoFS) this.memento;
     }
     
     private HashMap<CharSequence, ASAPChunkStorage> storageList = new HashMap<>();
@@ -227,15 +359,25 @@ public class ASAPEngineFS extends ASAPEngine {
     @Override
     public ASAPChunkStorage getReceivedChunksStorage(CharSequence sender) {
         String dir = this.rootDirectory + "/" + sender;
-        return new ASAPChunkStorageFS(dir, this.format, this.era);
+        try {
+            this.prepareIncomingFolder(sender, true);
+        } catch (IOException | ASAPException e) {
+            Log.writeLogErr(this, this.toString(), "cannot set up segment store for sender: " + e.getLocalizedMessage());
+        }
+        return ASAPEngineFS.createChunkStorage(dir, this.format, this.era);
     }
 
     public ASAPInternalStorage getIncomingStorage(CharSequence sender, boolean create) throws IOException, ASAPException {
-        return ASAPEngineFS.getASAPEngineFS(
+        boolean exists = new File(this.rootDirectory, sender.toString()).exists();
+        this.prepareIncomingFolder(sender, create);
+        ASAPInternalStorage incomingStorage = ASAPEngineFS.getASAPEngineFS(
                 sender.toString(), // becomes owner
                 this.rootDirectory + "/" + sender, // folder
                 this.getFormat(), // format taken from superior storage
                 create);
+
+        if(!exists) ASAPFolderCatalogue.getCatalogue(this.rootDirectory).subFolderAdded(sender.toString());
+        return incomingStorage;
     }
 
     public ASAPInternalStorage getExistingIncomingStorage(CharSequence sender) throws IOException, ASAPException {
@@ -269,26 +411,11 @@ public class ASAPEngineFS extends ASAPEngine {
     public List<CharSequence> getSender() {
         List<CharSequence> senderList = new ArrayList<>();
 
-        File dir = new File(this.rootDirectory);
-
-        String[] dirEntries = dir.list();
-
-        if (dirEntries != null) {
-            for (String fileName : dirEntries) {
-                // era folder?
-                try {
-                    Integer.parseInt(fileName);
-                    // a number. It is a era folder go ahead
-                    continue;
-                } catch (NumberFormatException e) {
-                    // no number - that's ok!
-                }
-
-                File fileInDir = new File(this.rootDirectory + "/" + fileName);
-                if (fileInDir.isDirectory()) {
-                    senderList.add(fileName);
-                }
-            }
+        // folder is not read with each call
+        for(String folderName : ASAPFolderCatalogue.getCatalogue(this.rootDirectory).getSubFolders()) {
+            // shared content - no sender
+            if(folderName.equals(ASAPContentStore.CONTENT_STORE_FOLDER)) continue;
+            senderList.add(folderName);
         }
 
         return senderList;
@@ -0,0 +1,117 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPChunkStorage;
+import net.sharksystem.asap.ASAPException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * ASAPEngine that keeps chunks and its status in memory. Nothing is written to file system.
+ * Received chunks are kept in an in memory engine for each sender.
+ *
+ * @author thsc
+ */
+public class ASAPEngineInMemory extends ASAPEngine {
+    private final HashMap<CharSequence, ASAPEngineInMemory> incomingStorages = new HashMap<>();
+
+    private ASAPEngineInMemory(String owner, CharSequence format) throws ASAPException, IOException {
+        this(new ASAPChunkStorageInMemory(format.toString()), owner, format);
+    }
+
+    private ASAPEngineInMemory(ASAPChunkStorageInMemory chunkStorage, String owner, CharSequence format)
+            throws ASAPException, IOException {
+
+        super(chunkStorage, format);
+        chunkStorage.setEngine(this);
+
+        if(owner != null) this.owner = owner;
+    }
+
+    /**
+     * create an engine that keeps everything in memory
+     * @param owner can be null - anonymous owner
+     * @param format must not be null
+     * @return
+     * @throws IOException
+     * @throws ASAPException
+     */
+    public static ASAPEngine getASAPEngine(String owner, CharSequence format) throws IOException, ASAPException {
+        return new ASAPEngineInMemory(owner, format);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("in memory | owner: ");
+        sb.append(this.getOwner());
+        sb.append(" | oldestEra: ");
+        sb.append(this.getOldestEra());
+        sb.append(" | era: ");
+        sb.append(this.getEra());
+        sb.append(" | routing: ");
+        sb.append(this.routingAllowed());
+
+        return sb.toString();
+    }
+
+    public String getOwner() {
+        return this.owner;
+    }
+
+    @Override
+    void syncMemento() {
+        // no one else can change status
+    }
+
+    public ASAPInternalStorage refresh() {
+        // nothing stored elsewhere
+        return this;
+    }
+
+    public void setOldestEra(int oldestEra) {
+        this.oldestEra = oldestEra;
+    }
+
+    @Override
+    public ASAPChunkStorage getReceivedChunksStorage(CharSequence sender) {
+        return this.getIncomingEngine(sender, true).getChunkStorage();
+    }
+
+    private synchronized ASAPEngineInMemory getIncomingEngine(CharSequence sender, boolean create) {
+        ASAPEngineInMemory incomingEngine = this.incomingStorages.get(sender.toString());
+        if(incomingEngine == null && create) {
+            try {
+                incomingEngine = new ASAPEngineInMemory(sender.toString(), this.getFormat());
+            } catch (ASAPException | IOException e) {
+                // format is set - cannot happen
+                throw new IllegalStateException("cannot create in memory engine: " + e.getLocalizedMessage());
+            }
+            this.incomingStorages.put(sender.toString(), incomingEngine);
+        }
+
+        return incomingEngine;
+    }
+
+    public ASAPInternalStorage getIncomingStorage(CharSequence sender, boolean create) throws ASAPException {
+        ASAPEngineInMemory incomingEngine = this.getIncomingEngine(sender, create);
+        if(incomingEngine == null) throw new ASAPException("no incoming storage for sender: " + sender);
+
+        return incomingEngine;
+    }
+
+    public ASAPInternalStorage getExistingIncomingStorage(CharSequence sender) throws ASAPException {
+        // same behaviour as file system engine
+        return this.getIncomingStorage(sender, true);
+    }
+
+    public ASAPInternalStorage getIncomingStorage(CharSequence sender) throws ASAPException {
+        return this.getIncomingStorage(sender, true);
+    }
+
+    @Override
+    public synchronized List<CharSequence> getSender() {
+        return new ArrayList<CharSequence>(this.incomingStorages.keySet());
+    }
+}
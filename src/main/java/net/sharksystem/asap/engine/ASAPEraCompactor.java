@@ -0,0 +1,328 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAP;
+import net.sharksystem.asap.ASAPChunkStorage;
+import net.sharksystem.utils.Log;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Enforces a retention policy on an engine - once or whenever a new era starts. Compaction after a new era
+ * runs in a background thread - the thread that changes era is not blocked. Chunks are only changed while
+ * the era lock of the engine is held for writing. Writers and sessions hold it for reading. Background
+ * compaction does not wait for that lock - it tries again later if it is in use.
+ * <br/><br/>
+ * Oldest era is advanced before chunks are removed. Sessions that start afterwards do not
+ * ask for removed eras. Current era is never touched. Size of an era is read once it is older than current
+ * era - it only changes with compaction later on.
+ *
+ * @author thsc
+ * @see ASAPRetentionPolicy
+ */
+class ASAPEraCompactor {
+    private final ASAPEngine engine;
+    private final ASAPRetentionPolicy policy;
+    private final long interval;
+    private long lastCompaction = 0;
+
+    /** milliseconds between two attempts to get era lock */
+    private static final long LOCK_RETRY_INTERVAL = 50;
+
+    /** thread that compacts after new eras - null: none running */
+    private Thread worker = null;
+    /** another new era while worker was running */
+    private boolean compactAgain = false;
+
+    /** era -> sum of chunk lengths - eras older than current era only */
+    private final Map<Integer, Long> eraSizes = new HashMap<>();
+
+    ASAPEraCompactor(ASAPEngine engine, ASAPRetentionPolicy policy, long interval) {
+        this.engine = engine;
+        this.policy = policy;
+        this.interval = interval;
+    }
+
+    /**
+     * Engine started a new era - apply retention policy in background if interval passed since last
+     * compaction. Returns immediately.
+     */
+    synchronized void eraChanged() {
+        long now = System.currentTimeMillis();
+        if(now - this.lastCompaction < this.interval) return;
+        this.lastCompaction = now;
+
+        if(this.worker != null) {
+            // eras are collected again when worker is done
+            this.compactAgain = true;
+            return;
+        }
+
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ASAPEraCompactor.this.runCompactions();
+            }
+        }, "era compaction");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    private void runCompactions() {
+        for(;;) {
+            try {
+                this.compact(true);
+            } catch (IOException e) {
+                Log.writeLogErr(this, this.toString(), "compaction failed: " + e.getLocalizedMessage());
+            } catch (InterruptedException e) {
+                Log.writeLogErr(this, this.toString(), "compaction interrupted");
+            }
+
+            synchronized(this) {
+                if(!this.compactAgain) {
+                    this.worker = null;
+                    this.notifyAll();
+                    return;
+                }
+                this.compactAgain = false;
+            }
+        }
+    }
+
+    /**
+     * Wait until background compaction is done - returns at once if there is none.
+     */
+    synchronized void waitForCompaction() throws InterruptedException {
+        while(this.worker != null) this.wait();
+    }
+
+    /**
+     * Get era lock for writing.
+     * @param yield true: do not block sessions and writers - wait till lock is not used
+     */
+    private void lockEras(Lock eraLock, boolean yield) throws InterruptedException {
+        if(!yield) {
+            eraLock.lock();
+            return;
+        }
+        // tryLock does not queue - readers are not held back by a waiting compaction
+        while(!eraLock.tryLock()) Thread.sleep(LOCK_RETRY_INTERVAL);
+    }
+
+    /**
+     * @return distance from era to laterEra - eras are a ring
+     */
+    private static long eraDistance(int era, int laterEra) {
+        long numberEras = (long) ASAP.MAX_ERA + 1;
+        return (((long) laterEra - era) % numberEras + numberEras) % numberEras;
+    }
+
+    /**
+     * Apply retention policy once - in this thread.
+     */
+    void compact() throws IOException {
+        try {
+            this.compact(false);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for era lock");
+        }
+    }
+
+    private void compact(boolean yield) throws IOException, InterruptedException {
+        Lock eraLock = this.engine.getEraLock().writeLock();
+        this.lockEras(eraLock, yield);
+        try {
+            this.compactLocalChunks();
+        }
+        finally {
+            eraLock.unlock();
+        }
+
+        // received chunks - lock is released in between
+        if(this.policy.getMaxAge() == ASAPRetentionPolicy.UNLIMITED) return;
+        for(CharSequence sender : this.engine.getSender()) {
+            this.lockEras(eraLock, yield);
+            try {
+                this.removeExpiredReceivedChunks(sender);
+            }
+            finally {
+                eraLock.unlock();
+            }
+        }
+    }
+
+    private void compactLocalChunks() throws IOException {
+        this.engine.syncMemento();
+        int currentEra = this.engine.getEra();
+        final int oldestEra = this.engine.getOldestEra();
+        if(!(this.engine.getChunkStorage() instanceof ASAPInternalChunkStorage)) {
+            Log.writeLog(this, this.toString(), "cannot compact chunk storage of unknown kind");
+            return;
+        }
+        ASAPInternalChunkStorage chunkStorage = (ASAPInternalChunkStorage) this.engine.getChunkStorage();
+        long currentDistance = eraDistance(oldestEra, currentEra);
+
+        // eras with chunks older than current era - oldest first
+        List<Integer> eras = new ArrayList<>();
+        for(Integer era : chunkStorage.getEras()) {
+            if(eraDistance(oldestEra, era) < currentDistance) eras.add(era);
+        }
+        // sizes of eras that are gone or current again are not needed
+        this.eraSizes.keySet().retainAll(eras);
+        Collections.sort(eras, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer era1, Integer era2) {
+                return Long.compare(eraDistance(oldestEra, era1), eraDistance(oldestEra, era2));
+            }
+        });
+
+        int numberExpired = this.getNumberExpiredEras(chunkStorage, eras);
+        List<Integer> expiredEras = eras.subList(0, numberExpired);
+        List<Integer> keptEras = eras.subList(numberExpired, eras.size());
+
+        int newOldestEra = keptEras.isEmpty() ? currentEra : keptEras.get(0);
+        if(newOldestEra != oldestEra) {
+            Log.writeLog(this, this.toString(), "advance oldest era: " + oldestEra + " -> " + newOldestEra);
+            this.engine.advanceOldestEra(newOldestEra);
+        }
+
+        for(Integer era : expiredEras) {
+            Log.writeLog(this, this.toString(), "remove expired era: " + era);
+            chunkStorage.dropChunks(era);
+            this.eraSizes.remove(era);
+        }
+
+        this.mergeTinyChunks(chunkStorage, keptEras, newOldestEra);
+    }
+
+    /**
+     * @param eras eras older than current era - oldest first
+     * @return number of oldest eras to be removed
+     */
+    private int getNumberExpiredEras(ASAPInternalChunkStorage chunkStorage, List<Integer> eras) throws IOException {
+        int numberExpired = 0;
+
+        // current era is one more
+        if(this.policy.getMaxEras() != ASAPRetentionPolicy.UNLIMITED) {
+            numberExpired = Math.max(0, eras.size() + 1 - this.policy.getMaxEras());
+        }
+
+        if(this.policy.getMaxAge() != ASAPRetentionPolicy.UNLIMITED) {
+            long expiryTime = System.currentTimeMillis() - this.policy.getMaxAge();
+            while(numberExpired < eras.size()
+                    && chunkStorage.getEraLastModified(eras.get(numberExpired)) < expiryTime) {
+                numberExpired++;
+            }
+        }
+
+        if(this.policy.getMaxBytes() != ASAPRetentionPolicy.UNLIMITED) {
+            long[] eraSizes = new long[eras.size()];
+            long totalSize = this.readEraSize(chunkStorage, this.engine.getEra());
+            for(int i = numberExpired; i < eras.size(); i++) {
+                eraSizes[i] = this.getEraSize(chunkStorage, eras.get(i));
+                totalSize += eraSizes[i];
+            }
+
+            while(numberExpired < eras.size() && totalSize > this.policy.getMaxBytes()) {
+                totalSize -= eraSizes[numberExpired++];
+            }
+        }
+
+        return numberExpired;
+    }
+
+    /**
+     * @param era era older than current era - its size is read once
+     */
+    private long getEraSize(ASAPChunkStorage chunkStorage, int era) throws IOException {
+        Long size = this.eraSizes.get(era);
+        if(size == null) {
+            size = this.readEraSize(chunkStorage, era);
+            this.eraSizes.put(era, size);
+        }
+        return size;
+    }
+
+    private long readEraSize(ASAPChunkStorage chunkStorage, int era) throws IOException {
+        long size = 0;
+        for(ASAPInternalChunk chunk : chunkStorage.getChunks(era)) {
+            size += chunk.getLength();
+        }
+        return size;
+    }
+
+    /**
+     * Merge small chunks into a chunk with same uri in an older era. Only eras are touched that no known peer
+     * would ask for again. Other peers get content of all eras anyway.
+     * @param eras kept eras older than current era - oldest first
+     */
+    private void mergeTinyChunks(ASAPChunkStorage chunkStorage, List<Integer> eras, int oldestEra)
+            throws IOException {
+
+        if(this.policy.getTinyChunkSize() <= 0) return;
+
+        // a known peer asks for eras starting with the era it has seen last
+        long mergeDistance = eraDistance(oldestEra, this.engine.getEra());
+        for(Integer lastSeenEra : new ArrayList<>(this.engine.lastSeen.values())) {
+            mergeDistance = Math.min(mergeDistance, eraDistance(oldestEra, lastSeenEra));
+        }
+
+        // latest chunk for each uri - messages can only be appended to that one to keep order
+        Map<String, ASAPInternalChunk> lastChunks = new HashMap<>();
+        for(Integer era : eras) {
+            if(eraDistance(oldestEra, era) >= mergeDistance) break;
+
+            for(ASAPInternalChunk chunk : chunkStorage.getChunks(era)) {
+                ASAPInternalChunk target = lastChunks.get(chunk.getUri());
+                if(target != null
+                        && target.getLength() + chunk.getLength() <= this.policy.getTinyChunkSize()) {
+
+                    Iterator<byte[]> messages = chunk.getMessages();
+                    while(messages.hasNext()) {
+                        target.addMessage(messages.next());
+                    }
+                    // newer meta data
+                    target.clone(chunk);
+                    this.moved(chunk.getLength(), era, target.getEra());
+                    chunk.drop();
+                } else {
+                    lastChunks.put(chunk.getUri(), chunk);
+                }
+            }
+        }
+        chunkStorage.flush();
+    }
+
+    /**
+     * Chunk content moved from one era to another.
+     */
+    private void moved(long length, int fromEra, int toEra) {
+        Long fromSize = this.eraSizes.get(fromEra);
+        if(fromSize != null) this.eraSizes.put(fromEra, fromSize - length);
+        Long toSize = this.eraSizes.get(toEra);
+        if(toSize != null) this.eraSizes.put(toEra, toSize + length);
+    }
+
+    /**
+     * Received chunks are kept in eras of their senders - only maximum age can be applied.
+     */
+    private void removeExpiredReceivedChunks(CharSequence sender) throws IOException {
+        ASAPChunkStorage storage = this.engine.getReceivedChunksStorage(sender);
+        if(!(storage instanceof ASAPInternalChunkStorage)) return;
+
+        long expiryTime = System.currentTimeMillis() - this.policy.getMaxAge();
+        ASAPInternalChunkStorage receivedChunks = (ASAPInternalChunkStorage) storage;
+        for(Integer era : receivedChunks.getEras()) {
+            if(receivedChunks.getEraLastModified(era) < expiryTime) {
+                Log.writeLog(this, this.toString(), "remove expired chunks received from "
+                        + sender + " in era " + era);
+                receivedChunks.dropChunks(era);
+            }
+        }
+    }
+
+    public String toString() {
+        return "compactor: " + this.engine + " | " + this.policy;
+    }
+}
@@ -0,0 +1,125 @@
+package net.sharksystem.asap.engine;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Eras (numeric entries) and sub folders (e.g. senders) of an engine folder - kept in memory. Engine and
+ * storage objects are created quite often - catalogues are shared by all objects in this process.
+ * <br/><br/>
+ * Changes made by this process are announced and applied. Folder is read again if its modification time
+ * differs from the one noticed with last change - someone else changed it. Others can change it in the same
+ * time resolution unit without changing modification time. Folder is read again as long as that unit is not
+ * over when the catalogue was updated.
+ *
+ * @author thsc
+ */
+class ASAPFolderCatalogue {
+    private static final Map<String, ASAPFolderCatalogue> catalogues = new HashMap<>();
+    private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+    private final File folder;
+    /** modification time of folder when catalogue was last updated - -1: not yet read */
+    private long lastModified = -1;
+    /** time catalogue was last updated */
+    private long knownSince = 0;
+    private Set<Integer> eras = new HashSet<>();
+    private Set<String> subFolders = new HashSet<>();
+
+    private ASAPFolderCatalogue(File folder) {
+        this.folder = folder;
+    }
+
+    static ASAPFolderCatalogue getCatalogue(String folderName) {
+        File folder = new File(folderName).getAbsoluteFile();
+        String key = folder.toPath().normalize().toString();
+
+        synchronized(catalogues) {
+            ASAPFolderCatalogue catalogue = catalogues.get(key);
+            if(catalogue == null) {
+                catalogue = new ASAPFolderCatalogue(folder);
+                catalogues.put(key, catalogue);
+            }
+            return catalogue;
+        }
+    }
+
+    private void validate() {
+        long folderLastModified = this.folder.lastModified();
+        if(this.lastModified != -1 && folderLastModified == this.lastModified
+                // any later change would have changed modification time
+                && this.knownSince - this.lastModified > MODIFICATION_TIME_GRANULARITY) return;
+
+        // first call, changed from outside or could have been changed without changing modification time
+        this.knownSince = System.currentTimeMillis();
+        Set<Integer> eras = new HashSet<>();
+        Set<String> subFolders = new HashSet<>();
+        String[] dirEntries = this.folder.list();
+        if(dirEntries != null) {
+            for(String fileName : dirEntries) {
+                try {
+                    eras.add(Integer.parseInt(fileName));
+                } catch (NumberFormatException e) {
+                    if(new File(this.folder, fileName).isDirectory()) subFolders.add(fileName);
+                }
+            }
+        }
+
+        this.eras = eras;
+        this.subFolders = subFolders;
+        this.lastModified = folderLastModified;
+    }
+
+    /**
+     * @return eras - numeric entries in folder
+     */
+    synchronized Collection<Integer> getEras() {
+        this.validate();
+        return new HashSet<>(this.eras);
+    }
+
+    /**
+     * @return names of sub folders that are no eras
+     */
+    synchronized Collection<String> getSubFolders() {
+        this.validate();
+        return new HashSet<>(this.subFolders);
+    }
+
+    /**
+     * this process created an era folder
+     */
+    synchronized void eraAdded(int era) {
+        // not read yet - will be read with first use anyway
+        if(this.lastModified == -1) return;
+        this.eras.add(era);
+        this.changed();
+    }
+
+    /**
+     * this process removed an era folder
+     */
+    synchronized void eraRemoved(int era) {
+        if(this.lastModified == -1) return;
+        this.eras.remove(era);
+        this.changed();
+    }
+
+    /**
+     * this process created a sub folder
+     */
+    synchronized void subFolderAdded(String name) {
+        if(this.lastModified == -1) return;
+        this.subFolders.add(name);
+        this.changed();
+    }
+
+    private void changed() {
+        this.knownSince = System.currentTimeMillis();
+        this.lastModified = this.folder.lastModified();
+    }
+
+    public String toString() {
+        return "catalogue: " + this.folder + " | eras: " + this.eras + " | sub folders: " + this.subFolders;
+    }
+}
@@ -1,44 +1,50 @@
 package net.sharksystem.asap.engine;
 
 import net.sharksystem.asap.ASAPUtils;
-import net.sharksystem.utils.Utils;
 import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.ASAPMessages;
 import net.sharksystem.utils.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * @author thsc
  */
 class ASAPInMemoMessages implements ASAPMessages {
-    public static final int DEFAULT_MAX_CACHE_SIZE = 1000;
     private final CharSequence uri;
-    private final ASAPChunkStorageFS chunkStorage;
+    private final ASAPInternalChunkStorage chunkStorage;
     private final int fromEra;
     private final int toEra;
     private final String format;
+    /** identifies storage in message cache */
+    private final Object cacheKey;
 
     private List<ASAPInternalChunk> chunkList;
 
-    /** the internal message Cache */
-    private List<byte[]> messageCache;
-    private int firstIndexMessageCache = -1;
-    private int lastIndexMessageCache = -1;
-    private int maxCacheLen;
+    /** absolute position of first message of each chunk in chunkList - sorted, empty chunks repeat a value */
+    private int[] firstPositions = new int[0];
 
     private int numberOfMessages = 0;
 
-    public ASAPInMemoMessages(ASAPChunkStorageFS chunkStorage,
-                              String format, CharSequence uri, int fromEra, int toEra, int maxCacheLen) {
+    /**
+     * @param cacheKey identifies chunk storage in message cache - same key for all storage objects on the same
+     *                 chunks.
+     * @see ASAPMessageCache
+     */
+    public ASAPInMemoMessages(ASAPInternalChunkStorage chunkStorage, Object cacheKey,
+                              String format, CharSequence uri, int fromEra, int toEra) {
 
+        this.cacheKey = cacheKey;
         this.format = format;
         this.uri = uri;
         this.chunkStorage = chunkStorage;
         this.fromEra = fromEra;
         this.toEra = toEra;
-        this.maxCacheLen = maxCacheLen;
 
         Log.writeLog(this, this.toString());
     }
@@ -49,13 +55,7 @@ class ASAPInMemoMessages implements ASAPMessages {
                 + " | uri: " + uri
                 + " | fromEra: " + fromEra
                 + " | toEra: " + toEra
-                + " | rootDir: " + chunkStorage.getRootDirectory();
-    }
-
-    public ASAPInMemoMessages(ASAPChunkStorageFS chunkStorage,
-                              String format, CharSequence uri, int fromEra, int toEra) {
-
-        this(chunkStorage, format, uri, fromEra, toEra, DEFAULT_MAX_CACHE_SIZE);
+                + " | storage: " + chunkStorage;
     }
 
     private boolean initialized = false;
@@ -69,7 +69,7 @@ class ASAPInMemoMessages implements ASAPMessages {
 
     private void syncChunkList() throws IOException {
         // get all chunks in chronological order
-        Collection<Integer> erasInFolder = Utils.getErasInFolder(this.chunkStorage.getRootDirectory());
+        Collection<Integer> erasInFolder = this.chunkStorage.getEras();
         if(erasInFolder.isEmpty()) return;
 
         Collection<Integer> erasToUse = ASAPUtils.getErasInRange(erasInFolder, this.fromEra, this.toEra);
@@ -98,7 +98,6 @@ class ASAPInMemoMessages implements ASAPMessages {
                 Log.writeLog(this, "getChunk with era: " + thisEra);
                 ASAPInternalChunk chunk = this.chunkStorage.getChunk(this.uri, thisEra);
                 this.chunkList.add(chunk);
-                this.numberOfMessages += chunk.getNumberMessage();
             }
 
             /*
@@ -113,6 +112,60 @@ class ASAPInMemoMessages implements ASAPMessages {
         } while (anotherLoop);
              */
         }
+
+        // prefix sum of message numbers - ask each chunk only once
+        this.firstPositions = new int[this.chunkList.size()];
+        for(int i = 0; i < this.chunkList.size(); i++) {
+            this.firstPositions[i] = this.numberOfMessages;
+            this.numberOfMessages += this.chunkList.get(i).getNumberMessage();
+        }
+    }
+
+    /**
+     * @return era, number of messages and length of each chunk - changes if any chunk changes in size
+     */
+    long[] getFingerprint() throws IOException {
+        this.initialize();
+        if(this.chunkList == null) return new long[0];
+
+        long[] fingerprint = new long[3 * this.chunkList.size()];
+        int i = 0;
+        for(ASAPInternalChunk chunk : this.chunkList) {
+            fingerprint[i++] = chunk.getEra();
+            fingerprint[i++] = chunk.getNumberMessage();
+            fingerprint[i++] = chunk.getLength();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @param position absolute position in chronological order - must be a valid position
+     * @return index in chunkList of chunk with message on that position
+     */
+    private int findChunkIndex(int position) {
+        // last chunk starting at or before position - empty chunks are skipped that way
+        int low = 0;
+        int high = this.firstPositions.length - 1;
+        while(low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(this.firstPositions[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return absolute position in chronological order
+     */
+    private int getChronologicalPosition(int position, boolean chronologically) throws ASAPException {
+        if(position < 0 || position >= this.numberOfMessages)
+            throw new ASAPException("Position reaches beyond total number of messages in this chunk (is it even empty?)");
+
+        // invert position - first becomes last etc.
+        return chronologically ? position : this.numberOfMessages - 1 - position;
     }
 
     public int size() throws IOException {
@@ -140,7 +193,18 @@ class ASAPInMemoMessages implements ASAPMessages {
     public Iterator<byte[]> getMessages() throws IOException {
         this.initialize();
 
-        return new ChunkListByteMessageIterator(this.chunkList);
+        return new ChunkListByteMessageIterator(this.chunkList, true);
+    }
+
+    @Override
+    public Iterator<byte[]> getMessages(boolean chronologically) throws IOException {
+        this.initialize();
+        if(chronologically || this.chunkList == null) return new ChunkListByteMessageIterator(this.chunkList, true);
+
+        // newest chunk first - each chunk delivers newest message first
+        List<ASAPInternalChunk> reverseChunkList = new ArrayList<>(this.chunkList);
+        Collections.reverse(reverseChunkList);
+        return new ChunkListByteMessageIterator(reverseChunkList, false);
     }
 
     @Override
@@ -151,27 +215,8 @@ class ASAPInMemoMessages implements ASAPMessages {
     public ASAPInternalChunk getChunk(int position, boolean chronologically) throws IOException, ASAPException {
         this.initialize();
 
-        if(position >= this.numberOfMessages)
-            throw new ASAPException("Position reaches beyond total number of messages in this chunk (is it even empty?)");
-
-        if(!chronologically) {
-            // invert position - first becomes last etc.
-            position = this.numberOfMessages - 1 - position;
-        }
-
-        ASAPInternalChunk foundChunk = null;
-        // find chunk
-        for(ASAPInternalChunk chunk : this.chunkList) {
-            if(position < chunk.getNumberMessage()) {
-                foundChunk = chunk;
-                break;
-            }
-
-            position -= chunk.getNumberMessage();
-        }
-
-        if(foundChunk == null) throw new ASAPException("cannot find chunk for position - looks like a bug");
-        return foundChunk;
+        position = this.getChronologicalPosition(position, chronologically);
+        return this.chunkList.get(this.findChunkIndex(position));
     }
 
     @Override
@@ -180,109 +225,71 @@ class ASAPInMemoMessages implements ASAPMessages {
 
         this.initialize();
 
-        if(position >= this.numberOfMessages)
-            throw new ASAPException("Position reaches beyond total number of messages in this chunk (is it even empty?)");
-
-        if(!chronologically) {
-            // invert position - first becomes last etc.
-            position = this.numberOfMessages - 1 - position;
-        }
-
-        if(this.messageCache != null && position >= this.firstIndexMessageCache && position <= this.lastIndexMessageCache) {
-            return this.messageCache.get(position - this.firstIndexMessageCache);
-        }
-
-        // not yet in cache - find chunk with required message
-        int firstIndex = 0; // absolut index of first message in current chunk
-        int lastIndex = 0; // absolut index of last message in current chunk
+        position = this.getChronologicalPosition(position, chronologically);
+        int chunkIndex = this.findChunkIndex(position);
 
-        boolean found = false;
-        ASAPInternalChunk fittingChunk = null;
-        int fittingChunkIndex = 0;
+        ASAPInternalChunk chunk = this.chunkList.get(chunkIndex);
+        int index = position - this.firstPositions[chunkIndex];
 
-        for(ASAPInternalChunk chunk : this.chunkList) {
-            lastIndex = firstIndex + chunk.getNumberMessage() - 1;
-
-            if(position >= firstIndex && position <= lastIndex) {
-                // we have got our chunk
-                fittingChunk = chunk;
-                break;
-            }
-
-            firstIndex += chunk.getNumberMessage();
-            fittingChunkIndex++;
+        ASAPMessageCache messageCache = ASAPMessageCache.getMessageCache();
+        byte[] message = messageCache.get(this.cacheKey, chunk.getEra(), this.uri, index);
+        if(message == null) {
+            // read only that message
+            message = chunk.getMessage(index);
+            messageCache.put(this.cacheKey, chunk.getEra(), this.uri, index, message);
         }
 
-        if(fittingChunk == null) {
-            throw new ASAPException("internal failure - wrong calculation in chunk cache");
-        }
-
-        // we can fill our cache right now
+        // cached array is shared by all readers in this process - must not be changed by caller
+        return message.clone();
+    }
 
-        // reset cache
-        this.messageCache = new ArrayList<>();
+    @Override
+    public ByteBuffer getMessageBuffer(int position, boolean chronologically) throws ASAPException, IOException {
+        this.initialize();
 
-        /////////////////////////////////////////////////////////////////
-        // simple approach in that first implementation ... we keep fitting chunk in memory
-        /////////////////////////////////////////////////////////////////
+        position = this.getChronologicalPosition(position, chronologically);
+        int chunkIndex = this.findChunkIndex(position);
+        ASAPInternalChunk chunk = this.chunkList.get(chunkIndex);
+        int index = position - this.firstPositions[chunkIndex];
 
-//        Iterator<CharSequence> messages = fittingChunk.getMessagesAsCharSequence();
-        Iterator<byte[]> messages = fittingChunk.getMessages();
+        // already on heap?
+        byte[] message = ASAPMessageCache.getMessageCache().get(this.cacheKey, chunk.getEra(), this.uri, index);
+        if(message != null) return ByteBuffer.wrap(message).asReadOnlyBuffer();
 
-        // chunk bigger than max cache size?
-        int chunkSize = fittingChunk.getNumberMessage();
-        if(chunkSize > this.maxCacheLen) {
-            // calculate how many messages to skip before caching
+        return chunk.getMessageBuffer(index);
+    }
 
-            /*
-            situation:
-            chunk head |................position...........................| tail
-            cache head |................| tail
-
-            solution: put position in middle of the cache
-            chunk |................position...........................|
-            planned cache |........position........|
-            skipLen...|
-             */
+    @Override
+    public InputStream openMessageStream(int position, boolean chronologically) throws ASAPException, IOException {
+        this.initialize();
 
-            int skipLen = position - (this.maxCacheLen / 2);
+        position = this.getChronologicalPosition(position, chronologically);
+        int chunkIndex = this.findChunkIndex(position);
+        ASAPInternalChunk chunk = this.chunkList.get(chunkIndex);
+        int index = position - this.firstPositions[chunkIndex];
 
-            // first index in cache will be this one:
-            firstIndex += skipLen;
+        // already on heap?
+        byte[] message = ASAPMessageCache.getMessageCache().get(this.cacheKey, chunk.getEra(), this.uri, index);
+        if(message != null) return new ByteArrayInputStream(message);
 
-            // skip
-            for(;skipLen > 0; skipLen--) {
-                this.messageCache.add(messages.next());
-            }
-        }
+        // large messages are meant to be streamed - not put into cache
+        return chunk.openMessageStream(index);
+    }
 
-        this.firstIndexMessageCache = firstIndex;
+    @Override
+    public void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        this.initialize();
+        if(this.chunkList == null) return;
 
-        int counter = 0;
-        while(messages.hasNext()) {
-            this.messageCache.add(messages.next());
-            counter++;
-            if(counter > this.maxCacheLen) break;
+        for(ASAPInternalChunk chunk : this.chunkList) {
+            chunk.forEachMessage(consumer);
         }
-
-        this.lastIndexMessageCache = this.firstIndexMessageCache + counter - 1;
-
-        // cache filled - call again
-        /* not: it is always chronologically true!!
-        a) we already came in with true -> it remains true
-        b) we came with false -> we have already recalculated that position, we would
-        move it around again with that call - keep position unchanged: true!
-         */
-
-        return this.getMessage(position, true);
     }
 
     public void sync() throws IOException {
         this.initialized = false;
-        this.firstIndexMessageCache = -1;
-        this.lastIndexMessageCache = -1;
         this.numberOfMessages = 0;
-        this.messageCache = null;
+        this.firstPositions = new int[0];
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////
@@ -291,13 +298,15 @@ class ASAPInMemoMessages implements ASAPMessages {
 
     private abstract class ChunkListIterator<T> {
         private final List<ASAPInternalChunk> chunkList;
+        protected final boolean chronologically;
         private ASAPInternalChunk currentChunk;
         private int nextIndex;
         private Iterator<T> currentIterator;
         private T messageAhead;
 
-        public ChunkListIterator(List<ASAPInternalChunk> chunkList) throws IOException {
+        public ChunkListIterator(List<ASAPInternalChunk> chunkList, boolean chronologically) throws IOException {
             this.chunkList = chunkList;
+            this.chronologically = chronologically;
             this.currentChunk = null;
             this.nextIndex = 0;
             this.messageAhead = null; // mark as empty
@@ -359,7 +368,7 @@ class ASAPInMemoMessages implements ASAPMessages {
         private CharSequence messageAhead;
 
         public ChunkListMessageIterator(List<ASAPInternalChunk> chunkList) throws IOException {
-            super(chunkList);
+            super(chunkList, true);
         }
 
         @Override
@@ -372,13 +381,14 @@ class ASAPInMemoMessages implements ASAPMessages {
         private Iterator<CharSequence> currentIterator;
         private CharSequence messageAhead;
 
-        public ChunkListByteMessageIterator(List<ASAPInternalChunk> chunkList) throws IOException {
-            super(chunkList);
+        public ChunkListByteMessageIterator(List<ASAPInternalChunk> chunkList, boolean chronologically)
+                throws IOException {
+            super(chunkList, chronologically);
         }
 
         @Override
         Iterator<byte[]> getMessageIterator(ASAPInternalChunk chunk) throws IOException {
-            return chunk.getMessages();
+            return chunk.getMessages(this.chronologically);
         }
     }
 }
@@ -3,11 +3,15 @@ package net.sharksystem.asap.engine;
 import net.sharksystem.asap.*;
 import net.sharksystem.asap.protocol.ASAP_AssimilationPDU_1_0;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.function.Consumer;
 
 public class ASAPInMemoTransientMessages implements ASAPMessages, MessagesContainer {
     private final CharSequence format;
@@ -65,6 +69,24 @@ public class ASAPInMemoTransientMessages implements ASAPMessages, MessagesContai
         return this.messageList.iterator();
     }
 
+    @Override
+    public Iterator<byte[]> getMessages(boolean chronologically) throws IOException {
+        if(chronologically) return this.getMessages();
+
+        final ListIterator<byte[]> listIterator = this.messageList.listIterator(this.messageList.size());
+        return new Iterator<byte[]>() {
+            @Override
+            public boolean hasNext() {
+                return listIterator.hasPrevious();
+            }
+
+            @Override
+            public byte[] next() {
+                return listIterator.previous();
+            }
+        };
+    }
+
     @Override
     public CharSequence getMessageAsCharSequence(int position, boolean chronologically) throws ASAPException, IOException {
         return new String(this.getMessage(position, chronologically));
@@ -80,6 +102,23 @@ public class ASAPInMemoTransientMessages implements ASAPMessages, MessagesContai
         return this.messageList.get(index);
     }
 
+    @Override
+    public ByteBuffer getMessageBuffer(int position, boolean chronologically) throws ASAPException, IOException {
+        return ByteBuffer.wrap(this.getMessage(position, chronologically)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public InputStream openMessageStream(int position, boolean chronologically) throws ASAPException, IOException {
+        return new ByteArrayInputStream(this.getMessage(position, chronologically));
+    }
+
+    @Override
+    public void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        for(byte[] message : this.messageList) {
+            consumer.accept(ByteBuffer.wrap(message).asReadOnlyBuffer());
+        }
+    }
+
     @Override
     public ASAPChunk getChunk(int position, boolean chronologically) throws IOException, ASAPException {
         throw new ASAPException("transient message are not stored");
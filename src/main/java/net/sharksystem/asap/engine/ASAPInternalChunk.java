@@ -57,6 +57,21 @@ public interface ASAPInternalChunk extends ASAPChunk, MessagesContainer {
      */
     void removeRecipient(CharSequence recipients) throws IOException;
 
+    /**
+     * Read a single message without reading preceding messages
+     * @param index message index in this chunk, starting with 0
+     * @return message
+     * @throws IOException index out of range or message cannot be read
+     */
+    byte[] getMessage(int index) throws IOException;
+
+    /**
+     * @param chronologically true: oldest message comes first, false: newest message comes first
+     * @return iterator of all messages in the chunk
+     * @throws IOException
+     */
+    Iterator<byte[]> getMessages(boolean chronologically) throws IOException;
+
     long getLength();
 
     List<Long> getOffsetList();
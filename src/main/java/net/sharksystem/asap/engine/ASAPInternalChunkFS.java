@@ -5,11 +5,25 @@ import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.ASAPHop;
 import net.sharksystem.asap.utils.ASAPSerialization;
 import net.sharksystem.asap.utils.ASAPLogHelper;
+import net.sharksystem.fs.Durability;
 import net.sharksystem.utils.Log;
 import net.sharksystem.utils.SerializationHelper;
 
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  *
@@ -18,6 +32,7 @@ import java.util.*;
 public class ASAPInternalChunkFS implements ASAPInternalChunk {
     public static final String META_DATA_EXTENSION = "meta";
     public static final String DATA_EXTENSION = "content";
+    public static final String INDEX_EXTENSION = "idx";
     public static final String DEFAULT_URL = "content://sharksystem.net/noContext";
     private final ASAPChunkStorageFS storage;
     private String sender;
@@ -25,8 +40,44 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
     private Set<CharSequence> recipients;
     private List<CharSequence> deliveredTo;
     private List<Long> messageStartOffsets = new ArrayList<>();
+    private int numberMessages = 0;
+    private long contentLength = 0;
     private File metaFile;
     private File messageFile;
+    private File indexFile;
+    private String trunkName;
+
+    /*
+    Message offsets are kept in a binary index file which is only appended. Layout:
+    header: int INDEX_MAGIC | int INDEX_VERSION | long chunk id (random, chosen when index is created)
+    followed by one long per message: offset of first byte of that message in content file.
+    Offset lists of older versions were part of meta data - see readMetaData and migrateOffsetsFromMetaData.
+
+    Compressed chunks (version 2): each message is a deflate frame of its own in content file. Index entries are
+    long offset of frame in content file | int (uncompressed) message length.
+    Version 3: same layout, but messages that would not shrink are stored as they are - a frame as long as its
+    message is stored, deflate frames are always shorter.
+     */
+    private static final int INDEX_MAGIC = 0x41534958; // ASIX
+    private static final int INDEX_VERSION = 1;
+    private static final int COMPRESSED_INDEX_VERSION = 2;
+    private static final int STORED_FRAMES_INDEX_VERSION = 3;
+    private static final int INDEX_HEADER_LENGTH = 16;
+    private static final int INDEX_ENTRY_LENGTH = 8;
+    private static final int COMPRESSED_INDEX_ENTRY_LENGTH = 12;
+
+    /** messages are stored in deflate frames - offsets and length refer to uncompressed messages */
+    private boolean compressed = false;
+    /** compressed only: messages that would not shrink are stored uncompressed */
+    private boolean storedFrames = false;
+    /** compressed only: position of each message frame in content file */
+    private List<Long> frameOffsets = new ArrayList<>();
+    /** compressed only: length of content file as written or read by this object */
+    private long compressedLength = 0;
+
+    private long chunkID;
+    /** offset list found in meta data written by previous versions - null if none */
+    private List<Long> legacyMessageStartOffsets = null;
 
     private List<ASAPHop> hopList;
     
@@ -36,23 +87,24 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
 
 
     @Override
-    public void clone(ASAPInternalChunk chunkSource) throws IOException {
+    public synchronized void clone(ASAPInternalChunk chunkSource) throws IOException {
         if(metaFile.getAbsolutePath().contains("ultihopTests/Alice_42/1/sha")) {
             Log.writeLog(this, this.toString(), "DEBUGGING_Multihop_Bug #2: " + metaFile.exists());
         }
 
         this.uri = chunkSource.getUri();
-        this.recipients = chunkSource.getRecipients();
-        this.extraData = chunkSource.getExtraData();
+        // copies - chunk objects are kept and reused by chunk storage
+        this.setRecipientsWithoutSaving(chunkSource.getRecipients());
+        this.extraData = new HashMap<>(chunkSource.getExtraData());
 
         this.saveStatus();
     }
 
     @Override
-    public void copyMetaData(ASAPChannel channel) throws IOException {
+    public synchronized void copyMetaData(ASAPChannel channel) throws IOException {
         this.uri = channel.getUri().toString();
-        this.recipients = channel.getRecipients();
-        this.extraData = channel.getExtraData();
+        this.setRecipientsWithoutSaving(channel.getRecipients());
+        this.extraData = new HashMap<>(channel.getExtraData());
 
         this.saveStatus();
     }
@@ -62,7 +114,7 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
         return this.hopList;
     }
 
-    public void setASAPHopList(List<ASAPHop> asapHopList) throws IOException {
+    public synchronized void setASAPHopList(List<ASAPHop> asapHopList) throws IOException {
         this.hopList = asapHopList;
         this.saveStatus();
     }
@@ -72,7 +124,7 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
     }
 
     @Override
-    public void deliveredTo(String peer) throws IOException {
+    public synchronized void deliveredTo(String peer) throws IOException {
         this.deliveredTo.add(peer);
         this.saveStatus();
     }
@@ -104,16 +156,26 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
     public ASAPInternalChunkFS(ASAPChunkStorageFS storage, String trunkName) throws IOException {
         this.storage = storage;
         this.uri = ASAPInternalChunkFS.DEFAULT_URL;
-        
+
+        // chunks are stored in era folders
+        try {
+            this.era = Integer.parseInt(new File(trunkName).getParentFile().getName());
+        } catch (RuntimeException e) {
+            // no era folder - keep default
+        }
+
         this.initFiles(trunkName);
     }
 
     private void initFiles(String trunkName) throws IOException {
         String messageFileName = trunkName + "." +  DATA_EXTENSION;
         String metaFileName = trunkName + "." + META_DATA_EXTENSION;
+        String indexFileName = trunkName + "." + INDEX_EXTENSION;
 
         this.messageFile = new File(messageFileName);
         this.metaFile = new File(metaFileName);
+        this.indexFile = new File(indexFileName);
+        this.trunkName = trunkName;
         
         // init meta file - message file keeps untouched (good idea?)
         if(!this.metaFile.exists()) {
@@ -136,11 +198,295 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
             this.messageStartOffsets = new ArrayList<>();
             this.hopList = new ArrayList<>();
         }
+
+        this.readIndex();
     }
-    
-    private void saveStatus() throws IOException {
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                   message offset index                               //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    private void readIndex() throws IOException {
+        this.messageStartOffsets = new ArrayList<>();
+        this.frameOffsets = new ArrayList<>();
+        this.numberMessages = 0;
+        this.contentLength = this.messageFile.length();
+        this.compressedLength = this.contentLength;
+
+        // chunks without content are set up as storage demands - existing ones keep their format
+        this.compressed = this.contentLength == 0 && this.storage != null && this.storage.isCompression();
+        this.storedFrames = this.compressed;
+
+        if(!this.indexFile.exists()) {
+            this.migrateOffsetsFromMetaData();
+            return;
+        }
+
+        long indexLength = this.indexFile.length();
+        if(indexLength < INDEX_HEADER_LENGTH) {
+            // nothing useful written - start over
+            this.indexFile.delete();
+            this.migrateOffsetsFromMetaData();
+            return;
+        }
+
+        long entries;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+        try {
+            if(dis.readInt() != INDEX_MAGIC) {
+                throw new IOException("not a chunk index file: " + this.indexFile);
+            }
+            int version = dis.readInt();
+            if(version != INDEX_VERSION && version != COMPRESSED_INDEX_VERSION
+                    && version != STORED_FRAMES_INDEX_VERSION) {
+                throw new IOException("unsupported chunk index version (" + version + "): " + this.indexFile);
+            }
+            this.compressed = version != INDEX_VERSION;
+            this.storedFrames = version == STORED_FRAMES_INDEX_VERSION;
+            this.chunkID = dis.readLong();
+
+            entries = (indexLength - INDEX_HEADER_LENGTH) / this.getIndexEntryLength();
+            if(entries > Integer.MAX_VALUE) {
+                throw new IOException("chunk index exceeds maximum number of messages: " + this.indexFile);
+            }
+
+            long messageOffset = 0;
+            for(long i = 0; i < entries; i++) {
+                if(this.compressed) {
+                    this.frameOffsets.add(dis.readLong());
+                    if(i > 0) this.messageStartOffsets.add(messageOffset);
+                    messageOffset += dis.readInt();
+                } else {
+                    long offset = dis.readLong();
+                    // first message starts at 0 - offset list keeps only following messages
+                    if(i > 0) this.messageStartOffsets.add(offset);
+                }
+            }
+            this.numberMessages = (int) entries;
+            if(this.compressed) this.contentLength = messageOffset;
+        }
+        finally {
+            dis.close();
+        }
+
+        // an interrupted append can leave an incomplete entry - remove it
+        long completeLength = INDEX_HEADER_LENGTH + entries * this.getIndexEntryLength();
+        if(completeLength < indexLength) {
+            Log.writeLog(this, this.toString(), "remove incomplete entry from index: " + this.indexFile);
+            RandomAccessFile raf = new RandomAccessFile(this.indexFile, "rw");
+            try {
+                raf.setLength(completeLength);
+            }
+            finally {
+                raf.close();
+            }
+        }
+        this.rememberIndexFileStatus();
+    }
+
+    private int getIndexEntryLength() {
+        return this.compressed ? COMPRESSED_INDEX_ENTRY_LENGTH : INDEX_ENTRY_LENGTH;
+    }
+
+    /**
+     * Previous versions kept offsets in meta data. Write an index file once and drop
+     * offsets from meta data afterwards.
+     */
+    private void migrateOffsetsFromMetaData() throws IOException {
+        List<Long> legacyOffsets = this.legacyMessageStartOffsets;
+        this.legacyMessageStartOffsets = null;
+
+        if(!this.messageFile.exists() || this.messageFile.length() == 0) {
+            // no messages - index is written with first message
+            return;
+        }
+        this.compressed = false;
+
+        Log.writeLog(this, this.toString(), "create message index from meta data: " + this.indexFile);
+        this.appendIndexEntry(0);
+        if(legacyOffsets != null) {
+            for(Long offset : legacyOffsets) {
+                this.appendIndexEntry(offset);
+            }
+        }
+
+        // offsets are in index now - remove them from meta data
         this.writeMetaData(this.metaFile);
     }
+
+    private void appendIndexEntry(long offset) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeLong(offset);
+        dos.close();
+        this.appendToIndex(baos.toByteArray());
+
+        if(this.numberMessages > 0) {
+            this.messageStartOffsets.add(offset);
+        }
+        this.numberMessages++;
+    }
+
+    private void appendCompressedIndexEntry(long frameOffset, int length) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeLong(frameOffset);
+        dos.writeInt(length);
+        dos.close();
+        this.appendToIndex(baos.toByteArray());
+
+        if(this.numberMessages > 0) {
+            this.messageStartOffsets.add(this.contentLength);
+        }
+        this.frameOffsets.add(frameOffset);
+        this.numberMessages++;
+    }
+
+    private void appendToIndex(byte[] entry) throws IOException {
+        boolean writeHeader = !this.indexFile.exists() || this.indexFile.length() < INDEX_HEADER_LENGTH;
+        if(writeHeader) {
+            // discard incomplete header if any
+            this.indexFile.delete();
+            this.chunkID = new Random().nextLong();
+        }
+
+        FileOutputStream fos = new FileOutputStream(this.indexFile, true);
+        try {
+            DataOutputStream dos = new DataOutputStream(fos);
+            if(writeHeader) {
+                dos.writeInt(INDEX_MAGIC);
+                dos.writeInt(!this.compressed ? INDEX_VERSION
+                        : this.storedFrames ? STORED_FRAMES_INDEX_VERSION : COMPRESSED_INDEX_VERSION);
+                dos.writeLong(this.chunkID);
+            }
+            dos.write(entry);
+            Durability.written(fos, this.indexFile);
+        }
+        finally {
+            fos.close();
+        }
+        this.rememberIndexFileStatus();
+    }
+    
+    /** meta data changed but not yet written (write behind) */
+    private boolean dirty = false;
+
+    private synchronized void saveStatus() throws IOException {
+        if(this.storage != null && this.storage.isWriteBehind()) {
+            // storage writes it later
+            this.dirty = true;
+            this.storage.metaDataChanged(this);
+        } else {
+            this.writeMetaData(this.metaFile);
+        }
+    }
+
+    /**
+     * Write meta data that are changed but not yet written. Nothing happens if storage does
+     * not write behind.
+     * @throws IOException
+     * @see ASAPChunkStorageFS#setWriteBehind(boolean, long)
+     */
+    public synchronized void flush() throws IOException {
+        if(this.dirty) {
+            this.writeMetaData(this.metaFile);
+            this.dirty = false;
+        }
+    }
+
+    String getTrunkName() {
+        return this.trunkName;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                   up to date check                                   //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    /** file systems keep modification times in that granularity (ms) - at least */
+    private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+    /** meta data as they are in meta file - written or read by this object */
+    private byte[] metaDataInFile = null;
+    private long metaFileLastModified = -1;
+    private long metaFileKnownSince = 0;
+
+    /** index file as written or read by this object */
+    private long indexFileLastModified = -1;
+    private long indexFileKnownSince = 0;
+
+    private void rememberMetaFileStatus(byte[] metaData) {
+        this.metaDataInFile = metaData;
+        this.metaFileLastModified = this.metaFile.lastModified();
+        this.metaFileKnownSince = System.currentTimeMillis();
+    }
+
+    private void rememberIndexFileStatus() {
+        this.indexFileLastModified = this.indexFile.lastModified();
+        this.indexFileKnownSince = System.currentTimeMillis();
+    }
+
+    private boolean metaFileUnchanged() {
+        if(this.metaDataInFile == null
+                || this.metaFile.lastModified() != this.metaFileLastModified
+                || this.metaFile.length() != this.metaDataInFile.length) return false;
+
+        // any later write would have changed modification time
+        if(this.metaFileKnownSince - this.metaFileLastModified > MODIFICATION_TIME_GRANULARITY) return true;
+
+        // could have been written again without changing attributes - meta data are small, compare them
+        try {
+            long now = System.currentTimeMillis();
+            if(!Arrays.equals(Files.readAllBytes(this.metaFile.toPath()), this.metaDataInFile)) return false;
+            this.metaFileKnownSince = now;
+            return true;
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    private boolean indexFileUnchanged() {
+        // no index - lengths tell
+        if(this.numberMessages == 0) return true;
+
+        if(this.indexFile.lastModified() != this.indexFileLastModified) return false;
+
+        // any later write would have changed modification time
+        if(this.indexFileKnownSince - this.indexFileLastModified > MODIFICATION_TIME_GRANULARITY) return true;
+
+        // chunk could have been dropped and written again - each index gets a new id
+        try {
+            long now = System.currentTimeMillis();
+            DataInputStream dis = new DataInputStream(new FileInputStream(this.indexFile));
+            try {
+                dis.skipBytes(INDEX_HEADER_LENGTH - 8);
+                if(dis.readLong() != this.chunkID) return false;
+            }
+            finally {
+                dis.close();
+            }
+            this.indexFileKnownSince = now;
+            return true;
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if files were not changed by someone else since this object wrote or read them.
+     * Timestamp and length are compared. Files are only read if they were written within granularity
+     * of file modification time: meta data are compared and id of index is checked.
+     */
+    boolean isUpToDate() {
+        long expectedIndexLength = this.numberMessages == 0 ?
+                0 : INDEX_HEADER_LENGTH + (long)this.numberMessages * this.getIndexEntryLength();
+
+        return this.indexFile.length() == expectedIndexLength
+                && this.messageFile.length() == (this.compressed ? this.compressedLength : this.contentLength)
+                && this.metaFileUnchanged()
+                && this.indexFileUnchanged();
+    }
     
     @Override
     public Set<CharSequence> getRecipients() {
@@ -148,27 +494,33 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
     }
 
     @Override
-    public void addRecipient(CharSequence recipient) throws IOException {
+    public synchronized void addRecipient(CharSequence recipient) throws IOException {
+        // null is not written - would make a public chunk look like a private one until read again
+        if(recipient == null) return;
         this.recipients.add(recipient);
-        this.writeMetaData(this.metaFile);
+        this.saveStatus();
     }
 
     @Override
-    public void setRecipients(Collection<CharSequence> newRecipients) throws IOException {
+    public synchronized void setRecipients(Collection<CharSequence> newRecipients) throws IOException {
+        this.setRecipientsWithoutSaving(newRecipients);
+        this.saveStatus();
+    }
+
+    private void setRecipientsWithoutSaving(Collection<CharSequence> newRecipients) {
         this.recipients = new HashSet<>();
-        if(recipients != null) {
+        if(newRecipients != null) {
             for (CharSequence recipient : newRecipients) {
-                this.recipients.add(recipient);
+                // null is not written - see addRecipient
+                if(recipient != null) this.recipients.add(recipient);
             }
         }
-        
-        this.writeMetaData(this.metaFile);
     }
 
     @Override
-    public void removeRecipient(CharSequence recipient) throws IOException {
+    public synchronized void removeRecipient(CharSequence recipient) throws IOException {
         this.recipients.remove(recipient);
-        this.writeMetaData(this.metaFile);
+        this.saveStatus();
     }
 
     @Override
@@ -183,96 +535,645 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
     }
 */
     @Override
-    public void addMessage(byte[] messageAsBytes) throws IOException {
-        if(messageAsBytes.length > Integer.MAX_VALUE) {
-            throw new IOException("message must not be longer than Integer.MAXVALUE");
+    public synchronized void addMessage(byte[] messageAsBytes) throws IOException {
+        if(this.compressed) {
+            this.addCompressedMessage(new ByteArrayInputStream(messageAsBytes), messageAsBytes.length);
+            return;
         }
 
-        InputStream is = new ByteArrayInputStream(messageAsBytes);
+        FileOutputStream fos = this.openMessageFileToAppend();
+        long offset = fos.getChannel().size();
+        boolean written = false;
+        try {
+            fos.write(messageAsBytes);
+            this.contentWritten(messageAsBytes, 0, messageAsBytes.length);
+            Durability.written(fos, this.messageFile);
+            written = true;
+        }
+        finally {
+            if(!written) this.contentDigest = null;
+            fos.close();
+        }
 
-        this.addMessage(is, messageAsBytes.length);
+        this.messageAppended(offset, messageAsBytes.length);
     }
 
-    public void addMessage(InputStream messageByteIS, long length) throws IOException {
-        //Log.writeLog(this, "going to add message to chunkFS" );
-        if(length > Integer.MAX_VALUE) {
-            throw new IOException("message must not be longer than Integer.MAXVALUE");
+    /** size of blocks in which received data are copied into content file */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<>();
+
+    private static byte[] getCopyBuffer() {
+        byte[] buffer = copyBuffer.get();
+        if(buffer == null) {
+            buffer = new byte[COPY_BUFFER_SIZE];
+            copyBuffer.set(buffer);
         }
+        return buffer;
+    }
 
-        long offset = 0;
-        if(!this.messageFile.exists()) {
-            if(!this.messageFile.getParentFile().exists()) {
-                this.messageFile.getParentFile().mkdirs();
-                Log.writeLog(this, "parent folder created: " + this.messageFile.getParentFile().exists());
+    /**
+     * Copy message from stream into content file piece by piece - length is not limited by heap size.
+     * Compressed chunks take messages up to Integer.MAX_VALUE bytes only.
+     */
+    public synchronized void addMessage(InputStream messageByteIS, long length) throws IOException {
+        //Log.writeLog(this, "going to add message to chunkFS" );
+        if(this.compressed) {
+            // index keeps uncompressed length as int
+            if(length > Integer.MAX_VALUE) {
+                throw new IOException("message in compressed chunk must not be longer than Integer.MAXVALUE");
             }
-            this.messageFile.createNewFile();
-        } else {
-            offset = this.messageFile.length();
+            this.addCompressedMessage(messageByteIS, (int) length);
+            return;
         }
+
+        FileOutputStream fos = this.openMessageFileToAppend();
+        long offset = fos.getChannel().size();
         //Log.writeLog(this, "got chunk content file length: " + offset);
 
-        OutputStream os = new FileOutputStream(this.messageFile, true);
-        //Log.writeLog(this, "opened chunk content file to append data");
+        byte[] buffer = getCopyBuffer();
+        boolean written = false;
+        try {
+            long bytesLeft = length;
+            while (bytesLeft > 0) {
+                int read = messageByteIS.read(buffer, 0, (int) Math.min(buffer.length, bytesLeft));
+                if (read == -1) {
+                    // remove incomplete message - next message would start at wrong offset otherwise
+                    fos.getChannel().truncate(offset);
+                    throw new EOFException("stream ended before message was complete: "
+                            + (length - bytesLeft) + " of " + length + " bytes read");
+                }
+                fos.write(buffer, 0, read);
+                this.contentWritten(buffer, 0, read);
+                bytesLeft -= read;
+            }
+            Durability.written(fos, this.messageFile);
+            written = true;
+        }
+        finally {
+            if(!written) this.contentDigest = null;
+            fos.close();
+        }
+
+        this.messageAppended(offset, length);
+    }
 
-        //Log.writeLog(this, "write message to the end of chunk file");
-        while(length-- > 0) {
-            os.write(messageByteIS.read());
+    /** same level for all messages - same message results in same frame */
+    private static final int COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Append message as deflate frame. Messages that fit into copy buffer are compressed in memory - they are
+     * stored as they are if deflate would not shrink them (version 3 chunks).
+     */
+    private void addCompressedMessage(InputStream messageByteIS, int length) throws IOException {
+        if(this.storedFrames && length <= COPY_BUFFER_SIZE) {
+            this.addSmallCompressedMessage(messageByteIS, length);
+            return;
         }
 
-        //Log.writeLog(this, "closing");
-        os.close();
+        FileOutputStream fos = this.openMessageFileToAppend();
+        long frameOffset = fos.getChannel().size();
+        long frameEnd;
 
-        // remember offset if not 0
-        if(offset > 0) {
-            this.messageStartOffsets.add(offset);
-            this.saveStatus();
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        byte[] buffer = getCopyBuffer();
+        boolean written = false;
+        try {
+            // compressed frame is what is kept in file - hash it
+            OutputStream frameOS = this.contentDigest == null ? fos : new DigestOutputStream(fos, this.contentDigest);
+            DeflaterOutputStream dos = new DeflaterOutputStream(frameOS, deflater, buffer.length);
+            int bytesLeft = length;
+            while (bytesLeft > 0) {
+                int read = messageByteIS.read(buffer, 0, Math.min(buffer.length, bytesLeft));
+                if (read == -1) {
+                    // remove incomplete frame
+                    fos.getChannel().truncate(frameOffset);
+                    throw new EOFException("stream ended before message was complete: "
+                            + (length - bytesLeft) + " of " + length + " bytes read");
+                }
+                dos.write(buffer, 0, read);
+                bytesLeft -= read;
+            }
+            dos.finish();
+            Durability.written(fos, this.messageFile);
+            frameEnd = fos.getChannel().size();
+            this.digestedLength += frameEnd - frameOffset;
+            written = true;
+        }
+        finally {
+            if(!written) this.contentDigest = null;
+            deflater.end();
+            fos.close();
+        }
+
+        this.appendCompressedIndexEntry(frameOffset, length);
+        this.contentLength += length;
+        this.compressedLength = frameEnd;
+    }
+
+    private void addSmallCompressedMessage(InputStream messageByteIS, int length) throws IOException {
+        byte[] message = getCopyBuffer();
+        int messageLength = 0;
+        while(messageLength < length) {
+            int read = messageByteIS.read(message, messageLength, length - messageLength);
+            if(read == -1) {
+                throw new EOFException("stream ended before message was complete: "
+                        + messageLength + " of " + length + " bytes read");
+            }
+            messageLength += read;
+        }
+
+        // deflate frame is kept only if it is shorter than message
+        byte[] frame = new byte[length];
+        int frameLength = 0;
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try {
+            deflater.setInput(message, 0, length);
+            deflater.finish();
+            while(!deflater.finished() && frameLength < length) {
+                frameLength += deflater.deflate(frame, frameLength, length - frameLength);
+            }
+            if(!deflater.finished() || frameLength >= length) {
+                frame = message;
+                frameLength = length;
+            }
+        }
+        finally {
+            deflater.end();
         }
+
+        FileOutputStream fos = this.openMessageFileToAppend();
+        long frameOffset = fos.getChannel().size();
+        boolean written = false;
+        try {
+            fos.write(frame, 0, frameLength);
+            this.contentWritten(frame, 0, frameLength);
+            Durability.written(fos, this.messageFile);
+            written = true;
+        }
+        finally {
+            if(!written) this.contentDigest = null;
+            fos.close();
+        }
+
+        this.appendCompressedIndexEntry(frameOffset, length);
+        this.contentLength += length;
+        this.compressedLength = frameOffset + frameLength;
+    }
+
+    /** hash of content file while it is written - null: not written from start by this object or write failed */
+    private MessageDigest contentDigest = null;
+    /** bytes fed into content digest */
+    private long digestedLength = 0;
+
+    private void contentWritten(byte[] content, int offset, int length) {
+        if(this.contentDigest != null) {
+            this.contentDigest.update(content, offset, length);
+            this.digestedLength += length;
+        }
+    }
+
+    private FileOutputStream openMessageFileToAppend() throws IOException {
+        ASAPContentStore contentStore = this.storage == null ? null : this.storage.getContentStore();
+        if(contentStore != null) {
+            if(!this.messageFile.exists() || this.messageFile.length() == 0) {
+                // hash content while it is written - it is not read again to be shared
+                this.contentDigest = ASAPContentStore.createDigest();
+                this.digestedLength = 0;
+            } else if(contentStore.unshare(this.messageFile)) {
+                // content could be shared with other chunks - copy on write
+                this.storage.contentRemoved();
+            }
+        }
+
+        try {
+            return new FileOutputStream(this.messageFile, true);
+        }
+        catch(FileNotFoundException e) {
+            // folder missing?
+            if(this.messageFile.getParentFile().exists()) throw e;
+            this.messageFile.getParentFile().mkdirs();
+            Log.writeLog(this, "parent folder created: " + this.messageFile.getParentFile().exists());
+            return new FileOutputStream(this.messageFile, true);
+        }
+    }
+
+    private void messageAppended(long offset, long length) throws IOException {
+        // remember offset - meta data are not touched
+        this.appendIndexEntry(offset);
+        this.contentLength = offset + length;
     }
 
     @Override
     public Iterator<byte[]> getMessages() throws IOException {
-        return this.getMessagesAsBytesList().iterator();
+        return this.getMessages(0);
     }
 
-    private List<byte[]> getMessagesAsBytesList() throws IOException {
-        List<byte[]> byteMessageList = new ArrayList<>();
+    /**
+     * Messages are read one by one when requested. Nothing is read before the first call of next().
+     * The content file is closed after the last message was read.
+     * @param firstIndex index of first message to deliver - preceding messages are not read at all
+     * @return iterator of messages starting with message at firstIndex
+     */
+    public Iterator<byte[]> getMessages(int firstIndex) throws IOException {
+        if(firstIndex < 0 || (firstIndex > 0 && firstIndex >= this.numberMessages)) {
+            throw new IOException("no message with index " + firstIndex + " in chunk: " + this.messageFile);
+        }
 
-        if(this.messageFile.length() > 0) {
-            InputStream is = new FileInputStream((this.messageFile));
-            long offset = 0;
-            for(Long nextOffset : this.messageStartOffsets) {
-                long messageLenLong = nextOffset.longValue() - offset;
-                if(messageLenLong > Integer.MAX_VALUE) {
-                    throw new IOException("message longer than Integer.MAXVALUE");
+        return new MessageFileIterator(firstIndex, this.numberMessages);
+    }
+
+    @Override
+    public Iterator<byte[]> getMessages(boolean chronologically) throws IOException {
+        if(chronologically) return this.getMessages();
+
+        return new ReverseMessageFileIterator(this.numberMessages);
+    }
+
+    /**
+     * Newest message first. Content file is kept open and positioned for each message.
+     */
+    private class ReverseMessageFileIterator implements Iterator<byte[]> {
+        private int nextIndex;
+        private RandomAccessFile raf = null;
+
+        ReverseMessageFileIterator(int numberMessages) {
+            // messages added after creating this iterator are not delivered
+            this.nextIndex = numberMessages - 1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.nextIndex >= 0;
+        }
+
+        @Override
+        public byte[] next() {
+            if(!this.hasNext()) throw new NoSuchElementException("no more messages");
+
+            try {
+                if(this.raf == null) {
+                    this.raf = new RandomAccessFile(ASAPInternalChunkFS.this.messageFile, "r");
+                }
+
+                int index = this.nextIndex--;
+                this.raf.seek(ASAPInternalChunkFS.this.getFilePosition(index));
+                byte[] messageBytes;
+                if(ASAPInternalChunkFS.this.compressed) {
+                    byte[] frame = new byte[ASAPInternalChunkFS.this.getFrameLength(index)];
+                    this.raf.readFully(frame);
+                    messageBytes = ASAPInternalChunkFS.this.unpack(
+                            frame, ASAPInternalChunkFS.this.getMessageLengthAsInt(index));
+                } else {
+                    messageBytes = new byte[ASAPInternalChunkFS.this.getMessageLengthAsInt(index)];
+                    this.raf.readFully(messageBytes);
+                }
+
+                if(!this.hasNext()) this.close();
+
+                return messageBytes;
+            } catch (IOException e) {
+                this.close();
+                Log.writeLogErr(this, ASAPInternalChunkFS.this.toString(),
+                        "cannot read message from chunk: " + e.getLocalizedMessage());
+                throw new NoSuchElementException("cannot read message: " + e.getLocalizedMessage());
+            }
+        }
+
+        private void close() {
+            this.nextIndex = -1; // no more reading
+            try {
+                if(this.raf != null) this.raf.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            this.raf = null;
+        }
+    }
+
+    private class MessageFileIterator implements Iterator<byte[]> {
+        private final int lastIndex;
+        private int nextIndex;
+        private FileInputStream fis = null;
+        private DataInputStream dis = null;
+
+        MessageFileIterator(int firstIndex, int numberMessages) {
+            this.nextIndex = firstIndex;
+            // messages added after creating this iterator are not delivered
+            this.lastIndex = numberMessages - 1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.nextIndex <= this.lastIndex;
+        }
+
+        @Override
+        public byte[] next() {
+            if(!this.hasNext()) throw new NoSuchElementException("no more messages");
+
+            try {
+                if(this.dis == null) {
+                    // open and position file with first message to read
+                    this.fis = new FileInputStream(ASAPInternalChunkFS.this.messageFile);
+                    this.fis.getChannel().position(ASAPInternalChunkFS.this.getFilePosition(this.nextIndex));
+                    this.dis = new DataInputStream(new BufferedInputStream(this.fis));
+                }
+
+                byte[] messageBytes;
+                if(ASAPInternalChunkFS.this.compressed) {
+                    byte[] frame = new byte[ASAPInternalChunkFS.this.getFrameLength(this.nextIndex)];
+                    this.dis.readFully(frame);
+                    messageBytes = ASAPInternalChunkFS.this.unpack(
+                            frame, ASAPInternalChunkFS.this.getMessageLengthAsInt(this.nextIndex++));
+                } else {
+                    messageBytes = new byte[ASAPInternalChunkFS.this.getMessageLengthAsInt(this.nextIndex++)];
+                    this.dis.readFully(messageBytes);
+                }
+
+                if(!this.hasNext()) this.close();
+
+                return messageBytes;
+            } catch (IOException e) {
+                this.close();
+                Log.writeLogErr(this, ASAPInternalChunkFS.this.toString(),
+                        "cannot read message from chunk: " + e.getLocalizedMessage());
+                throw new NoSuchElementException("cannot read message: " + e.getLocalizedMessage());
+            }
+        }
+
+        private void close() {
+            this.nextIndex = this.lastIndex + 1; // no more reading
+            try {
+                if(this.dis != null) this.dis.close();
+                else if(this.fis != null) this.fis.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            this.dis = null;
+            this.fis = null;
+        }
+    }
+
+    /**
+     * @return position of message (or its frame) in content file
+     */
+    private long getFilePosition(int index) {
+        return this.compressed ? this.frameOffsets.get(index) : this.getMessageOffset(index);
+    }
+
+    private int getFrameLength(int index) throws IOException {
+        long frameEnd = index == this.numberMessages - 1 ? this.compressedLength : this.frameOffsets.get(index + 1);
+        long frameLength = frameEnd - this.frameOffsets.get(index);
+        if(frameLength > Integer.MAX_VALUE) {
+            throw new IOException("message frame longer than Integer.MAXVALUE");
+        }
+        return (int) frameLength;
+    }
+
+    /**
+     * @return message in that frame - stored frames are messages as they are
+     */
+    private byte[] unpack(byte[] frame, int length) throws IOException {
+        if(this.storedFrames && frame.length == length) return frame;
+        return inflate(frame, length);
+    }
+
+    private static byte[] inflate(byte[] frame, int length) throws IOException {
+        byte[] message = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(frame);
+            int inflated = 0;
+            while(inflated < length) {
+                int read = inflater.inflate(message, inflated, length - inflated);
+                if(read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("compressed message frame is corrupt");
                 }
+                inflated += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed message frame is corrupt: " + e.getLocalizedMessage());
+        } finally {
+            inflater.end();
+        }
+        return message;
+    }
 
-                int messageLen = (int) messageLenLong;
-                byte[] messageBytes = new byte[messageLen];
+    private long getMessageOffset(int index) {
+        return index == 0 ? 0 : this.messageStartOffsets.get(index - 1);
+    }
+
+    private long getMessageEnd(int index) {
+        return index == this.numberMessages - 1 ? this.contentLength : this.messageStartOffsets.get(index);
+    }
 
-                is.read(messageBytes);
+    private int getMessageLengthAsInt(int index) throws IOException {
+        long messageLenLong = this.getMessageEnd(index) - this.getMessageOffset(index);
+        if(messageLenLong > Integer.MAX_VALUE) {
+            throw new IOException("message longer than Integer.MAXVALUE");
+        }
+        return (int) messageLenLong;
+    }
 
-                byteMessageList.add(messageBytes);
+    /**
+     * Read a single message. Preceding messages are not read - content file is positioned with the index.
+     * @param index message index in this chunk, starting with 0
+     * @return message
+     * @throws IOException index out of range or message cannot be read
+     */
+    @Override
+    public byte[] getMessage(int index) throws IOException {
+        if(index < 0 || index >= this.numberMessages) {
+            throw new IOException("no message with index " + index + " in chunk: " + this.messageFile);
+        }
 
-                offset = nextOffset;
+        RandomAccessFile raf = new RandomAccessFile(this.messageFile, "r");
+        try {
+            raf.seek(this.getFilePosition(index));
+            if(this.compressed) {
+                byte[] frame = new byte[this.getFrameLength(index)];
+                raf.readFully(frame);
+                return this.unpack(frame, this.getMessageLengthAsInt(index));
             }
 
-            // read last one
-            long messageLenLong = this.messageFile.length() - offset;
-            if(messageLenLong > Integer.MAX_VALUE) {
-                throw new IOException("message longer than Integer.MAXVALUE");
+            byte[] messageBytes = new byte[this.getMessageLengthAsInt(index)];
+            raf.readFully(messageBytes);
+            return messageBytes;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Message as stream - read piece by piece from content file. Compressed messages are inflated while
+     * read. Stream must be closed by caller.
+     * @param index message index in this chunk, starting with 0
+     * @return stream that ends with the message
+     * @throws IOException index out of range or content file cannot be opened
+     */
+    @Override
+    public InputStream openMessageStream(int index) throws IOException {
+        if(index < 0 || index >= this.numberMessages) {
+            throw new IOException("no message with index " + index + " in chunk: " + this.messageFile);
+        }
+
+        if(this.compressed) {
+            int frameLength = this.getFrameLength(index);
+            InputStream frameIS = new ContentRangeInputStream(this.frameOffsets.get(index), frameLength);
+            if(this.storedFrames && frameLength == this.getMessageLengthAsInt(index)) return frameIS;
+            return new InflaterInputStream(frameIS);
+        }
+
+        long offset = this.getMessageOffset(index);
+        return new ContentRangeInputStream(offset, this.getMessageEnd(index) - offset);
+    }
+
+    /**
+     * Part of content file. File is opened when created and closed with this stream.
+     */
+    private class ContentRangeInputStream extends InputStream {
+        private final RandomAccessFile raf;
+        private long bytesLeft;
+
+        ContentRangeInputStream(long position, long length) throws IOException {
+            this.raf = new RandomAccessFile(ASAPInternalChunkFS.this.messageFile, "r");
+            try {
+                this.raf.seek(position);
             }
+            catch(IOException e) {
+                this.raf.close();
+                throw e;
+            }
+            this.bytesLeft = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(this.bytesLeft <= 0) return -1;
+            int b = this.raf.read();
+            if(b != -1) this.bytesLeft--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(this.bytesLeft <= 0) return -1;
+            int read = this.raf.read(b, off, (int) Math.min(len, this.bytesLeft));
+            if(read > 0) this.bytesLeft -= read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(this.bytesLeft, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.raf.close();
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                            memory mapped read access                                 //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    /** content file mapped into memory - null if not yet mapped or content file too large to be mapped at once */
+    private MappedByteBuffer mappedContent = null;
+
+    /**
+     * Message as read-only view of memory mapped content file. Nothing is copied to the heap; data are
+     * read by the operating system (page cache) when accessed.
+     * @param index message index in this chunk, starting with 0
+     * @return read-only buffer, position 0, limit message length
+     * @throws IOException index out of range or file cannot be mapped
+     */
+    public ByteBuffer getMessageAsByteBuffer(int index) throws IOException {
+        if(index < 0 || index >= this.numberMessages) {
+            throw new IOException("no message with index " + index + " in chunk: " + this.messageFile);
+        }
+
+        if(this.compressed) {
+            // cannot be mapped - uncompressed copy
+            return ByteBuffer.wrap(this.getMessage(index)).asReadOnlyBuffer();
+        }
+
+        long start = this.getMessageOffset(index);
+        int length = this.getMessageLengthAsInt(index);
+
+        if(this.contentLength > Integer.MAX_VALUE) {
+            // cannot map whole file in one buffer - map this message only
+            return this.map(start, length).asReadOnlyBuffer();
+        }
+
+        if(this.mappedContent == null || this.mappedContent.capacity() < this.contentLength) {
+            // not yet mapped or content added since mapping
+            this.mappedContent = this.map(0, this.contentLength);
+        }
+
+        ByteBuffer messageBuffer = this.mappedContent.duplicate();
+        // cast: compiled code remains compatible with Java 8 runtime
+        ((Buffer) messageBuffer).position((int) start);
+        ((Buffer) messageBuffer).limit((int) start + length);
+
+        return messageBuffer.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public ByteBuffer getMessageBuffer(int index) throws IOException {
+        return this.getMessageAsByteBuffer(index);
+    }
 
-            int messageLen = (int) messageLenLong;
-            byte[] messageBytes = new byte[messageLen];
-            is.read(messageBytes);
-            byteMessageList.add(messageBytes);
+    @Override
+    public void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        // messages added meanwhile are not delivered
+        int numberMessages = this.numberMessages;
+        for(int index = 0; index < numberMessages; index++) {
+            consumer.accept(this.getMessageAsByteBuffer(index));
         }
+    }
+
+    /**
+     * @return iterator over all messages as read-only views of memory mapped content file
+     * @see #getMessageAsByteBuffer(int)
+     */
+    public Iterator<ByteBuffer> getMessagesAsByteBuffer() {
+        return new Iterator<ByteBuffer>() {
+            private int nextIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.nextIndex < ASAPInternalChunkFS.this.numberMessages;
+            }
 
-        return byteMessageList;
+            @Override
+            public ByteBuffer next() {
+                if(!this.hasNext()) throw new NoSuchElementException("no more messages");
+                try {
+                    return ASAPInternalChunkFS.this.getMessageAsByteBuffer(this.nextIndex++);
+                } catch (IOException e) {
+                    throw new NoSuchElementException("cannot map message: " + e.getLocalizedMessage());
+                }
+            }
+        };
+    }
+
+    private MappedByteBuffer map(long position, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(this.messageFile, "r");
+        try {
+            // mapping remains valid after channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+        finally {
+            raf.close();
+        }
     }
 
     public long getLength() {
-        return this.messageFile.length();
+        // compressed: length of uncompressed messages as sent to other peers
+        return this.compressed ? this.contentLength : this.messageFile.length();
     }
 
     @Override
@@ -282,6 +1183,8 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
 
     @Override
     public InputStream getMessageInputStream() {
+        if(this.compressed) return new UncompressedMessagesInputStream();
+
         InputStream is = null;
         try {
             is = new FileInputStream(this.messageFile);
@@ -292,8 +1195,47 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
         return is;
     }
 
+    /**
+     * Messages of a compressed chunk back to back - as if they were stored uncompressed.
+     */
+    private class UncompressedMessagesInputStream extends InputStream {
+        private Iterator<byte[]> messages = null;
+        private byte[] message = new byte[0];
+        private int position = 0;
+
+        private boolean nextMessage() throws IOException {
+            if(this.messages == null) this.messages = ASAPInternalChunkFS.this.getMessages();
+            while(this.position >= this.message.length) {
+                if(!this.messages.hasNext()) return false;
+                try {
+                    this.message = this.messages.next();
+                } catch (NoSuchElementException e) {
+                    throw new IOException(e.getLocalizedMessage());
+                }
+                this.position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!this.nextMessage()) return -1;
+            return this.message[this.position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(!this.nextMessage()) return -1;
+            int read = Math.min(len, this.message.length - this.position);
+            System.arraycopy(this.message, this.position, b, off, read);
+            this.position += read;
+            return read;
+        }
+    }
+
     @Override
-    public void putExtra(String key, String value) throws IOException {
+    public synchronized void putExtra(String key, String value) throws IOException {
         if(key == null || value == null) {
             throw new IOException("null values are not allowed in extra data");
         }
@@ -302,7 +1244,7 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
     }
 
     @Override
-    public CharSequence removeExtra(String key) throws IOException {
+    public synchronized CharSequence removeExtra(String key) throws IOException {
         if(key == null) throw new IOException("null key not allowed");
         String removed = this.extraData.remove(key);
         this.saveStatus();
@@ -318,23 +1260,58 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
 
     @Override
     public Iterator<CharSequence> getMessagesAsCharSequence() throws IOException {
-        try {
-            return new MessageIter(this.getMessagesAsBytesList());
-        } catch (FileNotFoundException ex) {
-            throw new IOException(ex.getLocalizedMessage());
-        }
+        return new MessageIter(this.getMessages());
     }
 
     @Override
     public void drop() {
+        this.dirty = false;
+        if(this.storage != null) this.storage.chunkDropped(this);
+        this.mappedContent = null;
+        this.contentDigest = null;
+        if(this.storage != null && this.storage.getContentStore() != null) {
+            this.storage.getContentStore().removing(this.messageFile);
+        }
         this.metaFile.delete();
         this.messageFile.delete();
+        this.indexFile.delete();
+        if(this.storage != null) this.storage.contentRemoved();
+    }
+
+    /**
+     * Store content only once if the same content is kept by another chunk - if storage has a content store.
+     */
+    synchronized void shareContent() throws IOException {
+        if(this.storage != null && this.storage.getContentStore() != null) {
+            // hash of content taken while it was written - if it covers whole file
+            MessageDigest digest = null;
+            if(this.contentDigest != null && this.digestedLength == this.messageFile.length()) {
+                try {
+                    // later messages are added to that hash
+                    digest = (MessageDigest) this.contentDigest.clone();
+                } catch (CloneNotSupportedException e) {
+                    // file is read
+                }
+            }
+            this.storage.getContentStore().share(this.messageFile, digest);
+        }
     }
 
     private boolean readMetaData(File metaFile) throws IOException {
         if(!metaFile.exists()) return false;
+        // meta data are small - read them at once; remember them to detect changes
+        byte[] metaData = new byte[(int) metaFile.length()];
+        DataInputStream fileDis = new DataInputStream(new FileInputStream(metaFile));
+        try {
+            fileDis.readFully(metaData);
+        }
+        finally {
+            fileDis.close();
+        }
+        this.rememberMetaFileStatus(metaData);
+
         // read data from metafile
-        DataInputStream dis = new DataInputStream(new FileInputStream(metaFile));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(metaData));
 
         try {
             // do it as first element - shure how many bytes we read..
@@ -352,9 +1329,9 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
             this.recipients = SerializationHelper.string2CharSequenceSet(dis.readUTF());
             this.deliveredTo = SerializationHelper.string2CharSequenceList(dis.readUTF());
 
-            // finally read offset list
+            // finally read offset list - written by previous versions only, see readIndex
             String offsetList = dis.readUTF();
-            this.messageStartOffsets = this.messageOffsetString2List(offsetList);
+            this.legacyMessageStartOffsets = this.messageOffsetString2List(offsetList);
         }
         catch(IOException e) {
             // no more data - ok
@@ -381,82 +1358,47 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
         }
              */
 
-        try {
-            /*
-            if(file2writeMetaData.getAbsolutePath().contains("ultihopTests/Alice_42/1/sha")) {
-                Log.writeLog(this, this.toString(), "\nDEBUGGING_Multihop_Bug #1: open:" +
-                        "\nfile2WriteMetaData:" + file2writeMetaData.getAbsolutePath() +
-                        "\nexists:" + file2writeMetaData.exists() +
-                        "\ncanWrite:" + file2writeMetaData.canWrite()
-                );
-            }
-             */
-            FileOutputStream fos = new FileOutputStream(file2writeMetaData);
-            Log.writeLog(this, this.toString(), "\\nDEBUGGING_Multihop_Bug: write meta data to:" +
+        /*
+        if(file2writeMetaData.getAbsolutePath().contains("ultihopTests/Alice_42/1/sha")) {
+            Log.writeLog(this, this.toString(), "\nDEBUGGING_Multihop_Bug #1: open:" +
                     "\nfile2WriteMetaData:" + file2writeMetaData.getAbsolutePath() +
                     "\nexists:" + file2writeMetaData.exists() +
                     "\ncanWrite:" + file2writeMetaData.canWrite()
             );
-            DataOutputStream dos = new DataOutputStream(fos);
-
-            // do it as first element - shure how many bytes we read..
-            ASAPSerialization.writeASAPHopList(this.hopList, dos);
-
-            dos.writeUTF(this.uri);
-            dos.writeUTF(this.getExtraAsString());
-            dos.writeUTF(SerializationHelper.collection2String(this.recipients));
-            dos.writeUTF(SerializationHelper.collection2String(this.deliveredTo));
-
-            // write offsetList
-            dos.writeUTF(this.messageStartOffsetListAsString());
-
-            fos.close();
-            dos.close();
         }
-        catch(IOException ioe) {
-            // TODO: debugging code
-            Log.writeLog(this, this.toString(), "\nDEBUGGING_Multihop_Bug #3: file2WriteMetaData:" +
-                    "\nfile2WriteMetaData:" + file2writeMetaData.getAbsolutePath() +
-                    "\nexists:" + file2writeMetaData.exists() +
-                    "\ncanWrite:" + file2writeMetaData.canWrite());
-            String fname = new StringTokenizer(ioe.getLocalizedMessage()).nextToken();
-            Log.writeLog(this, this.toString(), "\nDEBUGGING_Multihop_Bug #4: not found" +
-                    "\nfile2WriteMetaData:" + file2writeMetaData.getAbsolutePath());
-            File fNotFound = new File(fname);
-            Log.writeLog(this, this.toString(), "\nDEBUGGING_Multihop_Bug #5: file not found" +
-                    "\nfile2WriteMetaData:" + fNotFound.getAbsolutePath() +
-                    "\nexists:" + fNotFound.exists() +
-                    "\ncanWrite:" + fNotFound.canWrite());
-            System.out.flush();
-            try {
-                // debugging output
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                //throw new RuntimeException(e);
-            }
-            Log.writeLog(this, this.toString(), "DEBUGGING_Multihop_Bug - try write again");
-            FileOutputStream fos = new FileOutputStream(fNotFound);
-            fos.write(42);
-            // never reaches that point
-            Log.writeLog(this, this.toString(), "DEBUGGING_Multihop_Bug - wrote");
-
-            throw ioe;
+         */
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        // do it as first element - shure how many bytes we read..
+        ASAPSerialization.writeASAPHopList(this.hopList, dos);
+
+        dos.writeUTF(this.uri);
+        dos.writeUTF(this.getExtraAsString());
+        dos.writeUTF(SerializationHelper.collection2String(this.recipients));
+        dos.writeUTF(SerializationHelper.collection2String(this.deliveredTo));
+
+        // offsets are kept in index file - an empty list keeps layout readable for previous versions
+        dos.writeUTF("");
+        dos.close();
+
+        byte[] metaData = baos.toByteArray();
+        if(file2writeMetaData == this.metaFile
+                && this.metaFileUnchanged() && Arrays.equals(metaData, this.metaDataInFile)) {
+            // nothing changed - leave file untouched
+            return;
         }
-    }
 
-    private String messageStartOffsetListAsString() {
-        StringBuilder sb = new StringBuilder();
-
-        boolean first = true;
-        for(Long offset : this.messageStartOffsets) {
-            if(!first) {
-                sb.append(ASAPLogHelper.SERIALIZATION_DELIMITER);
-            }
-            first = false;
-            sb.append(offset.toString());
-        }
+        Log.writeLog(this, this.toString(), "\\nDEBUGGING_Multihop_Bug: write meta data to:" +
+                "\nfile2WriteMetaData:" + file2writeMetaData.getAbsolutePath() +
+                "\nexists:" + file2writeMetaData.exists() +
+                "\ncanWrite:" + file2writeMetaData.canWrite()
+        );
+        // a crash leaves old or new meta data - never a truncated file (depends on durability mode)
+        Durability.writeFile(file2writeMetaData, metaData);
 
-        return sb.toString();
+        if(file2writeMetaData == this.metaFile) this.rememberMetaFileStatus(metaData);
+    
     }
 
     private String getExtraAsString() throws IOException {
@@ -518,9 +1460,7 @@ public class ASAPInternalChunkFS implements ASAPInternalChunk {
 
     @Override
     public int getNumberMessage() {
-        if(this.messageFile.length() == 0) return 0;
-
-        return this.messageStartOffsets.size() + 1;
+        return this.numberMessages;
     }
 
     @Override
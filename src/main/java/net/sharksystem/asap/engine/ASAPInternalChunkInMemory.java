@@ -0,0 +1,358 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPChannel;
+import net.sharksystem.asap.ASAPHop;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Chunk that keeps messages and meta data in heap. Messages are stored back to back in a
+ * single byte array - the same layout a chunk in file system has.
+ *
+ * @author thsc
+ */
+class ASAPInternalChunkInMemory implements ASAPInternalChunk {
+    private static final int INITIAL_CONTENT_SIZE = 1024;
+
+    private final ASAPChunkStorageInMemory storage;
+    private final int era;
+    private String uri;
+
+    private Set<CharSequence> recipients = new HashSet<>();
+    private List<CharSequence> deliveredTo = new ArrayList<>();
+    private HashMap<String, String> extraData = new HashMap<>();
+    private List<ASAPHop> hopList = new ArrayList<>();
+
+    private byte[] content = new byte[0];
+    private int contentLength = 0;
+    /** start offsets of all messages but the first one - see getOffsetList */
+    private List<Long> messageStartOffsets = new ArrayList<>();
+    private int numberMessages = 0;
+    private long lastModified = System.currentTimeMillis();
+
+    ASAPInternalChunkInMemory(ASAPChunkStorageInMemory storage, String uri, int era) {
+        this.storage = storage;
+        this.uri = uri;
+        this.era = era;
+    }
+
+    @Override
+    public synchronized void clone(ASAPInternalChunk chunkSource) throws IOException {
+        this.uri = chunkSource.getUri();
+        this.setRecipients(chunkSource.getRecipients());
+        this.extraData = new HashMap<>(chunkSource.getExtraData());
+    }
+
+    @Override
+    public synchronized void copyMetaData(ASAPChannel channel) throws IOException {
+        this.uri = channel.getUri().toString();
+        this.setRecipients(channel.getRecipients());
+        this.extraData = new HashMap<>(channel.getExtraData());
+    }
+
+    @Override
+    public List<ASAPHop> getASAPHopList() {
+        return this.hopList;
+    }
+
+    @Override
+    public synchronized void setASAPHopList(List<ASAPHop> asapHopList) {
+        this.hopList = asapHopList;
+    }
+
+    @Override
+    public synchronized void deliveredTo(String peer) {
+        this.deliveredTo.add(peer);
+    }
+
+    @Override
+    public List<CharSequence> getDeliveredTo() {
+        return this.deliveredTo;
+    }
+
+    @Override
+    public Set<CharSequence> getRecipients() {
+        return this.recipients;
+    }
+
+    @Override
+    public synchronized void addRecipient(CharSequence recipient) {
+        // same behaviour as file system: null is no recipient
+        if(recipient != null) this.recipients.add(recipient);
+    }
+
+    @Override
+    public synchronized void setRecipients(Collection<CharSequence> newRecipients) {
+        this.recipients = new HashSet<>();
+        if(newRecipients != null) {
+            for (CharSequence recipient : newRecipients) {
+                if(recipient != null) this.recipients.add(recipient);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeRecipient(CharSequence recipient) {
+        this.recipients.remove(recipient);
+    }
+
+    @Override
+    public String getUri() {
+        return this.uri;
+    }
+
+    @Override
+    public int getEra() {
+        return this.era;
+    }
+
+    @Override
+    public int getNumberMessage() {
+        return this.numberMessages;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                         messages                                     //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized void addMessage(byte[] messageAsBytes) {
+        int offset = this.reserve(messageAsBytes.length);
+        System.arraycopy(messageAsBytes, 0, this.content, offset, messageAsBytes.length);
+        this.messageAppended(offset, messageAsBytes.length);
+    }
+
+    @Override
+    public synchronized void addMessage(InputStream is, long length) throws IOException {
+        if(length > Integer.MAX_VALUE) {
+            throw new IOException("message must not be longer than Integer.MAXVALUE");
+        }
+
+        int offset = this.reserve((int) length);
+        int bytesLeft = (int) length;
+        while(bytesLeft > 0) {
+            int read = is.read(this.content, offset + (int) length - bytesLeft, bytesLeft);
+            if(read == -1) {
+                // nothing is appended - next message overwrites incomplete one
+                throw new EOFException("stream ended before message was complete: "
+                        + (length - bytesLeft) + " of " + length + " bytes read");
+            }
+            bytesLeft -= read;
+        }
+        this.messageAppended(offset, (int) length);
+    }
+
+    /**
+     * Make room for another message
+     * @return offset of new message
+     */
+    private int reserve(int length) {
+        long newLength = (long) this.contentLength + length;
+        if(newLength > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("chunk content would exceed maximum array size");
+        }
+
+        if(newLength > this.content.length) {
+            long newSize = Math.max(INITIAL_CONTENT_SIZE, Math.max(newLength, 2L * this.content.length));
+            this.content = Arrays.copyOf(this.content, (int) Math.min(newSize, Integer.MAX_VALUE));
+        }
+        return this.contentLength;
+    }
+
+    private void messageAppended(int offset, int length) {
+        if(this.numberMessages > 0) {
+            this.messageStartOffsets.add((long) offset);
+        }
+        this.numberMessages++;
+        this.contentLength = offset + length;
+        this.lastModified = System.currentTimeMillis();
+    }
+
+    private int getMessageOffset(int index) {
+        return index == 0 ? 0 : this.messageStartOffsets.get(index - 1).intValue();
+    }
+
+    private int getMessageEnd(int index) {
+        return index == this.numberMessages - 1 ?
+                this.contentLength : this.messageStartOffsets.get(index).intValue();
+    }
+
+    @Override
+    public Iterator<byte[]> getMessages() {
+        // messages can be added but are never changed - remember what's there now
+        final int numberMessages;
+        synchronized(this) {
+            numberMessages = this.numberMessages;
+        }
+
+        return new Iterator<byte[]>() {
+            private int nextIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.nextIndex < numberMessages;
+            }
+
+            @Override
+            public byte[] next() {
+                if(!this.hasNext()) throw new NoSuchElementException("no more messages in chunk");
+                synchronized(ASAPInternalChunkInMemory.this) {
+                    int index = this.nextIndex++;
+                    return Arrays.copyOfRange(ASAPInternalChunkInMemory.this.content,
+                            getMessageOffset(index), getMessageEnd(index));
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("messages cannot be removed");
+            }
+        };
+    }
+
+    @Override
+    public Iterator<byte[]> getMessages(boolean chronologically) {
+        if(chronologically) return this.getMessages();
+
+        final int numberMessages;
+        synchronized(this) {
+            numberMessages = this.numberMessages;
+        }
+
+        return new Iterator<byte[]>() {
+            private int nextIndex = numberMessages - 1;
+
+            @Override
+            public boolean hasNext() {
+                return this.nextIndex >= 0;
+            }
+
+            @Override
+            public byte[] next() {
+                if(!this.hasNext()) throw new NoSuchElementException("no more messages in chunk");
+                synchronized(ASAPInternalChunkInMemory.this) {
+                    int index = this.nextIndex--;
+                    return Arrays.copyOfRange(ASAPInternalChunkInMemory.this.content,
+                            getMessageOffset(index), getMessageEnd(index));
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("messages cannot be removed");
+            }
+        };
+    }
+
+    @Override
+    public synchronized byte[] getMessage(int index) throws IOException {
+        if(index < 0 || index >= this.numberMessages) {
+            throw new IOException("no message with index " + index + " in chunk: " + this);
+        }
+        return Arrays.copyOfRange(this.content, getMessageOffset(index), getMessageEnd(index));
+    }
+
+    /**
+     * @return read-only view of content array - content array is replaced, never changed when growing
+     */
+    @Override
+    public synchronized ByteBuffer getMessageBuffer(int index) throws IOException {
+        if(index < 0 || index >= this.numberMessages) {
+            throw new IOException("no message with index " + index + " in chunk: " + this);
+        }
+        int offset = this.getMessageOffset(index);
+        return ByteBuffer.wrap(this.content, offset, this.getMessageEnd(index) - offset).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized InputStream openMessageStream(int index) throws IOException {
+        if(index < 0 || index >= this.numberMessages) {
+            throw new IOException("no message with index " + index + " in chunk: " + this);
+        }
+        // content is only appended - array remains valid if replaced by a larger one
+        int offset = this.getMessageOffset(index);
+        return new ByteArrayInputStream(this.content, offset, this.getMessageEnd(index) - offset);
+    }
+
+    @Override
+    public void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        final int numberMessages;
+        synchronized(this) {
+            numberMessages = this.numberMessages;
+        }
+        for(int index = 0; index < numberMessages; index++) {
+            consumer.accept(this.getMessageBuffer(index));
+        }
+    }
+
+    @Override
+    public Iterator<CharSequence> getMessagesAsCharSequence() {
+        return new MessageIter(this.getMessages());
+    }
+
+    /**
+     * @return time of creation or latest added message
+     */
+    synchronized long getLastModified() {
+        return this.lastModified;
+    }
+
+    @Override
+    public long getLength() {
+        return this.contentLength;
+    }
+
+    @Override
+    public List<Long> getOffsetList() {
+        return this.messageStartOffsets;
+    }
+
+    @Override
+    public synchronized InputStream getMessageInputStream() {
+        return new ByteArrayInputStream(this.content, 0, this.contentLength);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                        extra data                                    //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized void putExtra(String key, String value) throws IOException {
+        if(key == null || value == null) {
+            throw new IOException("null values are not allowed in extra data");
+        }
+        this.extraData.put(key, value);
+    }
+
+    @Override
+    public synchronized CharSequence removeExtra(String key) throws IOException {
+        if(key == null) throw new IOException("null key not allowed");
+        return this.extraData.remove(key);
+    }
+
+    @Override
+    public CharSequence getExtra(String key) throws IOException {
+        if(key == null) throw new IOException("null key not allowed");
+        return this.extraData.get(key);
+    }
+
+    @Override
+    public HashMap<String, String> getExtraData() {
+        return this.extraData;
+    }
+
+    @Override
+    public void drop() {
+        this.storage.chunkDropped(this);
+    }
+
+    public String toString() {
+        return "in memory | era: " + this.era + " | uri: " + this.uri;
+    }
+}
@@ -0,0 +1,382 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPChannel;
+import net.sharksystem.asap.ASAPHop;
+import net.sharksystem.utils.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Chunk in a segment file. This object is a view - data are kept by the segment file.
+ *
+ * @author thsc
+ * @see ASAPSegmentFile
+ */
+class ASAPInternalChunkSegment implements ASAPInternalChunk {
+    private final ASAPSegmentFile segment;
+    private final String uri;
+
+    ASAPInternalChunkSegment(ASAPSegmentFile segment, String uri) {
+        this.segment = segment;
+        this.uri = uri;
+    }
+
+    /**
+     * @return chunk entry in segment - an empty one if chunk does not exist (anymore)
+     * @throws IOException segment cannot be read
+     */
+    private ASAPSegmentFile.ChunkEntry getEntry() throws IOException {
+        ASAPSegmentFile.ChunkEntry entry = this.segment.getEntry(this.uri, false);
+        return entry != null ? entry : new ASAPSegmentFile.ChunkEntry(this.uri);
+    }
+
+    /**
+     * Used by methods that cannot throw an exception - problems are logged.
+     * @return chunk entry in segment - an empty one if chunk does not exist (anymore) or cannot be read
+     */
+    private ASAPSegmentFile.ChunkEntry getEntryOrEmpty() {
+        try {
+            return this.getEntry();
+        } catch (IOException e) {
+            Log.writeLogErr(this, this.toString(), "cannot read segment: " + e.getLocalizedMessage());
+            return new ASAPSegmentFile.ChunkEntry(this.uri);
+        }
+    }
+
+    private ASAPSegmentFile.ChunkEntry getEntryToChange() throws IOException {
+        return this.segment.getEntry(this.uri, true);
+    }
+
+    @Override
+    public void clone(ASAPInternalChunk chunkSource) throws IOException {
+        this.copyMetaData(chunkSource.getRecipients(), chunkSource.getExtraData());
+    }
+
+    @Override
+    public void copyMetaData(ASAPChannel channel) throws IOException {
+        this.copyMetaData(channel.getRecipients(), channel.getExtraData());
+    }
+
+    private void copyMetaData(Set<CharSequence> recipients, HashMap<String, String> extraData) throws IOException {
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            entry.recipients = copyRecipients(recipients);
+            entry.extraData = new HashMap<>(extraData);
+            this.segment.metaDataChanged(entry);
+        }
+    }
+
+    private static Set<CharSequence> copyRecipients(Collection<CharSequence> recipients) {
+        Set<CharSequence> copy = new HashSet<>();
+        if(recipients != null) {
+            for(CharSequence recipient : recipients) {
+                // null is no recipient - same as in other chunk implementations
+                if(recipient != null) copy.add(recipient);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public List<ASAPHop> getASAPHopList() {
+        synchronized(this.segment.getLock()) {
+            return new ArrayList<>(this.getEntryOrEmpty().hopList);
+        }
+    }
+
+    @Override
+    public void setASAPHopList(List<ASAPHop> asapHopList) throws IOException {
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            entry.hopList = asapHopList == null ? new ArrayList<ASAPHop>() : new ArrayList<>(asapHopList);
+            this.segment.metaDataChanged(entry);
+        }
+    }
+
+    @Override
+    public void deliveredTo(String peer) throws IOException {
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            entry.deliveredTo.add(peer);
+            this.segment.metaDataChanged(entry);
+        }
+    }
+
+    @Override
+    public List<CharSequence> getDeliveredTo() {
+        synchronized(this.segment.getLock()) {
+            return new ArrayList<>(this.getEntryOrEmpty().deliveredTo);
+        }
+    }
+
+    @Override
+    public Set<CharSequence> getRecipients() {
+        synchronized(this.segment.getLock()) {
+            return new HashSet<>(this.getEntryOrEmpty().recipients);
+        }
+    }
+
+    @Override
+    public void addRecipient(CharSequence recipient) throws IOException {
+        if(recipient == null) return;
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            if(entry.recipients.add(recipient)) this.segment.metaDataChanged(entry);
+        }
+    }
+
+    @Override
+    public void setRecipients(Collection<CharSequence> recipients) throws IOException {
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            entry.recipients = copyRecipients(recipients);
+            this.segment.metaDataChanged(entry);
+        }
+    }
+
+    @Override
+    public void removeRecipient(CharSequence recipient) throws IOException {
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            if(entry.recipients.remove(recipient)) this.segment.metaDataChanged(entry);
+        }
+    }
+
+    @Override
+    public void putExtra(String key, String value) throws IOException {
+        if(key == null || value == null) {
+            throw new IOException("null values are not allowed in extra data");
+        }
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            if(!value.equals(entry.extraData.put(key, value))) this.segment.metaDataChanged(entry);
+        }
+    }
+
+    @Override
+    public CharSequence removeExtra(String key) throws IOException {
+        if(key == null) throw new IOException("null key not allowed");
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryToChange();
+            String removed = entry.extraData.remove(key);
+            if(removed != null) this.segment.metaDataChanged(entry);
+            return removed;
+        }
+    }
+
+    @Override
+    public CharSequence getExtra(String key) throws IOException {
+        if(key == null) throw new IOException("null key not allowed");
+        synchronized(this.segment.getLock()) {
+            return this.getEntry().extraData.get(key);
+        }
+    }
+
+    @Override
+    public HashMap<String, String> getExtraData() {
+        synchronized(this.segment.getLock()) {
+            return new HashMap<>(this.getEntryOrEmpty().extraData);
+        }
+    }
+
+    @Override
+    public String getUri() {
+        return this.uri;
+    }
+
+    @Override
+    public int getEra() {
+        return this.segment.getEra();
+    }
+
+    @Override
+    public void drop() {
+        try {
+            this.segment.drop(this.uri);
+        } catch (IOException e) {
+            // same as in file system chunks: drop does not complain
+        }
+        // messages of a new chunk with that uri would get same indices
+        ASAPMessageCache.getMessageCache().eraDropped(
+                ASAPMessageCache.getFolderKey(this.segment.getFile().getParent()), this.segment.getEra());
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                         messages                                     //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void addMessage(byte[] messageAsBytes) throws IOException {
+        this.addMessage(new ByteArrayInputStream(messageAsBytes), messageAsBytes.length);
+    }
+
+    @Override
+    public void addMessage(InputStream is, long length) throws IOException {
+        if(length > Integer.MAX_VALUE) {
+            throw new IOException("message must not be longer than Integer.MAXVALUE");
+        }
+        synchronized(this.segment.getLock()) {
+            this.segment.appendMessage(this.getEntryToChange(), is, (int) length);
+        }
+    }
+
+    @Override
+    public int getNumberMessage() {
+        synchronized(this.segment.getLock()) {
+            return this.getEntryOrEmpty().positions.size();
+        }
+    }
+
+    @Override
+    public long getLength() {
+        synchronized(this.segment.getLock()) {
+            return this.getEntryOrEmpty().contentLength;
+        }
+    }
+
+    /**
+     * Positions and lengths of messages at a time - lists in segment can grow.
+     */
+    private static class MessageSnapshot {
+        private final List<Long> positions;
+        private final List<Integer> lengths;
+
+        MessageSnapshot(ASAPSegmentFile.ChunkEntry entry) {
+            this.positions = new ArrayList<>(entry.positions);
+            this.lengths = new ArrayList<>(entry.lengths);
+        }
+    }
+
+    private MessageSnapshot getMessageSnapshot(ASAPSegmentFile.ChunkEntry entry) {
+        synchronized(this.segment.getLock()) {
+            return new MessageSnapshot(entry);
+        }
+    }
+
+    @Override
+    public List<Long> getOffsetList() {
+        // offsets as if messages were stored back to back - first one is not in list
+        List<Long> offsets = new ArrayList<>();
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntryOrEmpty();
+            long offset = 0;
+            for(int i = 0; i < entry.lengths.size() - 1; i++) {
+                offset += entry.lengths.get(i);
+                offsets.add(offset);
+            }
+        }
+        return offsets;
+    }
+
+    @Override
+    public InputStream getMessageInputStream() {
+        MessageSnapshot snapshot = this.getMessageSnapshot(this.getEntryOrEmpty());
+        return this.segment.getMessagesInputStream(snapshot.positions, snapshot.lengths);
+    }
+
+    @Override
+    public Iterator<byte[]> getMessages() throws IOException {
+        return this.getMessages(true);
+    }
+
+    @Override
+    public Iterator<byte[]> getMessages(final boolean chronologically) throws IOException {
+        MessageSnapshot snapshot = this.getMessageSnapshot(this.getEntry());
+        final List<Long> positions = snapshot.positions;
+        final List<Integer> lengths = snapshot.lengths;
+
+        return new Iterator<byte[]>() {
+            private int nextIndex = chronologically ? 0 : positions.size() - 1;
+
+            @Override
+            public boolean hasNext() {
+                return this.nextIndex >= 0 && this.nextIndex < positions.size();
+            }
+
+            @Override
+            public byte[] next() {
+                if(!this.hasNext()) throw new NoSuchElementException("no more messages in chunk");
+                int index = this.nextIndex;
+                this.nextIndex += chronologically ? 1 : -1;
+                try {
+                    return ASAPInternalChunkSegment.this.segment.readMessage(positions.get(index), lengths.get(index));
+                } catch (IOException e) {
+                    throw new NoSuchElementException("cannot read message: " + e.getLocalizedMessage());
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("messages cannot be removed");
+            }
+        };
+    }
+
+    @Override
+    public byte[] getMessage(int index) throws IOException {
+        long position;
+        int length;
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntry();
+            if(index < 0 || index >= entry.positions.size()) {
+                throw new IOException("no message with index " + index + " in chunk: " + this);
+            }
+            position = entry.positions.get(index);
+            length = entry.lengths.get(index);
+        }
+        return this.segment.readMessage(position, length);
+    }
+
+    @Override
+    public ByteBuffer getMessageBuffer(int index) throws IOException {
+        long position;
+        int length;
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntry();
+            if(index < 0 || index >= entry.positions.size()) {
+                throw new IOException("no message with index " + index + " in chunk: " + this);
+            }
+            position = entry.positions.get(index);
+            length = entry.lengths.get(index);
+        }
+        return this.segment.mapMessage(position, length);
+    }
+
+    @Override
+    public InputStream openMessageStream(int index) throws IOException {
+        long position;
+        int length;
+        synchronized(this.segment.getLock()) {
+            ASAPSegmentFile.ChunkEntry entry = this.getEntry();
+            if(index < 0 || index >= entry.positions.size()) {
+                throw new IOException("no message with index " + index + " in chunk: " + this);
+            }
+            position = entry.positions.get(index);
+            length = entry.lengths.get(index);
+        }
+        return this.segment.getMessagesInputStream(
+                Collections.singletonList(position), Collections.singletonList(length));
+    }
+
+    @Override
+    public void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        MessageSnapshot snapshot = this.getMessageSnapshot(this.getEntry());
+        for(int index = 0; index < snapshot.positions.size(); index++) {
+            consumer.accept(this.segment.mapMessage(snapshot.positions.get(index), snapshot.lengths.get(index)));
+        }
+    }
+
+    @Override
+    public Iterator<CharSequence> getMessagesAsCharSequence() throws IOException {
+        return new MessageIter(this.getMessages());
+    }
+
+    public String toString() {
+        return "era: " + this.segment.getEra() + " | uri: " + this.uri + " | " + this.segment;
+    }
+}
@@ -0,0 +1,26 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPChunkStorage;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Chunk storage as implemented in this library. It offers methods that engine and message views
+ * need but that are not part of the public chunk storage interface.
+ *
+ * @author thsc
+ */
+interface ASAPInternalChunkStorage extends ASAPChunkStorage {
+    /**
+     * @return eras in which this storage has (or had) chunks - in no particular order
+     * @throws IOException
+     */
+    Collection<Integer> getEras() throws IOException;
+
+    /**
+     * @return time of latest change of chunks in that era (milliseconds since epoch) - 0 if there are none
+     * @throws IOException
+     */
+    long getEraLastModified(int era) throws IOException;
+}
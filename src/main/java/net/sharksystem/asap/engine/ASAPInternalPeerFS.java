@@ -27,6 +27,8 @@ public class ASAPInternalPeerFS implements
     private ASAPKeyStore asapKeyStore;
     private DefaultSecurityAdministrator defaultSecurityAdministrator = new DefaultSecurityAdministrator();
     private InMemoASAPKeyStore inMemoASAPKeyStore;
+    /** keep chunks in memory instead of file system */
+    private final boolean inMemory;
 
     public ASAPPoint2PointCryptoSettings getASAPCommunicationCryptoSettings() {
         return this.defaultSecurityAdministrator;
@@ -57,6 +59,18 @@ public class ASAPInternalPeerFS implements
         return new ASAPInternalPeerFS(owner, rootFolder, DEFAULT_MAX_PROCESSING_TIME, supportFormats, listener);
     }
 
+    /**
+     * Create a peer whose engines keep chunks in memory. Nothing is written but peer extra data which are
+     * still kept in root folder. Received and created messages are lost when the process ends.
+     */
+    public static ASAPInternalPeer createASAPPeerInMemory(CharSequence owner, CharSequence rootFolder,
+                                                  Collection<CharSequence> supportFormats,
+                                                  ASAPChunkAssimilatedListener listener)
+            throws ASAPException, IOException {
+
+        return new ASAPInternalPeerFS(owner, rootFolder, DEFAULT_MAX_PROCESSING_TIME, supportFormats, listener, true);
+    }
+
     public static ASAPInternalPeer createASAPPeer(CharSequence owner, CharSequence rootFolder,
                                                   long maxExecutionTime,
                                                   ASAPChunkAssimilatedListener listener) throws ASAPException, IOException {
@@ -88,6 +102,13 @@ public class ASAPInternalPeerFS implements
     private ASAPInternalPeerFS(CharSequence owner, CharSequence rootFolderName, long maxExecutionTime,
                                Collection<CharSequence> apps, ASAPChunkAssimilatedListener listener)
             throws ASAPException, IOException {
+        this(owner, rootFolderName, maxExecutionTime, apps, listener, false);
+    }
+
+    private ASAPInternalPeerFS(CharSequence owner, CharSequence rootFolderName, long maxExecutionTime,
+                               Collection<CharSequence> apps, ASAPChunkAssimilatedListener listener,
+                               boolean inMemory)
+            throws ASAPException, IOException {
 
         // owner id must not be a numerical value only - it would interfere with our era numbers
         try {
@@ -103,6 +124,7 @@ public class ASAPInternalPeerFS implements
         this.maxExecutionTime = maxExecutionTime;
         this.rootFolderName = rootFolderName;
         this.listener = listener;
+        this.inMemory = inMemory;
 
         File rootFolder = new File(rootFolderName.toString());
 
@@ -154,8 +176,7 @@ public class ASAPInternalPeerFS implements
     private void setupEngine(CharSequence folderName, CharSequence formatName) throws IOException, ASAPException {
         String fileName = this.rootFolderName + "/" + folderName;
         Log.writeLog(this, "set up: " + formatName + " in folder " + fileName);
-        ASAPEngine asapEngine = ASAPEngineFS.getASAPStorage(this.getOwner().toString(),
-                fileName, formatName);
+        ASAPEngine asapEngine = this.setupASAPEngine(this.getOwner().toString(), fileName, formatName);
 
         asapEngine.setSecurityAdministrator(this.defaultSecurityAdministrator);
 
@@ -167,8 +188,19 @@ public class ASAPInternalPeerFS implements
         this.folderMap.put(formatName, setting);
     }
 
+    private ASAPEngine setupASAPEngine(String owner, String folderName, CharSequence format)
+            throws IOException, ASAPException {
+
+        if(this.inMemory) return ASAPEngineInMemory.getASAPEngine(owner, format);
+
+        return ASAPEngineFS.getASAPEngine(owner, folderName, format);
+    }
+
     private void setupFolderMap() throws IOException, ASAPException {
         this.folderMap = new HashMap<>();
+        // nothing in folders - engines are set up with first use
+        if(this.inMemory) return;
+
         File rootFolder = new File(rootFolderName.toString());
 
         Log.writeLog(this, "setting up ASAPEngine based on sub folders in " + this.rootFolderName);
@@ -220,7 +252,7 @@ public class ASAPInternalPeerFS implements
         ASAPEngine asapEngine = engineSetting.engine;
 
         if (asapEngine == null) {
-            asapEngine = ASAPEngineFS.getASAPEngine(owner.toString(), engineSetting.folder.toString(), format);
+            asapEngine = this.setupASAPEngine(owner.toString(), engineSetting.folder.toString(), format);
             engineSetting.setASAPEngine(asapEngine); // remember - keep that object
         }
         asapEngine.setSecurityAdministrator(this.defaultSecurityAdministrator);
@@ -247,8 +279,10 @@ public class ASAPInternalPeerFS implements
         }
 
         String folderName = this.getEngineFolderByAppName(format);
-        ASAPEngine asapEngine = ASAPEngineFS.getASAPEngine(String.valueOf(this.getOwner()), folderName, format);
-        this.folderMap.put(format, new EngineSetting(folderName, listener));
+        ASAPEngine asapEngine = this.setupASAPEngine(String.valueOf(this.getOwner()), folderName, format);
+        EngineSetting setting = new EngineSetting(folderName, listener);
+        setting.setASAPEngine(asapEngine);
+        this.folderMap.put(format, setting);
 
         asapEngine.setSecurityAdministrator(this.defaultSecurityAdministrator);
 
@@ -271,6 +305,9 @@ public class ASAPInternalPeerFS implements
     public ASAPEngine getASAPEngine(CharSequence format)
             throws IOException, ASAPException {
 
+        // there is just one engine object for each format
+        if(this.inMemory) return this.createEngineByFormat(format);
+
         String foldername = this.getEngineFolderByAppName(format);
         // already exists?
         try {
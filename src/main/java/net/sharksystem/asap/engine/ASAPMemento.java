@@ -9,4 +9,15 @@ import java.io.IOException;
  */
 interface ASAPMemento {
     public void save(ASAPEngine engine) throws IOException;
+
+    /**
+     * Engine state changed - it is written with next save or flush. Meant for changes that happen
+     * in series, e.g. last seen eras while sending chunks.
+     */
+    public void saveLater(ASAPEngine engine);
+
+    /**
+     * Write engine state if changed since last save. State written by others in the meantime is not overwritten.
+     */
+    public void flush(ASAPEngine engine) throws IOException;
 }
@@ -1,17 +1,28 @@
 package net.sharksystem.asap.engine;
 
 import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.fs.Durability;
 import net.sharksystem.utils.Log;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Engine memento implementation in filesystem.
- * 
+ * <br/><br/>
+ * File layout: magic, time of writing, owner, format, era, oldest era, flags, number of
+ * lastSeen entries followed by (peer, era) pairs. Files written before the magic was introduced
+ * start with time of writing and end with lastSeen entries up to end of file - they are still read.
+ *
  * @author local
  */
 class ASAPMementoFS implements ASAPMemento {
+    /** negative - files without magic start with a (positive) time stamp */
+    private static final int MEMENTO_MAGIC = 0xA5A90002;
+
     private final File rootDirectory;
     private String owner;
     private String format;
@@ -23,12 +34,25 @@ class ASAPMementoFS implements ASAPMemento {
     private HashMap<String, Integer> lastSeen;
     public long lastMementoWritten;
 
+    /** engine state changed but not yet written */
+    private boolean dirty = false;
+
+    /** modification times can be that coarse - seconds with some file systems and runtimes */
+    private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+    /** memento file as last written or read by this object - -1: unknown */
+    private long knownLastModified = -1;
+    private long knownLength = -1;
+    private long knownSince = 0;
+    /** file content as last written or read - memento files are small */
+    private byte[] knownContent = null;
+
     public ASAPMementoFS(File rootDirectory) {
         this.rootDirectory = rootDirectory;
     }
 
     @Override
-    public void save(ASAPEngine engine) throws IOException {
+    public synchronized void save(ASAPEngine engine) throws IOException {
         /*
         Log.writeLog(this, "\n" +
                 ">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>save memento<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n" +
@@ -43,12 +67,14 @@ class ASAPMementoFS implements ASAPMemento {
             }
         }
 
-        DataOutputStream dos = new DataOutputStream(new FileOutputStream(fName));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
 
         long now = System.currentTimeMillis();
 
         engine.lastMementoWritten = now;
         this.lastMementoWritten = engine.lastMementoWritten;
+        dos.writeInt(MEMENTO_MAGIC);
         dos.writeLong(now);
         dos.writeUTF(engine.owner);
         dos.writeUTF(engine.format);
@@ -60,19 +86,61 @@ class ASAPMementoFS implements ASAPMemento {
         dos.writeBoolean(engine.routingAllowed);
 
         // write lastSeen hash map
-        if(engine.lastSeen != null && !engine.lastSeen.isEmpty()) {
-            for(String key : engine.lastSeen.keySet()) {
-                Integer era = engine.lastSeen.get(key);
-
+        if(engine.lastSeen == null) {
+            dos.writeInt(0);
+        } else {
+            dos.writeInt(engine.lastSeen.size());
+            for(Map.Entry<String, Integer> entry : engine.lastSeen.entrySet()) {
                 // write peer and era
-                dos.writeUTF(key);
-                dos.writeInt(era);
+                dos.writeUTF(entry.getKey());
+                dos.writeInt(entry.getValue());
             }
         }
+        dos.close();
+
+        // one write call
+        byte[] content = baos.toByteArray();
+        Durability.writeFile(file, content);
+        this.lastSeen = engine.lastSeen == null ? new HashMap<>() : new HashMap<>(engine.lastSeen);
+        this.dirty = false;
+        this.rememberFileState(file);
+        this.knownContent = content;
 
         //Log.writeLog(this, "saved: " + this);
     }
 
+    @Override
+    public synchronized void saveLater(ASAPEngine engine) {
+        this.dirty = true;
+    }
+
+    /**
+     * Memento could have been written by others since pending changes were made. Their state is kept in that
+     * case - only pending last seen eras are added.
+     */
+    @Override
+    public synchronized void flush(ASAPEngine engine) throws IOException {
+        if(!this.dirty) return;
+
+        if(this.changedByOthers()) this.restore(engine);
+        else this.save(engine);
+    }
+
+    /**
+     * @return last seen eras set by engine but not yet written - empty if there are no pending changes
+     */
+    private Map<String, Integer> getPendingLastSeen(ASAPEngine engine) {
+        Map<String, Integer> pendingLastSeen = new HashMap<>();
+        if(!this.dirty || engine.lastSeen == null) return pendingLastSeen;
+
+        for(Map.Entry<String, Integer> entry : engine.lastSeen.entrySet()) {
+            if(this.lastSeen == null || !entry.getValue().equals(this.lastSeen.get(entry.getKey()))) {
+                pendingLastSeen.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return pendingLastSeen;
+    }
+
     private void setDefaults(ASAPEngine engine) {
         // set defaults
         engine.owner = ASAPEngine.DEFAULT_OWNER;
@@ -84,109 +152,142 @@ class ASAPMementoFS implements ASAPMemento {
         engine.routingAllowed = true;
     }
 
-    public void read() throws IOException {
-        String fName = this.getMementoFileName();
-
-        File file = new File(fName);
+    /**
+     * Read memento file into this object.
+     * @return false if there is no file or file does not contain engine settings
+     */
+    public boolean read() throws IOException {
+        File file = new File(this.getMementoFileName());
         if(!file.exists()) {
-            return;
+            return false;
         }
 
-        DataInputStream dis = new DataInputStream(
-                new FileInputStream(file));
+        // before reading - a change during reading is detected with next check
+        this.rememberFileState(file);
+        this.knownContent = Files.readAllBytes(file.toPath());
 
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(this.knownContent));
         try {
-            this.lastMementoWritten = dis.readLong();
-            this.owner = dis.readUTF();
-            this.format = dis.readUTF();
-            this.era = dis.readInt();
-            this.oldestEra = dis.readInt();
-            this.contentChanged = dis.readBoolean();
-            this.dropDeliveredChunks = dis.readBoolean();
-            this.sendReceivedChunks = dis.readBoolean();
-        }
-        catch(EOFException e) {
-            // ignore and work with set defaults
-            return; // reached end of file - nothing to do here
-        }
-
-        // try to read lastSeen list
-        boolean first = true;
-        try {
-            for(;;) { // escapes from that loop via ioexception
-                String peer = dis.readUTF();
-                // got one
-                if(first) {
-                    // init empty list
-                    this.lastSeen = new HashMap<>();
-                    first = false;
+            boolean withMagic;
+            try {
+                int firstInt = dis.readInt();
+                withMagic = firstInt == MEMENTO_MAGIC;
+                if(withMagic) {
+                    this.lastMementoWritten = dis.readLong();
+                } else {
+                    // no magic - first int was upper half of time stamp
+                    this.lastMementoWritten = ((long) firstInt << 32) | (dis.readInt() & 0xFFFFFFFFL);
                 }
+                this.owner = dis.readUTF();
+                this.format = dis.readUTF();
+                this.era = dis.readInt();
+                this.oldestEra = dis.readInt();
+                this.contentChanged = dis.readBoolean();
+                this.dropDeliveredChunks = dis.readBoolean();
+                this.sendReceivedChunks = dis.readBoolean();
+            }
+            catch(EOFException e) {
+                // ignore and work with set defaults
+                return false; // reached end of file - nothing to do here
+            }
 
-                Integer era = dis.readInt();
-
-                // remember
-                this.lastSeen.put(peer, era);
+            this.lastSeen = new HashMap<>();
+            if(withMagic) {
+                int entries = dis.readInt();
+                for(int i = 0; i < entries; i++) {
+                    String peer = dis.readUTF();
+                    this.lastSeen.put(peer, dis.readInt());
+                }
+            } else {
+                // try to read lastSeen list
+                try {
+                    for(;;) { // escapes from that loop via ioexception
+                        String peer = dis.readUTF();
+                        this.lastSeen.put(peer, dis.readInt());
+                    }
+                }
+                catch(IOException ioe) {
+                    // ok  no more data
+                }
             }
         }
-        catch(IOException ioe) {
-            // ok  no more data
+        finally {
+            dis.close();
         }
-        dis.close();
+
+        return true;
     }
 
-    public void restore(ASAPEngine engine) throws IOException {
-        String fName = this.getMementoFileName();
+    /**
+     * Engine state is set from memento file. Pending last seen eras of engine are kept and written.
+     * Other pending changes are dropped - memento file is newer.
+     */
+    public synchronized void restore(ASAPEngine engine) throws IOException {
+        Map<String, Integer> pendingLastSeen = this.getPendingLastSeen(engine);
 
-        File file = new File(fName);
+        File file = new File(this.getMementoFileName());
         if(!file.exists()) {
             this.setDefaults(engine);
             return;
         }
 
-        DataInputStream dis = new DataInputStream(
-                new FileInputStream(file));
+        if(!this.read()) {
+            Log.writeLog(this, "memento without engine settings - keep engine values: " + file);
+            return;
+        }
 
-        try {
-            engine.lastMementoWritten = dis.readLong();
-            this.lastMementoWritten = engine.lastMementoWritten;
-            engine.owner = dis.readUTF();
-            engine.format = dis.readUTF();
-            engine.era = dis.readInt();
-            engine.oldestEra = dis.readInt();
-            engine.contentChanged = dis.readBoolean();
-            this.contentChanged = engine.contentChanged;
-            engine.dropDeliveredChunks = dis.readBoolean();
-            engine.routingAllowed = dis.readBoolean();
+        engine.lastMementoWritten = this.lastMementoWritten;
+        engine.owner = this.owner;
+        engine.format = this.format;
+        engine.era = this.era;
+        engine.oldestEra = this.oldestEra;
+        engine.contentChanged = this.contentChanged;
+        engine.dropDeliveredChunks = this.dropDeliveredChunks;
+        engine.routingAllowed = this.sendReceivedChunks;
+        engine.lastSeen = new HashMap<>(this.lastSeen);
+        this.dirty = false;
+
+        if(!pendingLastSeen.isEmpty()) {
+            engine.lastSeen.putAll(pendingLastSeen);
+            this.save(engine);
         }
-        catch(EOFException e) {
-            // ignore and work with set defaults
-            return; // reached end of file - nothing to do here
+
+        //Log.writeLog(this, "restored: " + this);
+    }
+
+    /**
+     * Checks whether memento file was written by someone else (e.g. another process sharing that folder)
+     * since this object wrote or read it. File attributes are compared - file is only read if it was
+     * written in the same time resolution unit it was last seen in. Content is compared in that case: time
+     * of writing is not sufficient, two engines could write in the same millisecond.
+     * @return true if file was changed and engine state should be restored
+     */
+    synchronized boolean changedByOthers() throws IOException {
+        File file = new File(this.getMementoFileName());
+        if(!file.exists()) {
+            // gone - or still not there
+            return this.knownLength != -1;
         }
 
-        // try to read lastSeen list
-        boolean first = true;
-        try {
-            for(;;) { // escapes from that loop via ioexception
-                String peer = dis.readUTF();
-                // got one
-                if(first) {
-                    // init empty list
-                    engine.lastSeen = new HashMap<>();
-                    first = false;
-                }
+        if(file.lastModified() != this.knownLastModified || file.length() != this.knownLength) return true;
 
-                Integer era = dis.readInt();
+        // any later write would have changed modification time
+        if(this.knownSince - this.knownLastModified > MODIFICATION_TIME_GRANULARITY) return false;
 
-                // remember
-                engine.lastSeen.put(peer, era);
-            }
+        // could have been written again without changing attributes
+        this.rememberFileState(file);
+        if(!Arrays.equals(Files.readAllBytes(file.toPath()), this.knownContent)) {
+            // force restore with next check as well if not restored now
+            this.knownLength = -1;
+            return true;
         }
-        catch(IOException ioe) {
-            // ok  no more data
-        }
-        dis.close();
+        return false;
+    }
 
-        //Log.writeLog(this, "restored: " + this);
+    private void rememberFileState(File file) {
+        this.knownSince = System.currentTimeMillis();
+        this.knownLastModified = file.lastModified();
+        this.knownLength = file.length();
     }
 
     private String getMementoFileName() {
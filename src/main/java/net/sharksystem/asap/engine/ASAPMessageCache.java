@@ -0,0 +1,135 @@
+package net.sharksystem.asap.engine;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Messages recently read from chunks - shared by all message views (ASAPMessages, channels) in this process.
+ * Cache size is limited by the sum of message lengths, not by the number of messages. Least recently
+ * used messages are removed first.
+ * <br/><br/>
+ * Messages are never changed after being added to a chunk. Entries become obsolete when chunks are dropped.
+ * Storages announce that. Chunks dropped by another process are not noticed.
+ *
+ * @author thsc
+ */
+public class ASAPMessageCache {
+    public static final long DEFAULT_BYTE_BUDGET = 4 * 1024 * 1024;
+
+    private static final ASAPMessageCache messageCache = new ASAPMessageCache(DEFAULT_BYTE_BUDGET);
+
+    private long byteBudget;
+    private long cachedBytes = 0;
+
+    /** least recently used first */
+    private final LinkedHashMap<MessageKey, byte[]> messages = new LinkedHashMap<>(16, 0.75f, true);
+
+    ASAPMessageCache(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    static ASAPMessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * Set how many bytes of messages are kept in memory by all message views in this process.
+     * @param byteBudget maximum sum of message lengths - 0 switches caching off
+     */
+    public static void setByteBudget(long byteBudget) {
+        messageCache.setBudget(byteBudget);
+    }
+
+    public static long getByteBudget() {
+        return messageCache.byteBudget;
+    }
+
+    /**
+     * @return key for storages in a folder - same for all storage objects on that folder
+     */
+    static String getFolderKey(String folderName) {
+        return new File(folderName).getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    synchronized void setBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+        this.evict();
+    }
+
+    /**
+     * @param storageKey identifies storage (engine or sender within an engine)
+     * @return message or null if not in cache. Returned array must not be changed.
+     */
+    synchronized byte[] get(Object storageKey, int era, CharSequence uri, int index) {
+        return this.messages.get(new MessageKey(storageKey, era, uri, index));
+    }
+
+    /**
+     * @param message must not be changed after being added
+     */
+    synchronized void put(Object storageKey, int era, CharSequence uri, int index, byte[] message) {
+        // would remove everything else
+        if(message.length > this.byteBudget) return;
+
+        byte[] replaced = this.messages.put(new MessageKey(storageKey, era, uri, index), message);
+        if(replaced != null) this.cachedBytes -= replaced.length;
+        this.cachedBytes += message.length;
+        this.evict();
+    }
+
+    /**
+     * Chunks of that era were dropped - remove their messages.
+     */
+    synchronized void eraDropped(Object storageKey, int era) {
+        Iterator<Map.Entry<MessageKey, byte[]>> entryIter = this.messages.entrySet().iterator();
+        while(entryIter.hasNext()) {
+            Map.Entry<MessageKey, byte[]> entry = entryIter.next();
+            if(entry.getKey().era == era && entry.getKey().storageKey.equals(storageKey)) {
+                this.cachedBytes -= entry.getValue().length;
+                entryIter.remove();
+            }
+        }
+    }
+
+    synchronized long getCachedBytes() {
+        return this.cachedBytes;
+    }
+
+    private void evict() {
+        Iterator<byte[]> messageIter = this.messages.values().iterator();
+        while(this.cachedBytes > this.byteBudget && messageIter.hasNext()) {
+            this.cachedBytes -= messageIter.next().length;
+            messageIter.remove();
+        }
+    }
+
+    private static class MessageKey {
+        private final Object storageKey;
+        private final int era;
+        private final String uri;
+        private final int index;
+
+        MessageKey(Object storageKey, int era, CharSequence uri, int index) {
+            this.storageKey = storageKey;
+            this.era = era;
+            this.uri = uri.toString();
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof MessageKey)) return false;
+            MessageKey other = (MessageKey) o;
+            return this.era == other.era && this.index == other.index
+                    && this.uri.equals(other.uri) && this.storageKey.equals(other.storageKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.storageKey, this.era, this.uri, this.index);
+        }
+    }
+}
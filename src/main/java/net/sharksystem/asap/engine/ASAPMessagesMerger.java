@@ -5,38 +5,49 @@ import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.ASAPMessageCompare;
 import net.sharksystem.asap.ASAPMessages;
 import net.sharksystem.asap.utils.PeerIDHelper;
+import net.sharksystem.fs.Durability;
+import net.sharksystem.utils.Log;
 
-import javax.xml.transform.Source;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
 
 public class ASAPMessagesMerger implements ASAPMessages {
+    private static final int INDEX_FILE_VERSION = 2;
+
     private final ASAPMessageCompare messageCompare;
     private CharSequence format;
     private CharSequence uri;
     private int size;
 
     private final ASAPMessages[] messageSources;
-    private List<SourceIndex> newFirstPositionList = new ArrayList<>();
-    private List<SourceIndex> oldFirstPositionList = new ArrayList<>();
-
-    private class SourceIndex {
-        public int wantedPosition; // overall position
-        public int sourceIndex; // which had fitting message
-        public int positionInSource; // position in source where to find message.
+    /** identify sources in index file - null if index is not persisted */
+    private final CharSequence[] sourceIDs;
+    private final File indexFile;
 
-        public SourceIndex(int wantedPosition, int sourceIndex, int positionInSource) {
-            this.wantedPosition = wantedPosition;
-            this.sourceIndex = sourceIndex;
-            this.positionInSource = positionInSource;
-        }
-    }
+    /** merged index in chronological order: source of message on each position and its position in source.
+     * null: not yet set up */
+    private int[] mergedSource = null;
+    private int[] mergedPositionInSource = null;
 
     ASAPMessagesMerger(List<ASAPMessages> messageSources, ASAPMessageCompare messageCompare)
             throws ASAPException, IOException {
+        this(messageSources, null, messageCompare, null);
+    }
+
+    /**
+     * @param sourceIDs identify message sources - same ids in the same order each time this channel is merged
+     * @param indexFile merged index is kept in that file and only set up again if sources changed. Only used with
+     *                  a message compare.
+     */
+    ASAPMessagesMerger(List<ASAPMessages> messageSources, List<CharSequence> sourceIDs,
+                       ASAPMessageCompare messageCompare, File indexFile) throws ASAPException, IOException {
         if(messageSources == null || messageSources.isEmpty())
             throw new ASAPException("message source must not be null or empty");
 
@@ -69,30 +80,21 @@ public class ASAPMessagesMerger implements ASAPMessages {
             if(source.size() > 0) notEmpty++;
         }
 
+        boolean persistIndex = messageCompare != null && indexFile != null && sourceIDs != null;
+        if(persistIndex && sourceIDs.size() != messageSources.size())
+            throw new ASAPException("each message source needs an id");
+
         // remember no empty sources
         this.messageSources = new ASAPMessages[notEmpty];
+        this.sourceIDs = persistIndex ? new CharSequence[notEmpty] : null;
+        this.indexFile = persistIndex ? indexFile : null;
         int i = 0;
-        for(ASAPMessages source : messageSources) {
-            if(source.size() > 0) this.messageSources[i++] = source;
-        }
-
-        if(this.messageCompare == null) {
-            // source will be returned in their order
-            int globalIndex = 0;
-            for(int sIndex = 0; sIndex < this.messageSources.length; sIndex++) {
-                SourceIndex index = new SourceIndex(globalIndex, sIndex, 0);
-                this.oldFirstPositionList.add(index);
-                this.newFirstPositionList.add(index);
-                globalIndex += this.messageSources[sIndex].size();
+        for(int sIndex = 0; sIndex < messageSources.size(); sIndex++) {
+            ASAPMessages source = messageSources.get(sIndex);
+            if(source.size() > 0) {
+                if(persistIndex) this.sourceIDs[i] = sourceIDs.get(sIndex);
+                this.messageSources[i++] = source;
             }
-            // last entry
-            int lastSourceI = this.messageSources.length-1;
-            SourceIndex lastSourceIndex = new SourceIndex(
-                    globalIndex-1, // last index
-                    lastSourceI, // last source
-                    this.messageSources[lastSourceI].size()-1);
-            this.oldFirstPositionList.add(lastSourceIndex);
-            this.newFirstPositionList.add(lastSourceIndex);
         }
     }
 
@@ -113,13 +115,13 @@ public class ASAPMessagesMerger implements ASAPMessages {
 
     @Override
     public Iterator<CharSequence> getMessagesAsCharSequence() throws IOException {
-        return new MessageMergerCharSequenceIterator(new MessageMergerIterator(true));
+        return new MessageMergerCharSequenceIterator(this.getMessages());
     }
 
     private class MessageMergerCharSequenceIterator implements Iterator<CharSequence> {
-        private final MessageMergerIterator iter;
+        private final Iterator<byte[]> iter;
 
-        MessageMergerCharSequenceIterator(MessageMergerIterator iter) {
+        MessageMergerCharSequenceIterator(Iterator<byte[]> iter) {
             this.iter = iter;
         }
 
@@ -136,264 +138,327 @@ public class ASAPMessagesMerger implements ASAPMessages {
 
     @Override
     public Iterator<byte[]> getMessages() throws IOException {
-        return new MessageMergerIterator(true);
+        return this.getMessages(true);
     }
 
-    private class MessageMergerIterator implements Iterator<byte[]> {
+    @Override
+    public Iterator<byte[]> getMessages(boolean chronologically) throws IOException {
+        if(this.messageCompare == null) return new SourceSequenceIterator(chronologically);
+
+        return new MessageMergerIterator(chronologically, false);
+    }
+
+    /**
+     * Without message compare, messages are delivered source by source - take messages from source iterators.
+     * Newest first: last source first, each delivering its newest message first.
+     */
+    private class SourceSequenceIterator implements Iterator<byte[]> {
         private final boolean chronologically;
-        private int currentPosition;
-        private byte[] lookAheadMessage = null;
+        private int nextSource;
+        private Iterator<byte[]> currentIterator = null;
 
-        MessageMergerIterator(boolean chronologically) {
+        SourceSequenceIterator(boolean chronologically) {
             this.chronologically = chronologically;
-
+            this.nextSource = chronologically ? 0 : ASAPMessagesMerger.this.messageSources.length - 1;
         }
 
         @Override
         public boolean hasNext() {
-            if(lookAheadMessage == null) {
-                // try
+            while(this.currentIterator == null || !this.currentIterator.hasNext()) {
+                if(this.nextSource < 0 || this.nextSource >= ASAPMessagesMerger.this.messageSources.length) {
+                    return false;
+                }
+
                 try {
-                    this.lookAheadMessage = ASAPMessagesMerger.this.getMessage(currentPosition++, chronologically);
-                } catch (ASAPException | IOException e) {
+                    this.currentIterator =
+                            ASAPMessagesMerger.this.messageSources[this.nextSource].getMessages(this.chronologically);
+                } catch (IOException e) {
                     return false;
                 }
+                this.nextSource += this.chronologically ? 1 : -1;
             }
-            return (this.lookAheadMessage != null);
+            return true;
         }
 
         @Override
         public byte[] next() {
-            if (this.lookAheadMessage != null) {
-                if (this.hasNext()) {
-                    byte[] temp = this.lookAheadMessage;
-                    this.lookAheadMessage = null;
-                    return temp;
-                }
-            }
-
-            throw new NoSuchElementException("no more messages");
+            if(!this.hasNext()) throw new NoSuchElementException("no more messages");
+            return this.currentIterator.next();
         }
     }
 
-    @Override
-    public CharSequence getMessageAsCharSequence(int position, boolean chronologically) throws ASAPException, IOException {
-        return new String(this.getMessage(position, chronologically));
+    /**
+     * Next message of a source - waiting in merge queue
+     */
+    private static class SourceHead {
+        final int sourceIndex;
+        final Iterator<byte[]> messages;
+        byte[] message;
+        int positionInSource = 0;
+
+        SourceHead(int sourceIndex, Iterator<byte[]> messages) {
+            this.sourceIndex = sourceIndex;
+            this.messages = messages;
+            this.message = messages.next();
+        }
     }
 
     /**
-    The list is organized like this: Each entry describes a position of the merged sources: wantedPosition.
-    It also describes source (actually the index of the source: sourceIndex) and position of the message
-    in the source (positionInSource). There is not necessarily and entry for each wantedPosition - to keep
-    that list short.
-
-    A entry is made if the list was empty. There will always be an entry for wantedPosition == 0. Another entry
-    will only added if source has changed. Assumed we would have two sources (A and B), first messages come from
-    A, follow by B again and so forth, list would look like this: (wantedPosition: 0, A, 0) Both positions will be
-    0 in the first entry. Next entry could be: (4, B, 0). Message for position comes from source B index 0. But
-    where come message at 1, 2 and 3? From A. There was no change of source, no entry was made. We avoid a series of
-    entries like: (1, A, 1), (2, A, 2), (3, A, 3). They can easily be calculated.
+     * Merges source iterators with a priority queue holding the next message of each source. Each message
+     * is read once. Equal messages are delivered in order of sources.
      */
-    private SourceIndex getSourceIndex(int position, List<SourceIndex> indexList) {
-        if(indexList.isEmpty()) return null; // not yet initialized?
-        SourceIndex previousIndexEntry = null;
-        int i = 0;
-        do {
-            if(indexList.size() <= i) return null;
-            SourceIndex indexEntry = indexList.get(i++);
-
-            if(indexEntry.wantedPosition == position) return indexEntry; // found match
-
-            if(previousIndexEntry != null
-                    && previousIndexEntry.wantedPosition < position
-                    && position < indexEntry.wantedPosition) {
-                // we are within a range.
-                int offsetIndex = previousIndexEntry.wantedPosition;
-                int steps = position - offsetIndex;
-                return new SourceIndex(position,
-                        previousIndexEntry.sourceIndex,
-                        previousIndexEntry.positionInSource + steps);
+    private class MessageMergerIterator implements Iterator<byte[]> {
+        private final PriorityQueue<SourceHead> heads;
+        /** deliver no more messages of a source than it had when this merger was created */
+        private final boolean limitToSize;
+
+        /** describes message that was delivered last */
+        private int lastSourceIndex = -1;
+        private int lastPositionInSource = -1;
+
+        MessageMergerIterator(final boolean chronologically, boolean limitToSize) throws IOException {
+            this.limitToSize = limitToSize;
+            ASAPMessages[] messageSources = ASAPMessagesMerger.this.messageSources;
+
+            this.heads = new PriorityQueue<>(Math.max(1, messageSources.length), new Comparator<SourceHead>() {
+                @Override
+                public int compare(SourceHead a, SourceHead b) {
+                    ASAPMessageCompare messageCompare = ASAPMessagesMerger.this.messageCompare;
+                    int aFirst = chronologically ? -1 : 1;
+                    if(messageCompare.earlier(a.message, b.message)) return aFirst;
+                    if(messageCompare.earlier(b.message, a.message)) return -aFirst;
+
+                    // keep order of sources - reversed if newest come first
+                    return chronologically ? a.sourceIndex - b.sourceIndex : b.sourceIndex - a.sourceIndex;
+                }
+            });
+
+            for(int i = 0; i < messageSources.length; i++) {
+                Iterator<byte[]> messages = messageSources[i].getMessages(chronologically);
+                if(messages.hasNext()) this.heads.add(new SourceHead(i, messages));
             }
+        }
 
-            previousIndexEntry = indexEntry;
-        } while(previousIndexEntry.wantedPosition < position); // we have still a chance to find anything
+        @Override
+        public boolean hasNext() {
+            return !this.heads.isEmpty();
+        }
 
-        return null; // there is no entry
-    }
+        @Override
+        public byte[] next() {
+            SourceHead head = this.heads.poll();
+            if(head == null) throw new NoSuchElementException("no more messages");
 
-    private static final int FALSE = 0;
-    private static final int TRUE = 1;
-    private byte[][][] lookAheadMessages = new byte[2][][]; // actual look ahead message
-    private SourceIndex[][] lookAheadSourceIndex = new SourceIndex[2][]; // describes position etc. of previous
+            byte[] message = head.message;
+            this.lastSourceIndex = head.sourceIndex;
+            this.lastPositionInSource = head.positionInSource;
+
+            try {
+                boolean more = head.messages.hasNext();
+                if(more && this.limitToSize) {
+                    more = head.positionInSource + 1 < ASAPMessagesMerger.this.messageSources[head.sourceIndex].size();
+                }
 
-    private byte[][] getLookAheadMessages(boolean chronologically) {
-        byte[][] a = chronologically ? this.lookAheadMessages[TRUE] : this.lookAheadMessages[FALSE];
+                if(more) {
+                    head.message = head.messages.next();
+                    head.positionInSource++;
+                    this.heads.add(head);
+                }
+            } catch (IOException e) {
+                // source cannot tell its size - take no more messages
+            }
 
-        if(a == null) { // not yet initialized
-            a  = new byte[this.messageSources.length][];
-            if(chronologically) this.lookAheadMessages[TRUE] = a;
-            else this.lookAheadMessages[FALSE] = a;
+            return message;
         }
+    }
 
-        return a;
+    @Override
+    public CharSequence getMessageAsCharSequence(int position, boolean chronologically) throws ASAPException, IOException {
+        return new String(this.getMessage(position, chronologically));
     }
 
-    private SourceIndex[] getLookAheadSourceIndex(boolean chronologically) {
-        SourceIndex[] s = chronologically ? this.lookAheadSourceIndex[TRUE] : this.lookAheadSourceIndex[FALSE];
+    /**
+     * @return position in merged index (chronological order)
+     */
+    private int getIndexPosition(int position, boolean chronologically) throws ASAPException, IOException {
+        if(position < 0 || position >= this.size)
+            throw new ASAPException("position index must not exceed total number of messages: "
+                    + position + " >= " + this.size);
 
-        if(s == null) { // not yet initialized
-            s  = new SourceIndex[this.messageSources.length];
-            if(chronologically) this.lookAheadSourceIndex[TRUE] = s;
-            else this.lookAheadSourceIndex[FALSE] = s;
-        }
+        this.setupIndex();
 
-        return s;
+        return chronologically ? position : this.size - 1 - position;
     }
 
-    private boolean lookAheadSettedUp = false;
-    private SourceIndex lookAhead(int position, List<SourceIndex> indexList, boolean chronologically)
-            throws ASAPException, IOException {
-
-        int wantedLookAheadPosition = 0;
+    @Override
+    public byte[] getMessage(int position, boolean chronologically) throws ASAPException, IOException {
+        int i = this.getIndexPosition(position, chronologically);
+        return this.messageSources[this.mergedSource[i]].getMessage(this.mergedPositionInSource[i], true);
+    }
 
-        if(!indexList.isEmpty()) { // we already made a look ahead
-            // get last entry
-            SourceIndex sourceIndex = indexList.get(indexList.size() - 1);
+    @Override
+    public ByteBuffer getMessageBuffer(int position, boolean chronologically) throws ASAPException, IOException {
+        int i = this.getIndexPosition(position, chronologically);
+        return this.messageSources[this.mergedSource[i]].getMessageBuffer(this.mergedPositionInSource[i], true);
+    }
 
-            // check for your own stupidity - last position is before our wanted position - we would not be here otherwise
-            if (sourceIndex != null && sourceIndex.wantedPosition >= position)
-                throw new ASAPException("internal error - look ahead algorithm buggy");
+    @Override
+    public InputStream openMessageStream(int position, boolean chronologically) throws ASAPException, IOException {
+        int i = this.getIndexPosition(position, chronologically);
+        return this.messageSources[this.mergedSource[i]].openMessageStream(this.mergedPositionInSource[i], true);
+    }
 
-            wantedLookAheadPosition = sourceIndex.wantedPosition + 1;
+    @Override
+    public void forEachMessage(Consumer<ByteBuffer> consumer) throws IOException {
+        if(this.messageCompare == null) {
+            // source by source
+            for(ASAPMessages source : this.messageSources) {
+                source.forEachMessage(consumer);
+            }
+            return;
         }
 
-        byte[][] lookAheadMessages = this.getLookAheadMessages(chronologically);
-        SourceIndex[] lookAheadSourceIndexArray = this.getLookAheadSourceIndex(chronologically);
-
-        if(!this.lookAheadSettedUp) { // setup
-            // set it up - read first message from each non empty source
-            this.lookAheadSettedUp = true;
-            for (int i = 0; i < this.messageSources.length; i++) {
-                lookAheadMessages[i] = this.messageSources[i].getMessage(0, chronologically);
-                lookAheadSourceIndexArray[i] = new SourceIndex(-1, i, 0);
+        // merged order is known after setting up index
+        this.setupIndex();
+        try {
+            for(int i = 0; i < this.size; i++) {
+                consumer.accept(this.messageSources[this.mergedSource[i]]
+                        .getMessageBuffer(this.mergedPositionInSource[i], true));
             }
+        } catch (ASAPException e) {
+            throw new IOException("merged index does not fit to message sources: " + e.getLocalizedMessage());
         }
+    }
 
-        // find message for next position.
-        SourceIndex previousSourceIndex = null;
-        SourceIndex foundSourceIndex = null;
-
-        boolean lastSourceIndexAdded;
-        do {
-            int bestSourceIndex = -1; // init source index 0 wins?
-            lastSourceIndexAdded = false; // not yet at least
-
-            for (int i = 0; i < this.messageSources.length; i++) {
-                if(lookAheadMessages[i] == null) continue; // nothing to do in this round
-                if(bestSourceIndex == -1) {
-                    // guess we have a winner without opponent
-                    bestSourceIndex = i;
-                    continue;
-                }
-
-                boolean previousEarlier =
-                        this.messageCompare.earlier(lookAheadMessages[bestSourceIndex], lookAheadMessages[i]);
-
-            /*
-            previous earlier | chronologically | what wins?
-            -----------------------------------------------
-                   true             true           no change
-                   false            true            i is better
-                   true             false           i is better
-                   false            false          no change
-             */
-
-                if (previousEarlier != chronologically) { bestSourceIndex = i; }
-            }
+    @Override
+    public ASAPChunk getChunk(int position, boolean chronologically) throws IOException, ASAPException {
+        int i = this.getIndexPosition(position, chronologically);
+        return this.messageSources[this.mergedSource[i]].getChunk(this.mergedPositionInSource[i], true);
+    }
 
-            if(bestSourceIndex == -1) // failure in algorithm - should not happen due to test of size()..
-                throw new ASAPException("no more message - cannot look ahead");
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                       merged index                                   //
+    //////////////////////////////////////////////////////////////////////////////////////////
 
-            // we have a winner
-            foundSourceIndex = lookAheadSourceIndexArray[bestSourceIndex];
+    private synchronized void setupIndex() throws IOException {
+        if(this.mergedSource != null) return;
 
-            // now we can tell at what overall position this message is
-            foundSourceIndex.wantedPosition = wantedLookAheadPosition;
+        int[] mergedSource = new int[this.size];
+        int[] mergedPositionInSource = new int[this.size];
 
-            if(previousSourceIndex != null) {
-                if(previousSourceIndex.sourceIndex != foundSourceIndex.sourceIndex) {
-                    // remember previous - we have a change in sources
-                    indexList.add(foundSourceIndex);
-                    lastSourceIndexAdded = true;
+        if(this.messageCompare == null) {
+            // source by source - nothing to read
+            int position = 0;
+            for(int sIndex = 0; sIndex < this.messageSources.length; sIndex++) {
+                int sourceSize = this.messageSources[sIndex].size();
+                for(int i = 0; i < sourceSize; i++) {
+                    mergedSource[position] = sIndex;
+                    mergedPositionInSource[position++] = i;
                 }
-            } else {
-                indexList.add(foundSourceIndex);
-                lastSourceIndexAdded = true;
-            }
-
-            // prepare next round
-            previousSourceIndex = foundSourceIndex;
-
-            // read ahead - if possible
-            lookAheadSourceIndexArray[bestSourceIndex] = null;
-            lookAheadMessages[bestSourceIndex] = null;
-            int nextPositionInSource = foundSourceIndex.positionInSource + 1;
-            try {
-                lookAheadMessages[bestSourceIndex] =
-                        messageSources[bestSourceIndex].getMessage(nextPositionInSource, chronologically);
-
-                // remember read ahead
-                lookAheadSourceIndexArray[bestSourceIndex] =
-                        new SourceIndex(-1, // we cannot tell yet
-                                bestSourceIndex, nextPositionInSource); // we know where it comes from
             }
-            catch(Exception e) {
-                // no more messages
+        }
+        else if(!this.readIndex(mergedSource, mergedPositionInSource)) {
+            // merge once - each message is read
+            MessageMergerIterator mergerIterator = new MessageMergerIterator(true, true);
+            int position = 0;
+            while(mergerIterator.hasNext() && position < this.size) {
+                mergerIterator.next();
+                mergedSource[position] = mergerIterator.lastSourceIndex;
+                mergedPositionInSource[position++] = mergerIterator.lastPositionInSource;
             }
-        } while(position > wantedLookAheadPosition++);
 
-        // remember this in any case
-        if(!lastSourceIndexAdded) indexList.add(foundSourceIndex);
+            if(position < this.size) throw new IOException("message sources delivered less messages than expected");
 
-        return foundSourceIndex;
-    }
+            this.writeIndex(mergedSource);
+        }
 
-    private List<SourceIndex> getIndexList(boolean chronologically) {
-        return chronologically ? oldFirstPositionList : newFirstPositionList;
+        this.mergedSource = mergedSource;
+        this.mergedPositionInSource = mergedPositionInSource;
     }
 
-    private SourceIndex getSourceIndex(int position, boolean chronologically) throws ASAPException, IOException {
-        if(position >= this.size)
-            throw new ASAPException("position index must not exceed total number of messages: "
-                    + position + " >= " + this.size);
+    /**
+     * @return describes chunks of that source - a changed chunk changes fingerprint
+     */
+    private static long[] getFingerprint(ASAPMessages source) throws IOException {
+        if(source instanceof ASAPInMemoMessages) return ((ASAPInMemoMessages) source).getFingerprint();
+        // no chunks known - size only
+        return new long[] { source.size() };
+    }
 
-        SourceIndex sourceIndex;
-        List<SourceIndex> usedList = this.getIndexList(chronologically);
+    /**
+     * Index file holds compare class, source ids and fingerprints and the source of each position.
+     * @return true if there was an index file made for these sources
+     */
+    private boolean readIndex(int[] mergedSource, int[] mergedPositionInSource) {
+        if(this.indexFile == null || !this.indexFile.exists()) return false;
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+            if(dis.readInt() != INDEX_FILE_VERSION) return false;
+            if(!dis.readUTF().equals(this.messageCompare.getClass().getName())) return false;
+
+            int numberSources = dis.readInt();
+            if(numberSources != this.messageSources.length) return false;
+            for(int sIndex = 0; sIndex < numberSources; sIndex++) {
+                if(!dis.readUTF().equals(this.sourceIDs[sIndex].toString())) return false;
+                long[] fingerprint = getFingerprint(this.messageSources[sIndex]);
+                if(dis.readInt() != fingerprint.length) return false;
+                for(long value : fingerprint) {
+                    if(dis.readLong() != value) return false;
+                }
+            }
 
-        sourceIndex = this.getSourceIndex(position, usedList);
+            if(dis.readInt() != this.size) return false;
 
-        if(sourceIndex == null) {
-            // cache miss
-            sourceIndex = this.lookAhead(position, usedList, chronologically);
+            int[] nextPositionInSource = new int[numberSources];
+            for(int position = 0; position < this.size; position++) {
+                int sIndex = dis.readInt();
+                if(sIndex < 0 || sIndex >= numberSources) return false;
+                mergedSource[position] = sIndex;
+                mergedPositionInSource[position] = nextPositionInSource[sIndex]++;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.writeLog(this, "cannot read merged index - set it up again: " + e.getLocalizedMessage());
+            return false;
         }
-        if(sourceIndex == null) {
-            // still nothing
-            throw new ASAPException("no message at position: " + position);
+        finally {
+            try {
+                if(dis != null) dis.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
         }
-
-        return sourceIndex;
-    }
-
-    @Override
-    public byte[] getMessage(int position, boolean chronologically) throws ASAPException, IOException {
-        SourceIndex sourceIndex = this.getSourceIndex(position, chronologically);
-        return this.messageSources[sourceIndex.sourceIndex].getMessage(
-                sourceIndex.positionInSource, chronologically);
     }
 
-    @Override
-    public ASAPChunk getChunk(int position, boolean chronologically) throws IOException, ASAPException {
-        SourceIndex sourceIndex = this.getSourceIndex(position, chronologically);
-        return this.messageSources[sourceIndex.sourceIndex].getChunk(sourceIndex.positionInSource, chronologically);
+    private void writeIndex(int[] mergedSource) {
+        if(this.indexFile == null) return;
+
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(INDEX_FILE_VERSION);
+            dos.writeUTF(this.messageCompare.getClass().getName());
+            dos.writeInt(this.messageSources.length);
+            for (int sIndex = 0; sIndex < this.messageSources.length; sIndex++) {
+                dos.writeUTF(this.sourceIDs[sIndex].toString());
+                long[] fingerprint = getFingerprint(this.messageSources[sIndex]);
+                dos.writeInt(fingerprint.length);
+                for(long value : fingerprint) dos.writeLong(value);
+            }
+            dos.writeInt(this.size);
+            for (int position = 0; position < this.size; position++) {
+                dos.writeInt(mergedSource[position]);
+            }
+            dos.close();
+
+            // a crash leaves old or new index - never a truncated one (depends on durability mode)
+            Durability.writeFile(this.indexFile, baos.toByteArray());
+        } catch (IOException e) {
+            // index is set up again next time
+            Log.writeLogErr(this, "cannot write merged index: " + e.getLocalizedMessage());
+            this.indexFile.delete();
+        }
     }
 }
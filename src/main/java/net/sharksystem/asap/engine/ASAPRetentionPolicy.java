@@ -0,0 +1,65 @@
+package net.sharksystem.asap.engine;
+
+/**
+ * Describes how long chunks are kept. Eras are removed - oldest first - if there are more than
+ * maxEras eras, if all eras together are larger than maxBytes or if an era was not changed for
+ * maxAge milliseconds. Current era is never removed.
+ * <br/><br/>
+ * Chunks smaller than tinyChunkSize are merged into the same chunk of an older era if no known
+ * peer would ever ask for those eras again.
+ *
+ * @author thsc
+ * @see ASAPEngine#setRetentionPolicy(ASAPRetentionPolicy, long)
+ */
+public class ASAPRetentionPolicy {
+    /** no limit */
+    public static final int UNLIMITED = -1;
+    public static final int DEFAULT_TINY_CHUNK_SIZE = 1024;
+
+    private final int maxEras;
+    private final long maxBytes;
+    private final long maxAge;
+    private int tinyChunkSize = DEFAULT_TINY_CHUNK_SIZE;
+
+    /**
+     * @param maxEras maximum number of eras with chunks - UNLIMITED or at least 1
+     * @param maxBytes maximum sum of message bytes in all eras - or UNLIMITED
+     * @param maxAge eras not changed for that number of milliseconds are removed - or UNLIMITED
+     */
+    public ASAPRetentionPolicy(int maxEras, long maxBytes, long maxAge) {
+        if(maxEras == 0 || maxEras < UNLIMITED) {
+            throw new IllegalArgumentException("at least one era must be kept: " + maxEras);
+        }
+        this.maxEras = maxEras;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+    }
+
+    public int getMaxEras() {
+        return this.maxEras;
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public long getMaxAge() {
+        return this.maxAge;
+    }
+
+    public int getTinyChunkSize() {
+        return this.tinyChunkSize;
+    }
+
+    /**
+     * @param tinyChunkSize chunks up to that size (in bytes) are merged - 0: no merging
+     */
+    public void setTinyChunkSize(int tinyChunkSize) {
+        this.tinyChunkSize = tinyChunkSize;
+    }
+
+    public String toString() {
+        return "maxEras: " + this.maxEras + " | maxBytes: " + this.maxBytes + " | maxAge: " + this.maxAge
+                + " | tinyChunkSize: " + this.tinyChunkSize;
+    }
+}
@@ -0,0 +1,297 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAP;
+import net.sharksystem.asap.ASAPChunkStorage;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPStorage;
+import net.sharksystem.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Chunks received from other peers (originators) - kept in memory to decide what to route to an encountered
+ * peer. Storages of originators are read once when an originator is noticed for the first time. Later on,
+ * assimilated chunks are announced. Index is shared by all engine objects on a folder in this process.
+ * <br/><br/>
+ * Entries can be outdated: chunks are dropped by retention, new eras or another process. Routing checks
+ * that a chunk still exists before sending it and removes outdated entries. Storage of an originator is
+ * read again if another process changed it - noticed by modification time and length of its memento and
+ * its current era. Announced changes update those attributes as well. Only current era is read again if
+ * storage was changed within the time resolution unit of modification time.
+ *
+ * @author thsc
+ */
+class ASAPRoutingIndex {
+    private static final Map<String, ASAPRoutingIndex> indices = new HashMap<>();
+    private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+    /** originator -> received chunks */
+    private final Map<String, Originator> originators = new HashMap<>();
+    /** engine root - null: engine in memory, all changes are announced */
+    private final File rootFolder;
+
+    ASAPRoutingIndex() {
+        this(null);
+    }
+
+    private ASAPRoutingIndex(File rootFolder) {
+        this.rootFolder = rootFolder;
+    }
+
+    static ASAPRoutingIndex getIndex(String folderName) {
+        String key = ASAPMessageCache.getFolderKey(folderName);
+
+        synchronized(indices) {
+            ASAPRoutingIndex index = indices.get(key);
+            if(index == null) {
+                index = new ASAPRoutingIndex(new File(folderName));
+                indices.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return originators the engine has received chunks from - storages of originators not yet known or
+     * changed by others are read
+     */
+    synchronized List<CharSequence> getOriginators(ASAPEngine engine) throws IOException {
+        List<CharSequence> sender = engine.getSender();
+
+        Set<String> senderIDs = new HashSet<>();
+        for(CharSequence senderID : sender) {
+            senderIDs.add(senderID.toString());
+            Originator originator = this.originators.get(senderID.toString());
+            if(originator == null || !this.sameStamp(senderID.toString(), originator)) {
+                this.setUp(engine, senderID.toString());
+            } else if(!this.stampConfirmed(originator)) {
+                this.refreshEra(engine, senderID.toString(), originator);
+            }
+        }
+
+        // storage removed
+        this.originators.keySet().retainAll(senderIDs);
+
+        return sender;
+    }
+
+    private void setUp(ASAPEngine engine, String originatorID) throws IOException {
+        Originator originator = new Originator();
+        try {
+            ASAPStorage receivedMessagesStorage = engine.getExistingIncomingStorage(originatorID);
+            originator.era = receivedMessagesStorage.getEra();
+            // before reading - changes made while reading are noticed with next check
+            this.stamp(originatorID, originator);
+            ASAPChunkStorage chunkStorage = receivedMessagesStorage.getChunkStorage();
+
+            int era = receivedMessagesStorage.getOldestEra();
+            boolean lastRound;
+            do {
+                lastRound = era == originator.era;
+                for(ASAPInternalChunk chunk : chunkStorage.getChunks(era)) {
+                    originator.put(new Route(era, chunk.getUri(), chunk.getLength(), chunk.getRecipients()));
+                }
+                era = ASAP.nextEra(era);
+            } while(!lastRound);
+        }
+        catch(ASAPException e) {
+            Log.writeLogErr(this, "internal problem: we know sender but cannot access its storage: "
+                    + originatorID);
+            return;
+        }
+
+        this.originators.put(originatorID, originator);
+    }
+
+    /**
+     * Chunks of current era of originator are read again. Others could have changed storage in the time
+     * resolution unit of the last stamp without changing attributes - only current era can be affected.
+     */
+    private void refreshEra(ASAPEngine engine, String originatorID, Originator originator) throws IOException {
+        try {
+            ASAPStorage receivedMessagesStorage = engine.getExistingIncomingStorage(originatorID);
+            this.stamp(originatorID, originator);
+            originator.routes.remove(originator.era);
+            for(ASAPInternalChunk chunk : receivedMessagesStorage.getChunkStorage().getChunks(originator.era)) {
+                originator.put(new Route(originator.era, chunk.getUri(), chunk.getLength(), chunk.getRecipients()));
+            }
+        }
+        catch(ASAPException e) {
+            Log.writeLogErr(this, "internal problem: we know sender but cannot access its storage: "
+                    + originatorID);
+            this.originators.remove(originatorID);
+        }
+    }
+
+    /**
+     * @return false if storage of originator was changed by someone else since it was stamped
+     */
+    private boolean sameStamp(String originatorID, Originator originator) {
+        if(this.rootFolder == null) return true;
+
+        return Arrays.equals(this.getStorageStamp(originatorID, originator.era), originator.storageStamp);
+    }
+
+    /**
+     * @return true if storage was stamped later than the time resolution unit of its last change - any
+     * later change would have changed modification time
+     */
+    private boolean stampConfirmed(Originator originator) {
+        if(this.rootFolder == null) return true;
+
+        return originator.stampedSince - getLastModified(originator.storageStamp) > MODIFICATION_TIME_GRANULARITY;
+    }
+
+    private void stamp(String originatorID, Originator originator) {
+        if(this.rootFolder == null) return;
+        originator.stampedSince = System.currentTimeMillis();
+        originator.storageStamp = this.getStorageStamp(originatorID, originator.era);
+    }
+
+    /**
+     * @return modification time and length of memento, era folder and era segment of originator storage -
+     * changed if chunks are stored or dropped or a new era begins
+     */
+    private long[] getStorageStamp(String originatorID, int era) {
+        File storageFolder = new File(this.rootFolder, originatorID);
+        File memento = new File(storageFolder, ASAPEngineFS.MEMENTO_FILENAME);
+        File eraFolder = new File(storageFolder, Integer.toString(era));
+        File eraSegment = new File(storageFolder, era + "." + ASAPSegmentFile.SEGMENT_EXTENSION);
+
+        return new long[] {
+                memento.lastModified(), memento.length(),
+                eraFolder.lastModified(),
+                eraSegment.lastModified(), eraSegment.length()
+        };
+    }
+
+    private static long getLastModified(long[] storageStamp) {
+        return Math.max(storageStamp[0], Math.max(storageStamp[2], storageStamp[3]));
+    }
+
+    /**
+     * A chunk received from originator was stored. Originators not yet known are ignored - their storage
+     * is read when needed.
+     */
+    synchronized void chunkAssimilated(CharSequence originatorID, int era, CharSequence uri, long length,
+                                       Set<CharSequence> recipients) {
+        Originator originator = this.originators.get(originatorID.toString());
+        if(originator == null) return;
+
+        // received chunks are stored in era of originator - it became era of that storage
+        originator.era = era;
+        originator.put(new Route(era, uri, length, recipients));
+        // own change - storage is not read again
+        this.stamp(originatorID.toString(), originator);
+    }
+
+    synchronized void chunkRemoved(CharSequence originatorID, int era, CharSequence uri) {
+        Originator originator = this.originators.get(originatorID.toString());
+        if(originator == null) return;
+
+        originator.remove(era, uri);
+        this.stamp(originatorID.toString(), originator);
+    }
+
+    /**
+     * @return era of storage of chunks received from originator
+     */
+    synchronized int getEra(CharSequence originatorID) {
+        Originator originator = this.originators.get(originatorID.toString());
+        return originator == null ? ASAP.INITIAL_ERA : originator.era;
+    }
+
+    /**
+     * @return oldest era with chunks received from originator - era of storage if there are no chunks
+     */
+    synchronized int getOldestEra(CharSequence originatorID) {
+        Originator originator = this.originators.get(originatorID.toString());
+        if(originator == null) return ASAP.INITIAL_ERA;
+
+        int oldestEra = originator.era;
+        for(Integer era : originator.routes.keySet()) {
+            if(eraDistance(era, originator.era) > eraDistance(oldestEra, originator.era)) oldestEra = era;
+        }
+        return oldestEra;
+    }
+
+    /**
+     * @return chunks received from originator in eras from firstEra to lastEra - in that order
+     */
+    synchronized List<Route> getRoutes(CharSequence originatorID, int firstEra, int lastEra) {
+        List<Route> routes = new ArrayList<>();
+        Originator originator = this.originators.get(originatorID.toString());
+        if(originator == null) return routes;
+
+        for(Map.Entry<Integer, Map<String, Route>> eraEntry : originator.routes.entrySet()) {
+            if(ASAP.isEraInRange(eraEntry.getKey(), firstEra, lastEra)) {
+                routes.addAll(eraEntry.getValue().values());
+            }
+        }
+
+        routes.sort((r1, r2) -> Long.compare(eraDistance(firstEra, r1.era), eraDistance(firstEra, r2.era)));
+        return routes;
+    }
+
+    /**
+     * @return distance from era to laterEra - eras are a ring
+     */
+    private static long eraDistance(int era, int laterEra) {
+        long numberEras = (long) ASAP.MAX_ERA + 1;
+        return (((long) laterEra - era) % numberEras + numberEras) % numberEras;
+    }
+
+    private static class Originator {
+        private int era = ASAP.INITIAL_ERA;
+        /** storage attributes when it was read - null: in memory */
+        private long[] storageStamp = null;
+        private long stampedSince = 0;
+        /** era -> uri -> route */
+        private final Map<Integer, Map<String, Route>> routes = new HashMap<>();
+
+        void put(Route route) {
+            Map<String, Route> eraRoutes = this.routes.get(route.era);
+            if(eraRoutes == null) {
+                eraRoutes = new HashMap<>();
+                this.routes.put(route.era, eraRoutes);
+            }
+            eraRoutes.put(route.uri, route);
+        }
+
+        void remove(int era, CharSequence uri) {
+            Map<String, Route> eraRoutes = this.routes.get(era);
+            if(eraRoutes == null) return;
+            eraRoutes.remove(uri.toString());
+            if(eraRoutes.isEmpty()) this.routes.remove(era);
+        }
+    }
+
+    static class Route {
+        final int era;
+        final String uri;
+        final long length;
+        /** empty: public chunk */
+        final Set<CharSequence> recipients;
+
+        Route(int era, CharSequence uri, long length, Set<CharSequence> recipients) {
+            this.era = era;
+            this.uri = uri.toString();
+            this.length = length;
+            this.recipients = recipients == null
+                    ? Collections.<CharSequence>emptySet() : new HashSet<>(recipients);
+        }
+
+        /**
+         * @return true if chunk is not empty and can be sent to that peer
+         */
+        boolean routedTo(CharSequence peerID) {
+            return this.length > 0 && (this.recipients.isEmpty() || this.recipients.contains(peerID));
+        }
+
+        public String toString() {
+            return this.uri + " | era: " + this.era + " | len: " + this.length;
+        }
+    }
+}
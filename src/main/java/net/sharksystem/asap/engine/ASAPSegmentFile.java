@@ -0,0 +1,710 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPHop;
+import net.sharksystem.asap.utils.ASAPSerialization;
+import net.sharksystem.fs.Durability;
+import net.sharksystem.utils.Log;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * All chunks of an era in a single file. The file is a log - records are appended, never changed:
+ * <pre>
+ * header:  int magic | int version | long segment id
+ * message: byte 1 | UTF uri | int length | message
+ * meta:    byte 2 | UTF uri | int length | meta data (latest record is valid)
+ * drop:    byte 3 | UTF uri
+ * footer:  byte 4 | int length | index | long footer start | int magic
+ * </pre>
+ * A footer contains the whole index (chunks, meta data, message positions). It is written with
+ * flush. Index is read from footer if file ends with one. Records after the last footer are read
+ * otherwise - the whole file in the worst case.
+ * <br/><br/>
+ * There can be more than one object for the same file in a process. Each one keeps its index and
+ * reads records appended by others before it appends or reads its own.
+ *
+ * @author thsc
+ */
+class ASAPSegmentFile {
+    public static final String SEGMENT_EXTENSION = "asapSegment";
+
+    private static final int SEGMENT_MAGIC = 0x41534753; // ASGS
+    private static final int SEGMENT_VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int FOOTER_TRAILER_LENGTH = 12;
+
+    private static final byte MESSAGE_RECORD = 1;
+    private static final byte META_RECORD = 2;
+    private static final byte DROP_RECORD = 3;
+    private static final byte FOOTER_RECORD = 4;
+
+    /** all objects on same file in this process share a lock */
+    private static final Map<String, Object> fileLocks = new HashMap<>();
+
+    private static synchronized Object getFileLock(File file) {
+        String path = file.getAbsolutePath();
+        Object lock = fileLocks.get(path);
+        if(lock == null) {
+            lock = new Object();
+            fileLocks.put(path, lock);
+        }
+        return lock;
+    }
+
+    private final File file;
+    private final int era;
+    private final Object lock;
+
+    /** uri -> chunk entry, order of creation */
+    private final Map<String, ChunkEntry> index = new LinkedHashMap<>();
+    /** file read up to this position */
+    private long knownEnd = 0;
+    /** random number in header - tells if file was removed and set up again */
+    private long segmentID = 0;
+    /** file ends with a footer written by this object */
+    private boolean footerIsLast = false;
+
+    Object getLock() {
+        return this.lock;
+    }
+
+    ASAPSegmentFile(File file, int era) throws IOException {
+        this.file = file;
+        this.era = era;
+        this.lock = getFileLock(file);
+
+        synchronized(this.lock) {
+            if(!this.readFooter()) {
+                this.catchUp();
+            }
+        }
+    }
+
+    File getFile() {
+        return this.file;
+    }
+
+    int getEra() {
+        return this.era;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                         index                                        //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    /** everything known about a chunk in this segment */
+    static class ChunkEntry {
+        String uri;
+        Set<CharSequence> recipients = new HashSet<>();
+        List<CharSequence> deliveredTo = new ArrayList<>();
+        HashMap<String, String> extraData = new HashMap<>();
+        List<ASAPHop> hopList = new ArrayList<>();
+
+        /** positions of messages in file */
+        List<Long> positions = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        long contentLength = 0;
+
+        ChunkEntry(String uri) {
+            this.uri = uri;
+        }
+
+        void addMessage(long position, int length) {
+            this.positions.add(position);
+            this.lengths.add(length);
+            this.contentLength += length;
+        }
+    }
+
+    /**
+     * @param create create chunk if it does not exist yet
+     * @return chunk entry - null if it does not exist and is not to be created.
+     */
+    ChunkEntry getEntry(String uri, boolean create) throws IOException {
+        synchronized(this.lock) {
+            this.catchUp();
+            ChunkEntry entry = this.index.get(uri);
+            if(entry == null && create) {
+                entry = new ChunkEntry(uri);
+                // a chunk exists as soon as there is a meta record
+                this.appendMetaRecord(entry);
+                this.index.put(uri, entry);
+            }
+            return entry;
+        }
+    }
+
+    List<String> getURIs() throws IOException {
+        synchronized(this.lock) {
+            this.catchUp();
+            return new ArrayList<>(this.index.keySet());
+        }
+    }
+
+    boolean isEmpty() throws IOException {
+        synchronized(this.lock) {
+            this.catchUp();
+            return this.index.isEmpty();
+        }
+    }
+
+    /**
+     * Read records that were appended by other objects since last call.
+     */
+    private void catchUp() throws IOException {
+        long fileLength = this.file.length();
+        if(fileLength == this.knownEnd) return;
+
+        if(fileLength < HEADER_LENGTH) {
+            // removed (era dropped) or nothing useful written
+            this.index.clear();
+            this.knownEnd = 0;
+            this.mappedSegment = null;
+            if(fileLength > 0) truncate(this.file, 0);
+            return;
+        }
+
+        PositionInputStream pis = new PositionInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        DataInputStream dis = new DataInputStream(pis);
+        try {
+            if(dis.readInt() != SEGMENT_MAGIC) throw new IOException("not a segment file: " + this.file);
+            int version = dis.readInt();
+            if(version != SEGMENT_VERSION) {
+                throw new IOException("unsupported segment version (" + version + "): " + this.file);
+            }
+            long segmentID = dis.readLong();
+            if(this.knownEnd == 0 || segmentID != this.segmentID || fileLength < this.knownEnd) {
+                // new or removed and set up again - read everything
+                this.index.clear();
+                this.segmentID = segmentID;
+            } else {
+                skipFully(dis, this.knownEnd - HEADER_LENGTH);
+            }
+
+            long recordStart = pis.position;
+            while(recordStart < fileLength) {
+                try {
+                    this.readRecord(dis, pis, fileLength);
+                }
+                catch(EOFException e) {
+                    // incomplete record - writing was interrupted
+                    Log.writeLog(this, this.toString(), "remove incomplete record at " + recordStart);
+                    dis.close();
+                    truncate(this.file, recordStart);
+                    break;
+                }
+                recordStart = pis.position;
+            }
+            this.knownEnd = recordStart;
+            this.footerIsLast = false;
+        }
+        catch(ASAPException e) {
+            throw new IOException("cannot read segment file " + this.file + ": " + e.getLocalizedMessage());
+        }
+        finally {
+            dis.close();
+        }
+    }
+
+    private void readRecord(DataInputStream dis, PositionInputStream pis, long fileLength)
+            throws IOException, ASAPException {
+
+        byte type = dis.readByte();
+
+        if(type == FOOTER_RECORD) {
+            // index is already known from records before
+            int length = dis.readInt();
+            skipFully(dis, length + FOOTER_TRAILER_LENGTH);
+            // skipping does not notice end of file
+            if(pis.position > fileLength) throw new EOFException();
+            return;
+        }
+
+        String uri = dis.readUTF();
+        switch(type) {
+            case MESSAGE_RECORD:
+                int length = dis.readInt();
+                long position = pis.position;
+                skipFully(dis, length);
+                if(pis.position > fileLength) throw new EOFException();
+                this.getOrCreateEntry(uri).addMessage(position, length);
+                return;
+
+            case META_RECORD:
+                byte[] meta = new byte[dis.readInt()];
+                dis.readFully(meta);
+                deserializeMetaData(this.getOrCreateEntry(uri), meta);
+                return;
+
+            case DROP_RECORD:
+                this.index.remove(uri);
+                return;
+
+            default:
+                throw new IOException("unknown record type " + type + ": " + this.file);
+        }
+    }
+
+    private ChunkEntry getOrCreateEntry(String uri) {
+        ChunkEntry entry = this.index.get(uri);
+        if(entry == null) {
+            entry = new ChunkEntry(uri);
+            this.index.put(uri, entry);
+        }
+        return entry;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                         footer                                       //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return true if index could be read from a footer at the end of file
+     */
+    private boolean readFooter() throws IOException {
+        long fileLength = this.file.length();
+        if(fileLength < HEADER_LENGTH + 1 + 4 + FOOTER_TRAILER_LENGTH) return false;
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            if(raf.readInt() != SEGMENT_MAGIC) return false;
+            raf.readInt(); // version - checked when reading records
+            long segmentID = raf.readLong();
+
+            raf.seek(fileLength - FOOTER_TRAILER_LENGTH);
+            long footerStart = raf.readLong();
+            if(raf.readInt() != SEGMENT_MAGIC) return false;
+            if(footerStart < HEADER_LENGTH || footerStart >= fileLength) return false;
+
+            raf.seek(footerStart);
+            if(raf.readByte() != FOOTER_RECORD) return false;
+            int length = raf.readInt();
+            if(footerStart + 1 + 4 + length + FOOTER_TRAILER_LENGTH != fileLength) return false;
+
+            byte[] footer = new byte[length];
+            raf.readFully(footer);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(footer));
+
+            int numberChunks = dis.readInt();
+            for(int i = 0; i < numberChunks; i++) {
+                ChunkEntry entry = new ChunkEntry(dis.readUTF());
+                byte[] meta = new byte[dis.readInt()];
+                dis.readFully(meta);
+                deserializeMetaData(entry, meta);
+
+                int numberMessages = dis.readInt();
+                for(int j = 0; j < numberMessages; j++) {
+                    entry.addMessage(dis.readLong(), dis.readInt());
+                }
+                this.index.put(entry.uri, entry);
+            }
+        }
+        catch(IOException | ASAPException e) {
+            Log.writeLog(this, this.toString(), "cannot read footer - read whole file: " + e.getLocalizedMessage());
+            this.index.clear();
+            return false;
+        }
+        finally {
+            raf.close();
+        }
+
+        this.segmentID = segmentID;
+        this.knownEnd = fileLength;
+        this.footerIsLast = true;
+        return true;
+    }
+
+    /**
+     * Append index to file. Next object on that file reads it instead of all records.
+     */
+    void writeFooter() throws IOException {
+        synchronized(this.lock) {
+            this.catchUp();
+            if(this.footerIsLast || this.knownEnd == 0) return;
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(this.index.size());
+            for(ChunkEntry entry : this.index.values()) {
+                dos.writeUTF(entry.uri);
+                byte[] meta = serializeMetaData(entry);
+                dos.writeInt(meta.length);
+                dos.write(meta);
+                dos.writeInt(entry.positions.size());
+                for(int i = 0; i < entry.positions.size(); i++) {
+                    dos.writeLong(entry.positions.get(i));
+                    dos.writeInt(entry.lengths.get(i));
+                }
+            }
+            dos.close();
+            byte[] footer = baos.toByteArray();
+
+            baos = new ByteArrayOutputStream();
+            dos = new DataOutputStream(baos);
+            long footerStart = this.knownEnd;
+            dos.writeByte(FOOTER_RECORD);
+            dos.writeInt(footer.length);
+            dos.write(footer);
+            dos.writeLong(footerStart);
+            dos.writeInt(SEGMENT_MAGIC);
+            dos.close();
+
+            this.append(baos.toByteArray());
+            this.footerIsLast = true;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                        write                                         //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Append a message to a chunk
+     * @param is message source
+     * @param length message length
+     */
+    void appendMessage(ChunkEntry entry, InputStream is, int length) throws IOException {
+        synchronized(this.lock) {
+            this.catchUp();
+            if(this.index.get(entry.uri) != entry) {
+                // dropped in the meantime - set it up again
+                entry = this.getEntry(entry.uri, true);
+            }
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(MESSAGE_RECORD);
+            dos.writeUTF(entry.uri);
+            dos.writeInt(length);
+            dos.close();
+            byte[] recordHeader = baos.toByteArray();
+
+            long recordStart = this.prepareAppend();
+            FileOutputStream fos = new FileOutputStream(this.file, true);
+            try {
+                fos.write(recordHeader);
+                byte[] buffer = new byte[Math.min(length, 64 * 1024)];
+                int bytesLeft = length;
+                while(bytesLeft > 0) {
+                    int read = is.read(buffer, 0, Math.min(buffer.length, bytesLeft));
+                    if(read == -1) {
+                        fos.getChannel().truncate(recordStart);
+                        throw new EOFException("stream ended before message was complete: "
+                                + (length - bytesLeft) + " of " + length + " bytes read");
+                    }
+                    fos.write(buffer, 0, read);
+                    bytesLeft -= read;
+                }
+                Durability.written(fos, this.file);
+            }
+            finally {
+                fos.close();
+            }
+
+            entry.addMessage(recordStart + recordHeader.length, length);
+            this.knownEnd = recordStart + recordHeader.length + length;
+            this.footerIsLast = false;
+        }
+    }
+
+    /**
+     * Write current meta data of a chunk
+     */
+    void metaDataChanged(ChunkEntry entry) throws IOException {
+        synchronized(this.lock) {
+            this.catchUp();
+            if(this.index.get(entry.uri) != entry) {
+                // dropped or changed by someone else in the meantime - this object was up to date before
+                ChunkEntry currentEntry = this.getOrCreateEntry(entry.uri);
+                currentEntry.recipients = entry.recipients;
+                currentEntry.deliveredTo = entry.deliveredTo;
+                currentEntry.extraData = entry.extraData;
+                currentEntry.hopList = entry.hopList;
+                entry = currentEntry;
+            }
+            this.appendMetaRecord(entry);
+        }
+    }
+
+    private void appendMetaRecord(ChunkEntry entry) throws IOException {
+        byte[] meta = serializeMetaData(entry);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(META_RECORD);
+        dos.writeUTF(entry.uri);
+        dos.writeInt(meta.length);
+        dos.write(meta);
+        dos.close();
+
+        this.prepareAppend();
+        this.append(baos.toByteArray());
+    }
+
+    void drop(String uri) throws IOException {
+        synchronized(this.lock) {
+            this.catchUp();
+            if(this.index.remove(uri) == null) return;
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(DROP_RECORD);
+            dos.writeUTF(uri);
+            dos.close();
+
+            this.prepareAppend();
+            this.append(baos.toByteArray());
+        }
+    }
+
+    /**
+     * Write header if file is new.
+     * @return position of next record
+     */
+    private long prepareAppend() throws IOException {
+        if(this.knownEnd == 0) {
+            File parent = this.file.getParentFile();
+            if(parent != null && !parent.exists()) parent.mkdirs();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(SEGMENT_MAGIC);
+            dos.writeInt(SEGMENT_VERSION);
+            this.segmentID = new Random().nextLong();
+            dos.writeLong(this.segmentID);
+            dos.close();
+            this.append(baos.toByteArray());
+        }
+        return this.knownEnd;
+    }
+
+    private void append(byte[] record) throws IOException {
+        FileOutputStream fos = new FileOutputStream(this.file, true);
+        try {
+            fos.write(record);
+            Durability.written(fos, this.file);
+        }
+        finally {
+            fos.close();
+        }
+        this.knownEnd += record.length;
+        this.footerIsLast = false;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                         read                                         //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    byte[] readMessage(long position, int length) throws IOException {
+        byte[] message = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            raf.seek(position);
+            raf.readFully(message);
+        }
+        finally {
+            raf.close();
+        }
+        return message;
+    }
+
+    /** segment file mapped into memory - null if not yet mapped */
+    private MappedByteBuffer mappedSegment = null;
+    /** id of mapped segment - file could have been set up again since mapping */
+    private long mappedSegmentID = 0;
+
+    /**
+     * @return read-only view of message in memory mapped segment file
+     */
+    ByteBuffer mapMessage(long position, int length) throws IOException {
+        long end = position + length;
+        if(end > Integer.MAX_VALUE) {
+            // cannot map whole file in one buffer - map this message only
+            return this.map(position, length).asReadOnlyBuffer();
+        }
+
+        ByteBuffer messageBuffer;
+        synchronized(this.lock) {
+            if(this.mappedSegment == null || this.mappedSegment.capacity() < end
+                    || this.mappedSegmentID != this.segmentID) {
+                // not yet mapped, records added or new segment since mapping
+                this.mappedSegment = this.map(0, Math.min(Math.max(this.knownEnd, end), Integer.MAX_VALUE));
+                this.mappedSegmentID = this.segmentID;
+            }
+            messageBuffer = this.mappedSegment.duplicate();
+        }
+
+        // cast: compiled code remains compatible with Java 8 runtime
+        ((Buffer) messageBuffer).position((int) position);
+        ((Buffer) messageBuffer).limit((int) end);
+
+        return messageBuffer.slice().asReadOnlyBuffer();
+    }
+
+    private MappedByteBuffer map(long position, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            // mapping remains valid after channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return stream of messages of a chunk - back to back like content of a single chunk file.
+     */
+    InputStream getMessagesInputStream(final List<Long> positions, final List<Integer> lengths) {
+        return new InputStream() {
+            private int nextMessage = 0;
+            private RandomAccessFile raf = null;
+            private long bytesLeftInMessage = 0;
+
+            private boolean nextMessage() throws IOException {
+                while(this.bytesLeftInMessage == 0) {
+                    if(this.nextMessage >= positions.size()) return false;
+                    if(this.raf == null) this.raf = new RandomAccessFile(ASAPSegmentFile.this.file, "r");
+                    this.raf.seek(positions.get(this.nextMessage));
+                    this.bytesLeftInMessage = lengths.get(this.nextMessage);
+                    this.nextMessage++;
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if(!this.nextMessage()) return -1;
+                this.bytesLeftInMessage--;
+                return this.raf.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0) return 0;
+                if(!this.nextMessage()) return -1;
+                int read = this.raf.read(b, off, (int) Math.min(len, this.bytesLeftInMessage));
+                if(read > 0) this.bytesLeftInMessage -= read;
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(this.raf != null) this.raf.close();
+                this.raf = null;
+            }
+        };
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////
+    //                                        helper                                        //
+    //////////////////////////////////////////////////////////////////////////////////////////
+
+    private static byte[] serializeMetaData(ChunkEntry entry) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        ASAPSerialization.writeASAPHopList(entry.hopList, dos);
+        writeCharSequences(entry.recipients, dos);
+        writeCharSequences(entry.deliveredTo, dos);
+        dos.writeInt(entry.extraData.size());
+        for(Map.Entry<String, String> extra : entry.extraData.entrySet()) {
+            dos.writeUTF(extra.getKey());
+            dos.writeUTF(extra.getValue());
+        }
+        dos.close();
+
+        return baos.toByteArray();
+    }
+
+    private static void deserializeMetaData(ChunkEntry entry, byte[] meta) throws IOException, ASAPException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(meta));
+
+        entry.hopList = ASAPSerialization.readASAPHopList(dis);
+        entry.recipients = new HashSet<>(readCharSequences(dis));
+        entry.deliveredTo = readCharSequences(dis);
+        int numberExtra = dis.readInt();
+        entry.extraData = new HashMap<>();
+        for(int i = 0; i < numberExtra; i++) {
+            entry.extraData.put(dis.readUTF(), dis.readUTF());
+        }
+    }
+
+    private static void writeCharSequences(Collection<CharSequence> charSequences, DataOutputStream dos)
+            throws IOException {
+        dos.writeInt(charSequences.size());
+        for(CharSequence charSequence : charSequences) {
+            dos.writeUTF(charSequence.toString());
+        }
+    }
+
+    private static List<CharSequence> readCharSequences(DataInputStream dis) throws IOException {
+        int number = dis.readInt();
+        List<CharSequence> charSequences = new ArrayList<>();
+        for(int i = 0; i < number; i++) {
+            charSequences.add(dis.readUTF());
+        }
+        return charSequences;
+    }
+
+    /** knows position in file */
+    private static class PositionInputStream extends FilterInputStream {
+        long position;
+
+        PositionInputStream(InputStream is) {
+            super(is);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) this.position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read > 0) this.position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if(skipped > 0) this.position += skipped;
+            return skipped;
+        }
+    }
+
+    private static void skipFully(DataInputStream dis, long n) throws IOException {
+        while(n > 0) {
+            long skipped = dis.skip(n);
+            if(skipped <= 0) {
+                // skip does not tell about end of file
+                if(dis.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    public String toString() {
+        return "segment: " + this.file;
+    }
+}
@@ -1,24 +1,26 @@
 package net.sharksystem.asap.engine;
 
-import java.io.FileNotFoundException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
 public class MessageIter implements Iterator {
-    private final List<byte[]> byteMessages;
-    private int nextIndex;
-    private String nextString;
+    private final Iterator<byte[]> byteMessages;
 
+    public MessageIter(List<byte[]> byteMessages) {
+        this(byteMessages.iterator());
+    }
 
-    public MessageIter(List<byte[]> byteMessages) throws FileNotFoundException {
+    /**
+     * @param byteMessages messages are taken from that iterator when requested
+     */
+    public MessageIter(Iterator<byte[]> byteMessages) {
         this.byteMessages = byteMessages;
-        this.nextIndex = 0;
     }
 
     @Override
     public boolean hasNext() {
-        return this.byteMessages.size() > nextIndex;
+        return this.byteMessages.hasNext();
     }
 
     @Override
@@ -27,6 +29,6 @@ public class MessageIter implements Iterator {
             throw new NoSuchElementException("no more messages");
         }
 
-        return new String(this.byteMessages.get(nextIndex++));
+        return new String(this.byteMessages.next());
     }
 }
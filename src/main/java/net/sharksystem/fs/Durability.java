@@ -0,0 +1,191 @@
+package net.sharksystem.fs;
+
+import net.sharksystem.utils.AlarmClock;
+import net.sharksystem.utils.AlarmClockListener;
+import net.sharksystem.utils.Log;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * How safe data are written to file system - valid for all storages in this process.
+ * <br/><br/>
+ * Files that are replaced as a whole (meta data, memento, extra data) are written to a temporary file which is
+ * renamed afterwards - unless mode is NONE. A crashing process leaves either the old or the new version but no
+ * truncated file. With sync on write, temporary file is synchronized before it is renamed - that holds for a
+ * crashing system as well. With periodic sync, replaced files are synchronized with appended files (content,
+ * index) in the next periodic sync. A crashing system can leave an incomplete version of a file changed within
+ * sync interval.
+ *
+ * @author thsc
+ */
+public class Durability {
+    public enum Mode {
+        /** nothing is synchronized, files are overwritten in place - fastest */
+        NONE,
+        /** written files and their folders are synchronized with storage device periodically */
+        PERIODIC_SYNC,
+        /** each write is synchronized with storage device before method returns - safest */
+        SYNC_ON_WRITE
+    }
+
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static Mode mode = Mode.NONE;
+    private static long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    /** files written but not yet synchronized (periodic sync) */
+    private static final Set<File> unsyncedFiles = new HashSet<>();
+    private static AlarmClock syncAlarmClock = null;
+
+    public static void setMode(Mode newMode) {
+        setMode(newMode, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param newMode durability mode
+     * @param interval milliseconds between two synchronizations - PERIODIC_SYNC only
+     */
+    public static void setMode(Mode newMode, long interval) {
+        synchronized(Durability.class) {
+            mode = newMode;
+            syncInterval = interval;
+        }
+        // leaving periodic mode - sync what is pending
+        if(newMode != Mode.PERIODIC_SYNC) sync();
+    }
+
+    public static synchronized Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Replace file content.
+     */
+    public static void writeFile(File file, byte[] content) throws IOException {
+        Mode currentMode = getMode();
+        if(currentMode == Mode.NONE) {
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(content);
+            }
+            finally {
+                fos.close();
+            }
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + TEMP_EXTENSION);
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(content);
+            // data must be on disk before rename - otherwise a crashing system could leave an empty file
+            if(currentMode == Mode.SYNC_ON_WRITE) fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // file is replaced but not atomically on that system
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if(currentMode == Mode.SYNC_ON_WRITE) syncFolder(file.getAbsoluteFile().getParentFile());
+        else fileWritten(file);
+    }
+
+    /**
+     * Must be called after data were appended and before stream is closed.
+     */
+    public static void written(FileOutputStream fos, File file) throws IOException {
+        Mode currentMode = getMode();
+        if(currentMode == Mode.SYNC_ON_WRITE) fos.getFD().sync();
+        else if(currentMode == Mode.PERIODIC_SYNC) fileWritten(file);
+    }
+
+    /**
+     * @return true if file was written and waits for next periodic sync
+     */
+    static synchronized boolean syncPending(File file) {
+        return unsyncedFiles.contains(file.getAbsoluteFile());
+    }
+
+    private static synchronized void fileWritten(File file) {
+        if(mode != Mode.PERIODIC_SYNC) return;
+
+        unsyncedFiles.add(file.getAbsoluteFile());
+        if(syncAlarmClock == null) {
+            syncAlarmClock = new AlarmClock(syncInterval, new AlarmClockListener() {
+                @Override
+                public void alarmClockRinging(int yourKey) {
+                    Durability.sync();
+                }
+            });
+            syncAlarmClock.start();
+        }
+    }
+
+    /**
+     * Synchronize all written files with storage device now.
+     */
+    public static void sync() {
+        Set<File> files;
+        synchronized(Durability.class) {
+            if(syncAlarmClock != null) {
+                syncAlarmClock.kill();
+                syncAlarmClock = null;
+            }
+            files = new HashSet<>(unsyncedFiles);
+            unsyncedFiles.clear();
+        }
+
+        Set<File> folders = new HashSet<>();
+        for(File file : files) {
+            // removed in the meantime?
+            if(!file.exists()) continue;
+            try {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                try {
+                    channel.force(true);
+                }
+                finally {
+                    channel.close();
+                }
+                folders.add(file.getParentFile());
+            } catch (IOException e) {
+                Log.writeLogErr(Durability.class, "cannot sync file: " + file + ": " + e.getLocalizedMessage());
+            }
+        }
+
+        for(File folder : folders) syncFolder(folder);
+    }
+
+    /**
+     * Make renamed and created files durable. Not supported by all systems - nothing happens in that case.
+     */
+    private static void syncFolder(File folder) {
+        if(folder == null) return;
+        try {
+            FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            }
+            finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // folders cannot be opened on some systems
+        }
+    }
+}
@@ -3,19 +3,49 @@ package net.sharksystem.fs;
 import net.sharksystem.SharkException;
 import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.utils.ASAPSerialization;
+import net.sharksystem.utils.Log;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
+/**
+ * Key value pairs kept in memory and in a file. The file is a log: each putExtra appends a
+ * record - file is rewritten (compacted) when outdated records take more space than current ones.
+ * <br/><br/>
+ * File layout: magic, log id, records (key length, key, value length - -1: null, value).
+ * The log id changes with each compaction. Appended records of other objects (other processes) on
+ * that file are read when file length changed, the whole file is read when log id changed.
+ * Compaction replaces (overwrites without durability) the file. Records appended to the replaced file
+ * meanwhile are carried over by the compacting object - an appending object appends again if log id
+ * changed while appending.
+ * Files written before the log was introduced (time stamp, number of entries, entries) are read and
+ * replaced with the next putExtra.
+ */
 public class ExtraDataFS implements ExtraData {
     public static final String DEFAULT_FILE_NAME = ".extraData";
     private final CharSequence fileName;
     private final CharSequence rootFolderName;
 
+    /** negative - files without magic start with a (positive) time stamp */
+    private static final int LOG_MAGIC = 0xA5A9E0D1;
+    private static final int HEADER_LENGTH = 4 + 8;
+    /** outdated records are kept until they take that many bytes */
+    private static final long MIN_COMPACTION_GARBAGE = 4096;
+
     private Map<CharSequence, byte[]> extraData = new HashMap<>();
 
+    /** log id of file as known by this object - 0: file unknown or without log */
+    private long logID = 0;
+    /** records up to this position are in memory - -1: no file read or written yet */
+    private long knownLength = -1;
+    /** bytes in file taken by records that were replaced by later ones */
+    private long garbageLength = 0;
+
     public ExtraDataFS(CharSequence rootFolderName) throws SharkException, IOException {
         this(rootFolderName, DEFAULT_FILE_NAME);
     }
@@ -42,79 +72,267 @@ public class ExtraDataFS implements ExtraData {
     Here is the catch... There can be - and in Android will - two instances share data over file system. The use
     same clock but run in different threads, most likely different processes. We have to synchronize both sides.
 
-    There will be two processes A and B. Let's assume we are in process A.
-    a) We never written something,
+    Both append records. Each side reads records appended by the other one before reading or writing a
+    value. Compaction replaces the file - the other side notices a changed log id and reads it completely.
+     */
 
+    /**
+     * Write all values - replaces file with a fresh log (compaction).
      */
+    public synchronized void saveExtraData() throws IOException {
+        this.compact(null, null);
+    }
 
-    private long timeStampSyncExtraData = -1; // never saved anything
+    /**
+     * @param key value to be put after records of others were read - null: nothing to put
+     */
+    private void compact(CharSequence key, byte[] value) throws IOException {
+        // keep replaced log open - others could append to it until it is replaced
+        File extraFile = this.getExtraFile();
+        RandomAccessFile replacedLog = null;
+        if(this.logID != 0 && extraFile.exists()) {
+            replacedLog = new RandomAccessFile(extraFile, "r");
+            if(readLogID(replacedLog) != this.logID) {
+                replacedLog.close();
+                replacedLog = null;
+            }
+        }
 
-    private void extraDataSync() throws IOException, SharkException {
-        InputStream is = null;
         try {
-            is = new FileInputStream(this.getExtraFile());
+            long replacedPosition = this.knownLength;
+            if(replacedLog != null) {
+                // appended since last read - part of new log
+                replacedPosition += this.readRecords(replacedLog, replacedPosition);
+            }
+            if(key != null) this.putInMemory(key, value);
+
+            this.writeLog();
+
+            // not replaced but overwritten if written without durability
+            if(replacedLog != null && readLogID(replacedLog) != this.logID) {
+                this.carryOver(replacedLog, replacedPosition);
+            }
         }
-        catch(IOException ioEx) {
-            // no such file - save it instead - there is no conflict
-            this.saveExtraData();
-            return;
+        finally {
+            if(replacedLog != null) replacedLog.close();
         }
+    }
 
-        // read time stamp
-        long timeStampSaved = ASAPSerialization.readLongParameter(is);
+    private void writeLog() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        long newLogID = new Random().nextLong();
+        if(newLogID == 0) newLogID = 1;
 
-        if(this.timeStampSyncExtraData < timeStampSaved) {
-            // there is an external copy that was created after our last sync
+        dos.writeInt(LOG_MAGIC);
+        dos.writeLong(newLogID);
+        for(Map.Entry<CharSequence, byte[]> entry : this.extraData.entrySet()) {
+            dos.write(serializeRecord(entry.getKey(), entry.getValue()));
         }
+        dos.close();
 
-        // discard local changes and read from file
-        this.restoreExtraData();
+        byte[] content = baos.toByteArray();
+        Durability.writeFile(this.getExtraFile(), content);
+
+        this.logID = newLogID;
+        this.knownLength = content.length;
+        this.garbageLength = 0;
     }
 
-    public void saveExtraData() throws IOException {
-        OutputStream os = new FileOutputStream(this.getExtraFile());
+    /**
+     * Append records that were appended to replaced log after it was read to new log.
+     */
+    private void carryOver(RandomAccessFile replacedLog, long position) throws IOException {
+        long read = this.readRecords(replacedLog, position);
+        if(read == 0) return;
+
+        byte[] records = new byte[(int) read];
+        replacedLog.seek(position);
+        replacedLog.readFully(records);
+        Log.writeLog(this, this.toString(), "carry over records appended while compacting: " + read);
+
+        while(!this.append(records)) {
+            // compacted by another process meanwhile - records could be in replaced log only
+            this.restoreAll();
+            this.readRecords(new DataInputStream(new ByteArrayInputStream(records)));
+        }
+    }
 
-        // write time stamp
-        this.timeStampSyncExtraData = System.currentTimeMillis();
-        ASAPSerialization.writeLongParameter(this.timeStampSyncExtraData, os);
-        ASAPSerialization.writeNonNegativeIntegerParameter(this.extraData.size(), os);
+    /**
+     * @return number of bytes of complete records read from that position
+     */
+    private long readRecords(RandomAccessFile raf, long position) throws IOException {
+        raf.seek(position);
+        // stream is not closed - would close file
+        return this.readRecords(new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(raf.getChannel()))));
+    }
 
-        for(CharSequence key : this.extraData.keySet()) {
-            // write key
-            ASAPSerialization.writeCharSequenceParameter(key, os);
-            // value
-            byte[] v = this.extraData.get(key);
-            ASAPSerialization.writeByteArray(v, os);
+    /**
+     * Append records with a single write call - records of different processes are not mixed.
+     * @return false if log was replaced (compacted) meanwhile - appended records could be lost
+     */
+    private boolean append(byte[] records) throws IOException {
+        File extraFile = this.getExtraFile();
+        FileOutputStream fos = new FileOutputStream(extraFile, true);
+        try {
+            fos.write(records);
+            Durability.written(fos, extraFile);
         }
+        finally {
+            fos.close();
+        }
+
+        if(readLogID(extraFile) != this.logID) return false;
 
-        os.close();
+        if(extraFile.length() == this.knownLength + records.length) {
+            this.knownLength += records.length;
+        } else {
+            // someone else appended meanwhile - read all with next call
+            this.logID = 0;
+            this.knownLength = -1;
+        }
+        return true;
     }
 
     /**
-     * Always restore. If there is no such file - write it.
-     * @throws IOException
-     * @throws ASAPException
+     * @return log id in file header - 0: no log
      */
-    public void restoreExtraData() throws IOException, SharkException {
-        InputStream is = null;
+    private static long readLogID(File file) throws IOException {
+        RandomAccessFile raf;
         try {
-            is = new FileInputStream(this.getExtraFile());
+            raf = new RandomAccessFile(file, "r");
         }
-        catch(IOException ioEx) {
-            // no such file - nothing to do here
-            return;
+        catch(FileNotFoundException e) {
+            return 0;
         }
 
-        long timeStampSaved = ASAPSerialization.readLongParameter(is);
-        if(timeStampSaved == this.timeStampSyncExtraData) {
-            is.close();
+        try {
+            return readLogID(raf);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static long readLogID(RandomAccessFile raf) throws IOException {
+        try {
+            raf.seek(0);
+            return raf.readInt() == LOG_MAGIC ? raf.readLong() : 0;
+        }
+        catch(EOFException e) {
+            return 0;
+        }
+    }
+
+    /** restore after log was replaced - it is a log, no exception due to old file format */
+    private void restoreAll() throws IOException {
+        try {
+            this.restoreExtraData();
+        } catch (SharkException e) {
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Read what was written by others since last call - nothing is read if file did not change.
+     * @throws IOException
+     * @throws ASAPException
+     */
+    public synchronized void restoreExtraData() throws IOException, SharkException {
+        File extraFile = this.getExtraFile();
+        if(!extraFile.exists()) {
+            if(this.knownLength != -1) {
+                // removed by someone else
+                this.extraData = new HashMap<>();
+                this.logID = 0;
+                this.knownLength = -1;
+                this.garbageLength = 0;
+            }
             return;
         }
 
-        // something changed - get a fresh copy
-        this.timeStampSyncExtraData = timeStampSaved;
+        long fileLength = extraFile.length();
+        RandomAccessFile raf = new RandomAccessFile(extraFile, "r");
+        try {
+            int magic;
+            long fileLogID;
+            try {
+                magic = raf.readInt();
+                fileLogID = magic == LOG_MAGIC ? raf.readLong() : 0;
+            }
+            catch(EOFException e) {
+                // nothing useful written
+                return;
+            }
+
+            if(magic != LOG_MAGIC) {
+                if(this.logID == 0 && this.knownLength == fileLength) return; // no change
+                raf.seek(0);
+                this.readWithoutLog(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+                this.logID = 0;
+                this.knownLength = fileLength;
+                return;
+            }
+
+            if(fileLogID == this.logID && fileLength == this.knownLength) return; // no change
+
+            long position = this.knownLength;
+            if(fileLogID != this.logID || fileLength < this.knownLength) {
+                // compacted or replaced - read all
+                this.extraData = new HashMap<>();
+                this.garbageLength = 0;
+                position = HEADER_LENGTH;
+            }
+
+            raf.seek(position);
+            DataInputStream dis = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+            this.logID = fileLogID;
+            this.knownLength = position + this.readRecords(dis);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return number of bytes of complete records - an incomplete last record is not read
+     */
+    private long readRecords(DataInputStream dis) throws IOException {
+        long read = 0;
+        for(;;) {
+            CharSequence key;
+            byte[] value;
+            try {
+                byte[] keyBytes = new byte[dis.readInt()];
+                dis.readFully(keyBytes);
+                key = new String(keyBytes, StandardCharsets.UTF_8);
+
+                int valueLength = dis.readInt();
+                value = null;
+                if(valueLength >= 0) {
+                    value = new byte[valueLength];
+                    dis.readFully(value);
+                }
+            }
+            catch(EOFException e) {
+                // end of log - or record not yet written completely
+                return read;
+            }
+
+            this.putInMemory(key, value);
+            read += recordLength(key, value);
+        }
+    }
 
+    /** read file written before log was introduced */
+    private void readWithoutLog(InputStream is) throws IOException, SharkException {
         this.extraData = new HashMap<>();
+        this.garbageLength = 0;
+
+        ASAPSerialization.readLongParameter(is); // time stamp
         int counter = ASAPSerialization.readIntegerParameter(is);
 
         while(counter-- > 0) {
@@ -126,7 +344,34 @@ public class ExtraDataFS implements ExtraData {
             // save in memory
             this.extraData.put(key, value);
         }
-        is.close();
+    }
+
+    private void putInMemory(CharSequence key, byte[] value) {
+        if(this.extraData.containsKey(key)) {
+            // record of previous value is outdated
+            this.garbageLength += recordLength(key, this.extraData.get(key));
+        }
+        this.extraData.put(key, value);
+    }
+
+    private static long recordLength(CharSequence key, byte[] value) {
+        return 4 + key.toString().getBytes(StandardCharsets.UTF_8).length + 4 + (value == null ? 0 : value.length);
+    }
+
+    private static byte[] serializeRecord(CharSequence key, byte[] value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(keyBytes.length);
+        dos.write(keyBytes);
+        if(value == null) {
+            dos.writeInt(-1);
+        } else {
+            dos.writeInt(value.length);
+            dos.write(value);
+        }
+        dos.close();
+        return baos.toByteArray();
     }
 
     /**
@@ -134,10 +379,28 @@ public class ExtraDataFS implements ExtraData {
      * @param key
      * @param value
      */
-    public void putExtra(CharSequence key, byte[] value) throws IOException, SharkException {
-        this.extraDataSync();
-        this.extraData.put(key, value);
-        this.saveExtraData();
+    public synchronized void putExtra(CharSequence key, byte[] value) throws IOException, SharkException {
+        // get changes of others first - they are kept when compacting
+        this.restoreExtraData();
+
+        key = key.toString();
+        byte[] record = serializeRecord(key, value);
+        for(;;) {
+            this.putInMemory(key, value);
+
+            if(this.logID == 0 || this.getExtraFile().length() != this.knownLength
+                    || (this.garbageLength > MIN_COMPACTION_GARBAGE
+                    && this.garbageLength > this.knownLength - HEADER_LENGTH - this.garbageLength)) {
+                // no log yet, incomplete record at the end or too many outdated records
+                this.compact(key, value);
+                return;
+            }
+
+            if(this.append(record)) return;
+
+            // compacted by another process meanwhile - record could be in replaced log only
+            this.restoreExtraData();
+        }
     }
 
     @Override
@@ -165,9 +428,9 @@ public class ExtraDataFS implements ExtraData {
      * @param key
      * @throws ASAPException key never used in putExtra
      */
-    public byte[] getExtra(CharSequence key) throws IOException, SharkException {
+    public synchronized byte[] getExtra(CharSequence key) throws IOException, SharkException {
         this.restoreExtraData();
-        byte[] value = this.extraData.get(key);
+        byte[] value = this.extraData.get(key.toString());
         if(value == null) throw new SharkException("no value for key" + key);
         return value;
     }
@@ -190,7 +453,11 @@ public class ExtraDataFS implements ExtraData {
     }
 
     @Override
-    public void removeAll() {
+    public synchronized void removeAll() {
         this.getExtraFile().delete();
+        this.extraData = new HashMap<>();
+        this.logID = 0;
+        this.knownLength = -1;
+        this.garbageLength = 0;
     }
 }
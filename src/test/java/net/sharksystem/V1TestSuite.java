@@ -8,7 +8,10 @@ import net.sharksystem.asap.peer.Point2Point2Test2;
 import net.sharksystem.asap.peer.TransientMessages;
 import net.sharksystem.asap.protocol.PDUTests;
 import net.sharksystem.asap.serialization.SerializationTests;
+import net.sharksystem.asap.storage.InMemoryStorageTests;
 import net.sharksystem.asap.storage.StorageTests;
+import net.sharksystem.fs.DurabilityTests;
+import net.sharksystem.fs.ExtraDataFSTests;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
@@ -21,6 +24,18 @@ import org.junit.runners.Suite;
         PDUTests.class,
         CryptoTests.class,
         StorageTests.class,
+        InMemoryStorageTests.class,
+        ChunkStorageFSTests.class,
+        SegmentStoreTests.class,
+        InMemoryEngineTests.class,
+        RetentionPolicyTests.class,
+        FolderCatalogueTests.class,
+        ChannelDescriptorsTests.class,
+        ASAPMessagesTests.class,
+        MementoTests.class,
+        RoutingIndexTests.class,
+        DurabilityTests.class,
+        ExtraDataFSTests.class,
         LongerMessages.class,
         CryptoUsage.class,
         HelperTester.class,
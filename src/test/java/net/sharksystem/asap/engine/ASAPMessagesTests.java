@@ -0,0 +1,259 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPMessageCompare;
+import net.sharksystem.asap.ASAPMessages;
+import net.sharksystem.asap.ASAPStorage;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Message views on chunks: positions, order, cache, merged index, buffers and streams.
+ */
+public class ASAPMessagesTests {
+    @Test
+    public void positionIndexOverEras() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "positionIndexOverEras");
+        String otherURI = "sn2://other";
+        ASAPEngine storage = aliceEngine(testFolder);
+        int firstEra = storage.getEra();
+        storage.add(URI, "0");
+        storage.add(URI, "1");
+        storage.add(URI, "2");
+        storage.newEra();
+        // era without message in this channel
+        storage.add(otherURI, MESSAGE);
+        storage.newEra();
+        storage.add(URI, "3");
+        storage.newEra();
+        storage.add(URI, "4");
+        storage.add(URI, "5");
+
+        ASAPMessages messages = storage.getChannel(URI).getMessages();
+        Assert.assertEquals(6, messages.size());
+        for(int i = 5; i >= 0; i--) {
+            Assert.assertEquals(Integer.toString(i), new String(messages.getMessage(i, true)));
+            Assert.assertEquals(Integer.toString(5 - i), new String(messages.getMessage(i, false)));
+        }
+
+        Assert.assertEquals(firstEra, messages.getChunk(2, true).getEra());
+        Assert.assertEquals(storage.getEra(), messages.getChunk(0, false).getEra());
+
+        try {
+            messages.getMessage(6, true);
+            Assert.fail("position beyond last message");
+        } catch (ASAPException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sharedMessageCache() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "sharedMessageCache");
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, "old message");
+        storage.add(URI, MESSAGE);
+
+        long byteBudget = ASAPMessageCache.getByteBudget();
+        try {
+            // not enough room for both messages
+            ASAPMessageCache.setByteBudget("old message".length());
+
+            ASAPMessages messages = storage.getChannel(URI).getMessages();
+            Assert.assertEquals("old message", new String(messages.getMessage(0, true)));
+            Assert.assertEquals(MESSAGE, new String(messages.getMessage(1, true)));
+            // another view on same chunks
+            messages = ASAPEngineFS.getExistingASAPEngineFS(testFolder).getChannel(URI).getMessages();
+            Assert.assertEquals("old message", new String(messages.getMessage(0, true)));
+
+            // changing a delivered message must not change cached one
+            messages.getMessage(0, true)[0] = 'X';
+            Assert.assertEquals("old message", new String(messages.getMessage(0, true)));
+
+            // cached messages of removed chunks must not be delivered
+            storage.removeChannel(URI);
+            storage.add(URI, "new message");
+            messages = storage.getChannel(URI).getMessages();
+            Assert.assertEquals(1, messages.size());
+            Assert.assertEquals("new message", new String(messages.getMessage(0, true)));
+        }
+        finally {
+            ASAPMessageCache.setByteBudget(byteBudget);
+        }
+    }
+
+    @Test
+    public void newestMessagesFirst() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "newestMessagesFirst");
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, "0");
+        storage.add(URI, "1");
+        storage.newEra();
+        storage.add(URI, "2");
+        storage.add(URI, "3");
+        storage.add(URI, "4");
+
+        Iterator<byte[]> messages = storage.getChannel(URI).getMessages().getMessages(false);
+        for(int i = 4; i >= 0; i--) {
+            Assert.assertEquals(Integer.toString(i), new String(messages.next()));
+        }
+        Assert.assertFalse(messages.hasNext());
+
+        // merged view
+        messages = storage.getChannel(URI).getMessages(false).getMessages(false);
+        for(int i = 4; i >= 0; i--) {
+            Assert.assertEquals(Integer.toString(i), new String(messages.next()));
+        }
+        Assert.assertFalse(messages.hasNext());
+
+        // in memory
+        ASAPEngine inMemoryEngine = aliceEngineInMemory();
+        inMemoryEngine.add(URI, "0");
+        inMemoryEngine.newEra();
+        inMemoryEngine.add(URI, "1");
+        messages = inMemoryEngine.getChannel(URI).getMessages().getMessages(false);
+        Assert.assertEquals("1", new String(messages.next()));
+        Assert.assertEquals("0", new String(messages.next()));
+        Assert.assertFalse(messages.hasNext());
+    }
+
+    @Test
+    public void mergedIndex() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "mergedIndex");
+        ASAPEngineFS.useMergedIndex(testFolder);
+        ASAPEngineFS storage = (ASAPEngineFS) aliceEngine(testFolder);
+        storage.add(URI, new byte[] {4});
+        storage.add(URI, new byte[] {5});
+        ASAPStorage bobStorage = storage.getIncomingStorage(TestConstants.BOB_NAME);
+        bobStorage.add(URI, new byte[] {0});
+        bobStorage.add(URI, new byte[] {1});
+        ASAPStorage claraStorage = storage.getIncomingStorage(TestConstants.CLARA_NAME);
+        claraStorage.add(URI, new byte[] {2});
+        claraStorage.add(URI, new byte[] {3});
+
+        ASAPMessageCompare compare = new ASAPMessageCompare() {
+            @Override
+            public boolean earlier(byte[] messageA, byte[] messageB) {
+                return messageA[0] < messageB[0];
+            }
+        };
+
+        // second round reads merged index from file
+        for(int round = 0; round < 2; round++) {
+            ASAPMessages messages = storage.getChannel(URI).getMessages(compare);
+            Iterator<byte[]> messageIter = messages.getMessages(false);
+            for(int i = 5; i >= 0; i--) {
+                Assert.assertEquals(i, messageIter.next()[0]);
+            }
+            Assert.assertFalse(messageIter.hasNext());
+
+            for(int i = 0; i < 6; i++) {
+                Assert.assertEquals(i, messages.getMessage(i, true)[0]);
+                Assert.assertEquals(5 - i, messages.getMessage(i, false)[0]);
+            }
+        }
+
+        // index is set up again after a change
+        bobStorage.add(URI, new byte[] {6});
+        ASAPMessages messages = storage.getChannel(URI).getMessages(compare);
+        Assert.assertEquals(7, messages.size());
+        Assert.assertEquals(6, messages.getMessage(0, false)[0]);
+
+        // same number of messages - but other chunk content
+        bobStorage.removeChannel(URI);
+        bobStorage.add(URI, new byte[] {-3, 0});
+        bobStorage.add(URI, new byte[] {-2});
+        bobStorage.add(URI, new byte[] {-1});
+        messages = storage.getChannel(URI).getMessages(compare);
+        Assert.assertEquals(7, messages.size());
+        Assert.assertEquals(-3, messages.getMessage(0, true)[0]);
+        Assert.assertEquals(5, messages.getMessage(0, false)[0]);
+    }
+
+    @Test
+    public void messageBuffers() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "messageBuffers");
+        String segmentFolder = testFolder(getClass(), "messageBuffers_segments");
+        ASAPEngineFS.useSegmentStore(segmentFolder);
+
+        ASAPEngine[] engines = new ASAPEngine[] {
+                aliceEngine(testFolder),
+                aliceEngine(segmentFolder),
+                aliceEngineInMemory()
+        };
+
+        for(ASAPEngine storage : engines) {
+            storage.add(URI, "first");
+            storage.newEra();
+            storage.add(URI, "second message");
+
+            ASAPMessages messages = storage.getChannel(URI).getMessages();
+            ByteBuffer buffer = messages.getMessageBuffer(0, false);
+            Assert.assertTrue(buffer.isReadOnly());
+            Assert.assertEquals("second message", new String(readBuffer(buffer)));
+
+            final List<String> received = new ArrayList<>();
+            messages.forEachMessage(new Consumer<ByteBuffer>() {
+                @Override
+                public void accept(ByteBuffer byteBuffer) {
+                    received.add(new String(readBuffer(byteBuffer)));
+                }
+            });
+            Assert.assertEquals(2, received.size());
+            Assert.assertEquals("first", received.get(0));
+            Assert.assertEquals("second message", received.get(1));
+        }
+    }
+
+    @Test
+    public void streamedMessages() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "streamedMessages");
+        String compressedFolder = testFolder(getClass(), "streamedMessages_compressed");
+        String segmentFolder = testFolder(getClass(), "streamedMessages_segments");
+        ASAPEngineFS.useCompression(compressedFolder);
+        ASAPEngineFS.useSegmentStore(segmentFolder);
+
+        ASAPEngine[] engines = new ASAPEngine[] {
+                aliceEngine(testFolder),
+                aliceEngine(compressedFolder),
+                aliceEngine(segmentFolder),
+                aliceEngineInMemory()
+        };
+
+        // larger than copy buffers
+        byte[] largeMessage = new byte[200 * 1024];
+        for(int i = 0; i < largeMessage.length; i++) largeMessage[i] = (byte) (i % 251);
+
+        for(ASAPEngine storage : engines) {
+            storage.add(URI, "first");
+            storage.add(URI, new ByteArrayInputStream(largeMessage), largeMessage.length);
+            storage.add(URI, "last");
+
+            ASAPMessages messages = storage.getChannel(URI).getMessages();
+            Assert.assertEquals(3, messages.size());
+            Assert.assertArrayEquals(largeMessage, readStream(messages.openMessageStream(1, true)));
+            Assert.assertEquals("last", new String(readStream(messages.openMessageStream(0, false))));
+            Assert.assertEquals("first", new String(readStream(messages.openMessageStream(2, false))));
+
+            // stream too short - nothing added
+            try {
+                storage.add(URI, new ByteArrayInputStream(new byte[10]), 20);
+                Assert.fail("incomplete message must not be added");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertEquals(3, storage.getChannel(URI).getMessages().size());
+        }
+    }
+}
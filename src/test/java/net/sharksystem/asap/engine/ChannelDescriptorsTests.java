@@ -0,0 +1,122 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.fs.FSUtils;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Channel meta data and channel catalogue of an engine.
+ */
+public class ChannelDescriptorsTests {
+    @Test
+    public void channelMetaDataInheritedLazily() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "channelMetaDataInheritedLazily");
+        String otherURI = "sn2://other";
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.createChannel(URI, TestConstants.BOB_NAME);
+        storage.createChannel(otherURI, TestConstants.CLARA_NAME);
+        storage.putExtra(URI, "key", "value");
+        storage.add(URI, MESSAGE);
+        storage.add(otherURI, MESSAGE);
+        storage.newEra();
+
+        // no chunks in new era
+        int era = storage.getEra();
+        Assert.assertTrue(storage.getChunkStorage().getChunks(era).isEmpty());
+        Assert.assertEquals(2, storage.getChannelURIs().size());
+        Assert.assertTrue(storage.channelExists(otherURI));
+
+        // first message creates chunk with channel meta data
+        storage.add(URI, MESSAGE);
+        Assert.assertEquals(1, storage.getChunkStorage().getChunks(era).size());
+        ASAPInternalChunk chunk = storage.getChunkStorage().getChunk(URI, era);
+        Assert.assertTrue(chunk.getRecipients().contains(TestConstants.BOB_NAME));
+        Assert.assertEquals("value", chunk.getExtra("key"));
+
+        // meta data survive restart
+        storage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        Assert.assertTrue(storage.getRecipients(otherURI).contains(TestConstants.CLARA_NAME));
+        Assert.assertEquals(TestConstants.ALICE_NAME, storage.getChannel(URI).getOwner().toString());
+        Assert.assertEquals(2, storage.getChannel(URI).getMessages().size());
+
+        storage.removeChannel(otherURI);
+        Assert.assertFalse(storage.channelExists(otherURI));
+    }
+
+    @Test
+    public void channelChangesAppended() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "channelChangesAppended");
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.createChannel("sn2://first", TestConstants.BOB_NAME);
+        storage.createChannel("sn2://second");
+        File file = new File(testFolder, ASAPChannelDescriptors.DESCRIPTOR_FILENAME);
+        byte[] written = Files.readAllBytes(file.toPath());
+
+        // a change appends a record of that channel only
+        storage.putExtra("sn2://first", "key", "value");
+        byte[] appended = Files.readAllBytes(file.toPath());
+        Assert.assertTrue(appended.length > written.length);
+        Assert.assertArrayEquals(written, Arrays.copyOf(appended, written.length));
+
+        // outdated records are dropped sometime - file is compacted
+        for(int i = 0; i < 500; i++) storage.putExtra("sn2://second", "counter", Integer.toString(i));
+        Assert.assertTrue(file.length() < 500 * "sn2://second".length());
+
+        // read by others - copy is read like a file of another process
+        String otherFolder = testFolder(getClass(), "channelChangesAppendedCopy");
+        new File(otherFolder).mkdirs();
+        Files.copy(file.toPath(), new File(otherFolder, ASAPChannelDescriptors.DESCRIPTOR_FILENAME).toPath());
+        ASAPChannelDescriptors descriptors = ASAPChannelDescriptors.getDescriptors(otherFolder);
+        Assert.assertEquals("sn2://first", descriptors.getURI(0).toString());
+        Assert.assertTrue(descriptors.getRecipients("sn2://first").contains(TestConstants.BOB_NAME));
+        Assert.assertEquals("value", descriptors.getExtraData("sn2://first").get("key"));
+        Assert.assertEquals("499", descriptors.getExtraData("sn2://second").get("counter"));
+    }
+
+    @Test
+    public void channelCatalogue() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "channelCatalogue");
+
+        ASAPEngine storage = aliceEngine(testFolder);
+        ASAPEngine otherStorage = aliceEngine(testFolder);
+        storage.createChannel("sn2://first");
+        storage.add("sn2://second", "message");
+        storage.createChannel("sn2://third");
+
+        // same process - changes are known to other engine objects at once
+        Assert.assertTrue(otherStorage.channelExists("sn2://third"));
+        List<CharSequence> uris = otherStorage.getChannelURIs();
+        Assert.assertEquals(3, uris.size());
+        Assert.assertEquals("sn2://first", uris.get(0).toString());
+        Assert.assertEquals("sn2://second", otherStorage.getChunkChain(1).getURI().toString());
+        Assert.assertEquals(1, otherStorage.getChunkChain(1).size());
+
+        try {
+            otherStorage.getChunkChain(3);
+            Assert.fail("there is no fourth channel");
+        } catch (ASAPException e) {
+            // expected
+        }
+
+        storage.removeChannel("sn2://second");
+        Assert.assertFalse(otherStorage.channelExists("sn2://second"));
+        Assert.assertEquals("sn2://third", otherStorage.getChunkChain(1).getURI().toString());
+        // list taken before is not changed
+        Assert.assertEquals(3, uris.size());
+
+        // new engine object on a removed and recreated folder does not know old channels
+        FSUtils.removeFolder(testFolder);
+        storage = aliceEngine(testFolder);
+        Assert.assertEquals(0, storage.getChannelURIs().size());
+    }
+}
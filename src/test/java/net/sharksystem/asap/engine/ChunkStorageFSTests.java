@@ -0,0 +1,320 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPChunkStorage;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPMessages;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Chunks in file system: index, content file access, meta data, cache and compression.
+ */
+public class ChunkStorageFSTests {
+    @Test
+    public void manyMessagesInOneChunk() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "manyMessagesInOneChunk");
+        // offset list of that chunk would have exceeded 64k when it was kept in meta data
+        int numberMessages = 10000;
+        ASAPEngine storage = aliceEngine(testFolder);
+
+        ASAPInternalChunk chunk = storage.getChunkStorage().getChunk(URI, storage.getEra());
+        for(int i = 0; i < numberMessages; i++) {
+            chunk.addMessage(Integer.toString(i).getBytes());
+        }
+
+        // re-read from file system
+        chunk = ASAPEngineFS.getExistingASAPEngineFS(testFolder).getChunkStorage().getChunk(URI, storage.getEra());
+        Assert.assertEquals(numberMessages, chunk.getNumberMessage());
+
+        Iterator<byte[]> messages = chunk.getMessages();
+        for(int i = 0; i < numberMessages; i++) {
+            Assert.assertEquals(Integer.toString(i), new String(messages.next()));
+        }
+        Assert.assertFalse(messages.hasNext());
+
+        // start reading somewhere in the chunk
+        messages = ((ASAPInternalChunkFS) chunk).getMessages(numberMessages - 20);
+        for(int i = numberMessages - 20; i < numberMessages; i++) {
+            Assert.assertEquals(Integer.toString(i), new String(messages.next()));
+        }
+        Assert.assertFalse(messages.hasNext());
+    }
+
+    @Test
+    public void messagesCopiedInBlocks() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "messagesCopiedInBlocks");
+        ASAPEngine storage = aliceEngine(testFolder);
+        ASAPInternalChunk chunk = storage.getChunkStorage().getChunk(URI, storage.getEra());
+
+        // larger than copy buffer - delivered in small pieces like a network stream
+        byte[] largeMessage = new byte[150 * 1024];
+        for(int i = 0; i < largeMessage.length; i++) largeMessage[i] = (byte) (i % 253);
+        chunk.addMessage("first".getBytes());
+        chunk.addMessage(new TrickleInputStream(largeMessage), largeMessage.length);
+        chunk.addMessage(new TrickleInputStream("last".getBytes()), 4);
+
+        // content file is the plain concatenation of messages
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write("first".getBytes());
+        expected.write(largeMessage);
+        expected.write("last".getBytes());
+        File contentFile = new File(testFolder + "/" + storage.getEra()).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(ASAPInternalChunkFS.DATA_EXTENSION);
+            }
+        })[0];
+        Assert.assertArrayEquals(expected.toByteArray(), Files.readAllBytes(contentFile.toPath()));
+        Assert.assertEquals(5, chunk.getOffsetList().get(0).longValue());
+        Assert.assertEquals(5 + largeMessage.length, chunk.getOffsetList().get(1).longValue());
+
+        // stream ends too early - partial message is removed
+        try {
+            chunk.addMessage(new TrickleInputStream(new byte[10]), 20);
+            Assert.fail("stream too short");
+        } catch (EOFException e) {
+            // expected
+        }
+        Assert.assertArrayEquals(expected.toByteArray(), Files.readAllBytes(contentFile.toPath()));
+        Assert.assertEquals(3, chunk.getNumberMessage());
+
+        // next message starts where last complete one ended
+        chunk.addMessage("next".getBytes());
+        Assert.assertEquals("next", new String(((ASAPInternalChunkFS) chunk).getMessages(3).next()));
+    }
+
+    /** hands out at most a few bytes per read call */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] content) {
+            super(content);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 7));
+        }
+    }
+
+    @Test
+    public void memoryMappedMessages() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "memoryMappedMessages");
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, "first");
+        storage.add(URI, "second message");
+
+        ASAPInternalChunkFS chunk =
+                (ASAPInternalChunkFS) storage.getChunkStorage().getChunk(URI, storage.getEra());
+
+        ByteBuffer buffer = chunk.getMessageAsByteBuffer(1);
+        Assert.assertTrue(buffer.isReadOnly());
+        byte[] message = new byte[buffer.remaining()];
+        buffer.get(message);
+        Assert.assertEquals("second message", new String(message));
+
+        // content added after mapping
+        chunk.addMessage("third".getBytes());
+        Iterator<ByteBuffer> buffers = chunk.getMessagesAsByteBuffer();
+        Assert.assertEquals("first".length(), buffers.next().remaining());
+        Assert.assertEquals("second message".length(), buffers.next().remaining());
+        Assert.assertEquals("third".length(), buffers.next().remaining());
+        Assert.assertFalse(buffers.hasNext());
+    }
+
+    @Test
+    public void writeBehindMetaData() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "writeBehindMetaData");
+        ASAPEngineFS storage = (ASAPEngineFS) aliceEngine(testFolder);
+        storage.add(URI, MESSAGE);
+        // written with next flush only
+        storage.setWriteBehind(true, 0);
+
+        ASAPInternalChunk chunk = storage.getChunkStorage().getChunk(URI, storage.getEra());
+        chunk.addRecipient(TestConstants.BOB_NAME);
+        chunk.putExtra("key", "value");
+
+        // storage keeps changed chunk
+        Assert.assertTrue(storage.getChunkStorage().getChunk(URI, storage.getEra())
+                .getRecipients().contains(TestConstants.BOB_NAME));
+
+        // not yet written
+        ASAPEngine otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        Assert.assertTrue(otherStorage.getChunkStorage().getChunk(URI, storage.getEra()).getRecipients().isEmpty());
+
+        storage.getChunkStorage().flush();
+        otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        ASAPInternalChunk writtenChunk = otherStorage.getChunkStorage().getChunk(URI, storage.getEra());
+        Assert.assertTrue(writtenChunk.getRecipients().contains(TestConstants.BOB_NAME));
+        Assert.assertEquals("value", writtenChunk.getExtraData().get("key"));
+    }
+
+    @Test
+    public void cachedChunks() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "cachedChunks");
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, MESSAGE);
+
+        ASAPChunkStorage chunkStorage = storage.getChunkStorage();
+        ASAPInternalChunk chunk = chunkStorage.getChunk(URI, storage.getEra());
+        Assert.assertSame(chunk, chunkStorage.getChunk(URI, storage.getEra()));
+        Assert.assertSame(chunk, chunkStorage.getChunks(storage.getEra()).get(0));
+
+        // changed by another storage object - must be read again
+        ASAPEngine otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        otherStorage.getChunkStorage().getChunk(URI, storage.getEra()).addMessage(MESSAGE.getBytes());
+        otherStorage.getChunkStorage().getChunk(URI, storage.getEra()).putExtra("key", "value");
+
+        ASAPInternalChunk rereadChunk = chunkStorage.getChunk(URI, storage.getEra());
+        Assert.assertNotSame(chunk, rereadChunk);
+        Assert.assertEquals(2, rereadChunk.getNumberMessage());
+        Assert.assertEquals("value", rereadChunk.getExtra("key"));
+
+        // dropped chunks are not kept
+        chunkStorage.dropChunks(storage.getEra());
+        Assert.assertNotSame(rereadChunk, chunkStorage.getChunk(URI, storage.getEra()));
+    }
+
+    @Test
+    public void cachedChunkChangedWithSameAttributes() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "cachedChunkChangedWithSameAttributes");
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, MESSAGE);
+
+        ASAPChunkStorage chunkStorage = storage.getChunkStorage();
+        ASAPInternalChunk chunk = chunkStorage.getChunk(URI, storage.getEra());
+        chunk.addRecipient(TestConstants.BOB_NAME);
+
+        // another storage object writes meta data of same length - file keeps modification time
+        File metaFile = chunkFile(testFolder, storage.getEra(), ASAPInternalChunkFS.META_DATA_EXTENSION);
+        long lastModified = metaFile.lastModified();
+        ASAPEngine otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        otherStorage.getChunkStorage().getChunk(URI, storage.getEra()).setRecipients(
+                Collections.<CharSequence>singletonList(TestConstants.BOB_NAME.replace('B', 'R')));
+        Assert.assertTrue(metaFile.setLastModified(lastModified));
+
+        ASAPInternalChunk rereadChunk = chunkStorage.getChunk(URI, storage.getEra());
+        Assert.assertNotSame(chunk, rereadChunk);
+        Assert.assertFalse(rereadChunk.getRecipients().contains(TestConstants.BOB_NAME));
+
+        // dropped and written again with same meta data and length - files keep modification time
+        lastModified = metaFile.lastModified();
+        File indexFile = chunkFile(testFolder, storage.getEra(), ASAPInternalChunkFS.INDEX_EXTENSION);
+        long indexLastModified = indexFile.lastModified();
+        otherStorage.getChunkStorage().dropChunks(storage.getEra());
+        ASAPInternalChunk otherChunk = otherStorage.getChunkStorage().getChunk(URI, storage.getEra());
+        otherChunk.addMessage(MESSAGE.getBytes());
+        otherChunk.setRecipients(rereadChunk.getRecipients());
+        Assert.assertTrue(metaFile.setLastModified(lastModified));
+        Assert.assertTrue(indexFile.setLastModified(indexLastModified));
+
+        Assert.assertNotSame(rereadChunk, chunkStorage.getChunk(URI, storage.getEra()));
+    }
+
+    private static File chunkFile(String testFolder, int era, final String extension) {
+        return new File(testFolder + "/" + era).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(extension);
+            }
+        })[0];
+    }
+
+    @Test
+    public void compressedChunks() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "compressedChunks");
+        ASAPEngineFS.useCompression(testFolder);
+        ASAPEngine storage = aliceEngine(testFolder);
+
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 100; i++) sb.append(MESSAGE);
+        String longMessage = sb.toString();
+        storage.add(URI, MESSAGE);
+        storage.add(URI, longMessage);
+        storage.add(URI, MESSAGE);
+
+        ASAPInternalChunk chunk = storage.getChunkStorage().getChunk(URI, storage.getEra());
+        long uncompressedLength = 2 * MESSAGE.length() + longMessage.length();
+        Assert.assertEquals(uncompressedLength, chunk.getLength());
+        File contentFile = new File(testFolder + "/" + storage.getEra()).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(ASAPInternalChunkFS.DATA_EXTENSION);
+            }
+        })[0];
+        Assert.assertTrue(contentFile.length() < uncompressedLength);
+
+        // offsets and stream as if messages were not compressed - that is what is sent
+        Assert.assertEquals(MESSAGE.length(), chunk.getOffsetList().get(0).longValue());
+        Assert.assertEquals(MESSAGE.length() + longMessage.length(), chunk.getOffsetList().get(1).longValue());
+        byte[] content = new byte[(int) uncompressedLength];
+        DataInputStream dis = new DataInputStream(chunk.getMessageInputStream());
+        dis.readFully(content);
+        Assert.assertEquals(-1, dis.read());
+        Assert.assertEquals(MESSAGE + longMessage + MESSAGE, new String(content));
+
+        // read by another storage
+        ASAPEngine otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        ASAPMessages messages = otherStorage.getChannel(URI).getMessages();
+        Assert.assertEquals(3, messages.size());
+        Assert.assertEquals(longMessage, messages.getMessageAsCharSequence(1, true));
+        ASAPInternalChunkFS chunkFS = (ASAPInternalChunkFS)
+                otherStorage.getChunkStorage().getChunk(URI, storage.getEra());
+        Assert.assertEquals(longMessage.length(), chunkFS.getMessageAsByteBuffer(1).remaining());
+    }
+
+    @Test
+    public void compressedChunkKeepsIncompressibleMessages() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "compressedChunkKeepsIncompressibleMessages");
+        ASAPEngineFS.useCompression(testFolder);
+        ASAPEngine storage = aliceEngine(testFolder);
+
+        // deflate would not shrink them - stored as they are
+        byte[] randomMessage = new byte[1000];
+        new Random(42).nextBytes(randomMessage);
+        storage.add(URI, MESSAGE);
+        storage.add(URI, randomMessage);
+        File contentFile = chunkFile(testFolder, storage.getEra(), ASAPInternalChunkFS.DATA_EXTENSION);
+        Assert.assertEquals(MESSAGE.length() + randomMessage.length, contentFile.length());
+
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 100; i++) sb.append(MESSAGE);
+        String longMessage = sb.toString();
+        storage.add(URI, longMessage);
+        long uncompressedLength = MESSAGE.length() + randomMessage.length + longMessage.length();
+        Assert.assertTrue(contentFile.length() < uncompressedLength);
+
+        // stored and deflated messages side by side
+        ASAPEngine otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        ASAPInternalChunk chunk = otherStorage.getChunkStorage().getChunk(URI, storage.getEra());
+        Assert.assertEquals(MESSAGE, new String(chunk.getMessage(0)));
+        Assert.assertArrayEquals(randomMessage, chunk.getMessage(1));
+        Assert.assertEquals(longMessage, new String(chunk.getMessage(2)));
+        Assert.assertArrayEquals(randomMessage, readStream(chunk.openMessageStream(1)));
+        Assert.assertEquals(longMessage, new String(readStream(chunk.openMessageStream(2))));
+
+        Iterator<byte[]> newestFirst = chunk.getMessages(false);
+        Assert.assertEquals(longMessage, new String(newestFirst.next()));
+        Assert.assertArrayEquals(randomMessage, newestFirst.next());
+        Assert.assertEquals(MESSAGE, new String(newestFirst.next()));
+
+        byte[] content = readStream(chunk.getMessageInputStream());
+        Assert.assertEquals(uncompressedLength, content.length);
+        Assert.assertEquals(longMessage, new String(content, MESSAGE.length() + randomMessage.length,
+                longMessage.length()));
+    }
+}
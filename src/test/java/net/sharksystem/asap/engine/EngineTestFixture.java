@@ -0,0 +1,58 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.fs.FSUtils;
+import net.sharksystem.utils.testsupport.TestConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Folders, engines and helpers shared by storage and engine tests.
+ */
+public class EngineTestFixture {
+    public static final String FORMAT = "TestFormat";
+    public static final String URI = "test/anURI";
+    public static final String MESSAGE = "testmessage";
+
+    /**
+     * @return empty folder for that test - below a folder of the test class
+     */
+    public static String testFolder(Class<?> testClass, String testName) {
+        String folder = TestConstants.ROOT_DIRECTORY + testClass.getSimpleName() + "/" + testName;
+        FSUtils.removeFolder(folder);
+        return folder;
+    }
+
+    /**
+     * @return engine owned by Alice in that folder
+     */
+    public static ASAPEngine aliceEngine(String folder) throws IOException, ASAPException {
+        return ASAPEngineFS.getASAPStorage(TestConstants.ALICE_NAME, folder, FORMAT);
+    }
+
+    public static ASAPEngine aliceEngineInMemory() throws IOException, ASAPException {
+        return ASAPEngineInMemory.getASAPEngine(TestConstants.ALICE_NAME, FORMAT);
+    }
+
+    public static byte[] readStream(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        try {
+            int read;
+            while((read = is.read(buffer)) != -1) baos.write(buffer, 0, read);
+        }
+        finally {
+            is.close();
+        }
+        return baos.toByteArray();
+    }
+
+    public static byte[] readBuffer(ByteBuffer buffer) {
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        return content;
+    }
+}
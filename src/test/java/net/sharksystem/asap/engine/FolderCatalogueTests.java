@@ -0,0 +1,43 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Eras and sender folders kept in memory.
+ */
+public class FolderCatalogueTests {
+    @Test
+    public void eraAndSenderCatalogue() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "eraAndSenderCatalogue");
+        ASAPEngine storage = aliceEngine(testFolder);
+        int firstEra = storage.getEra();
+        storage.add(URI, MESSAGE);
+        storage.newEra();
+        storage.add(URI, MESSAGE);
+
+        ASAPInternalChunkStorage chunkStorage = (ASAPInternalChunkStorage) storage.getChunkStorage();
+        Assert.assertEquals(2, chunkStorage.getEras().size());
+        storage.getIncomingStorage(TestConstants.BOB_NAME);
+        Assert.assertEquals(1, storage.getSender().size());
+
+        chunkStorage.dropChunks(firstEra);
+        Assert.assertFalse(chunkStorage.getEras().contains(firstEra));
+
+        // changes from outside in the same time resolution unit - folder modification time can stay the same
+        File rootFolder = new File(testFolder);
+        long lastModified = rootFolder.lastModified();
+        new File(testFolder + "/42").mkdirs();
+        new File(testFolder + "/" + TestConstants.CLARA_NAME).mkdirs();
+        Assert.assertTrue(rootFolder.setLastModified(lastModified));
+        Assert.assertTrue(chunkStorage.getEras().contains(42));
+        Assert.assertEquals(2, ASAPEngineFS.getExistingASAPEngineFS(testFolder).getSender().size());
+    }
+}
@@ -0,0 +1,41 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPChannel;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Engine that keeps chunks in memory.
+ */
+public class InMemoryEngineTests {
+    @Test
+    public void inMemoryStorage() throws IOException, ASAPException {
+        ASAPEngine storage = aliceEngineInMemory();
+
+        // same as removeChannel - without file system
+        storage.add(URI, MESSAGE);
+        storage.newEra();
+        storage.add(URI, MESSAGE);
+        storage.putExtra(URI, "key", "value");
+
+        ASAPChannel channel = storage.getChannel(URI);
+        Assert.assertEquals(2, channel.getMessages().size());
+        Assert.assertEquals(MESSAGE, channel.getMessages().getMessageAsCharSequence(1, true));
+        Assert.assertEquals("value", storage.getExtra(URI, "key"));
+
+        // received chunks are kept per sender
+        storage.getReceivedChunksStorage(TestConstants.BOB_NAME).getChunk(URI, 0).addMessage(MESSAGE.getBytes());
+        Assert.assertEquals(1, storage.getSender().size());
+        Assert.assertEquals(1,
+                storage.getReceivedChunksStorage(TestConstants.BOB_NAME).getASAPMessages(URI, 0, 0).size());
+
+        storage.removeChannel(URI);
+        Assert.assertEquals(0, channel.getMessages().size());
+    }
+}
@@ -0,0 +1,152 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.fs.FSUtils;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Engine memento in file system - written on change, read on change by others.
+ */
+public class MementoTests {
+    @Test
+    public void mementoWrittenOnlyWhenEngineStateChanges()
+            throws IOException, ASAPException, InterruptedException {
+        String testFolder = testFolder(getClass(), "mementoWrittenOnlyWhenEngineStateChanges");
+
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, "first");
+        long written = storage.lastMementoWritten;
+
+        // engine state does not change with second message - memento is not written
+        Thread.sleep(5);
+        storage.add(URI, "second");
+        Assert.assertEquals(written, storage.lastMementoWritten);
+
+        // content changed was written - other engine object starts a new era
+        int era = storage.getEra();
+        ASAPEngine otherStorage = aliceEngine(testFolder);
+        otherStorage.newEra();
+        Assert.assertEquals(storage.getNextEra(era), otherStorage.getEra());
+
+        // memento written before lastSeen entries were counted can still be read
+        FSUtils.removeFolder(testFolder);
+        new File(testFolder).mkdirs();
+        DataOutputStream dos = new DataOutputStream(
+                new FileOutputStream(testFolder + "/" + ASAPEngineFS.MEMENTO_FILENAME));
+        dos.writeLong(System.currentTimeMillis());
+        dos.writeUTF(TestConstants.ALICE_NAME);
+        dos.writeUTF(FORMAT);
+        dos.writeInt(7); // era
+        dos.writeInt(3); // oldest era
+        dos.writeBoolean(false);
+        dos.writeBoolean(false);
+        dos.writeBoolean(true);
+        dos.writeUTF(TestConstants.BOB_NAME);
+        dos.writeInt(5);
+        dos.close();
+
+        storage = aliceEngine(testFolder);
+        Assert.assertEquals(7, storage.getEra());
+        Assert.assertEquals(3, storage.getOldestEra());
+
+        // rewritten with counted lastSeen entries
+        storage = aliceEngine(testFolder);
+        Assert.assertEquals(7, storage.getEra());
+    }
+
+    @Test
+    public void pendingChangesMergedIntoNewerMemento() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "pendingChangesMergedIntoNewerMemento");
+
+        ASAPEngine storage = aliceEngine(testFolder);
+        ASAPEngine otherStorage = aliceEngine(testFolder);
+        otherStorage.add(URI, "first");
+
+        // last seen era is written later (like while sending chunks) - other engine starts a new era meanwhile
+        storage.lastSeen.put(TestConstants.BOB_NAME, 42);
+        storage.memento.saveLater(storage);
+        otherStorage.newEra();
+
+        // new era is kept, pending last seen era is added
+        storage.memento.flush(storage);
+        ASAPEngine thirdStorage = aliceEngine(testFolder);
+        Assert.assertEquals(otherStorage.getEra(), thirdStorage.getEra());
+        Assert.assertEquals(Integer.valueOf(42), thirdStorage.lastSeen.get(TestConstants.BOB_NAME));
+
+        // same when memento is restored before flush
+        storage.lastSeen.put(TestConstants.CLARA_NAME, 43);
+        storage.memento.saveLater(storage);
+        otherStorage.add(URI, "second");
+        otherStorage.newEra();
+        storage.add(URI, "third");
+        thirdStorage = aliceEngine(testFolder);
+        Assert.assertEquals(otherStorage.getEra(), thirdStorage.getEra());
+        Assert.assertEquals(Integer.valueOf(42), thirdStorage.lastSeen.get(TestConstants.BOB_NAME));
+        Assert.assertEquals(Integer.valueOf(43), thirdStorage.lastSeen.get(TestConstants.CLARA_NAME));
+    }
+
+    @Test
+    public void mementoChangedByOtherEngine() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "mementoChangedByOtherEngine");
+
+        // two engine objects on same folder - like two processes. Everything happens within milliseconds:
+        // memento file keeps its size and (maybe) its modification time.
+        ASAPEngine storage = aliceEngine(testFolder);
+        ASAPEngine otherStorage = aliceEngine(testFolder);
+
+        storage.add(URI, "first");
+        int era = storage.getEra();
+
+        // notices content change
+        otherStorage.newEra();
+        Assert.assertEquals(storage.getNextEra(era), otherStorage.getEra());
+
+        // notices new era
+        storage.add(URI, "second");
+        Assert.assertEquals(otherStorage.getEra(), storage.getEra());
+        Assert.assertEquals(2, storage.getChannel(URI).getMessages().size());
+
+        // second message changed content once - only one new era
+        otherStorage.newEra();
+        storage.newEra();
+        Assert.assertEquals(storage.getNextEra(storage.getNextEra(era)), storage.getEra());
+        Assert.assertEquals(storage.getEra(), otherStorage.getEra());
+    }
+
+    @Test
+    public void mementoChangedInSameMillisecond() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "mementoChangedInSameMillisecond");
+
+        ASAPEngine storage = aliceEngine(testFolder);
+        ASAPEngine otherStorage = aliceEngine(testFolder);
+        storage.add(URI, "first");
+        File mementoFile = new File(testFolder, ASAPEngineFS.MEMENTO_FILENAME);
+        long lastModified = mementoFile.lastModified();
+
+        // other engine writes a new era - same length, same time of writing, same modification time
+        otherStorage.newEra();
+        RandomAccessFile raf = new RandomAccessFile(mementoFile, "rw");
+        try {
+            raf.seek(4); // behind magic
+            raf.writeLong(storage.lastMementoWritten);
+        }
+        finally {
+            raf.close();
+        }
+        Assert.assertTrue(mementoFile.setLastModified(lastModified));
+
+        // change is not lost
+        storage.add(URI, "second");
+        Assert.assertEquals(otherStorage.getEra(), storage.getEra());
+    }
+}
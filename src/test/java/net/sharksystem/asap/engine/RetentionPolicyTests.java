@@ -0,0 +1,84 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPMessages;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Retention policy and era compaction.
+ */
+public class RetentionPolicyTests {
+    @Test
+    public void retentionPolicy() throws IOException, ASAPException, InterruptedException {
+        String testFolder = testFolder(getClass(), "retentionPolicy");
+        ASAPEngine storage = aliceEngine(testFolder);
+        int firstEra = storage.getEra();
+        for(int i = 0; i < 4; i++) {
+            storage.add(URI, MESSAGE + i);
+            storage.newEra();
+        }
+        storage.add(URI, MESSAGE + 4);
+
+        // tiny chunks of older eras are merged - order is kept
+        ASAPRetentionPolicy keepAll = new ASAPRetentionPolicy(
+                ASAPRetentionPolicy.UNLIMITED, ASAPRetentionPolicy.UNLIMITED, ASAPRetentionPolicy.UNLIMITED);
+        storage.compact(keepAll);
+        Assert.assertEquals(firstEra, storage.getOldestEra());
+        Assert.assertEquals(4, storage.getChunkStorage().getChunk(URI, firstEra).getNumberMessage());
+        Assert.assertFalse(storage.getChunkStorage().existsChunk(URI, storage.getNextEra(firstEra)));
+        ASAPMessages messages = storage.getChannel(URI).getMessages();
+        Assert.assertEquals(5, messages.size());
+        for(int i = 0; i < 5; i++) {
+            Assert.assertEquals(MESSAGE + i, messages.getMessageAsCharSequence(i, true));
+        }
+
+        // keep two eras
+        storage.compact(new ASAPRetentionPolicy(2, ASAPRetentionPolicy.UNLIMITED, ASAPRetentionPolicy.UNLIMITED));
+        int previousEra = storage.getPreviousEra(storage.getEra());
+        Assert.assertEquals(previousEra, storage.getOldestEra());
+        Assert.assertFalse(new File(testFolder + "/" + firstEra).exists());
+        Assert.assertEquals(previousEra, ASAPEngineFS.getExistingASAPEngineFS(testFolder).getOldestEra());
+        Assert.assertEquals(1, storage.getChannel(URI).getMessages().size());
+
+        // with each new era in background - not more than current era
+        ASAPEngine inMemoryStorage = aliceEngineInMemory();
+        inMemoryStorage.setRetentionPolicy(new ASAPRetentionPolicy(ASAPRetentionPolicy.UNLIMITED,
+                MESSAGE.length(), ASAPRetentionPolicy.UNLIMITED), 0);
+        inMemoryStorage.add(URI, MESSAGE);
+        inMemoryStorage.newEra();
+        inMemoryStorage.add(URI, MESSAGE);
+        inMemoryStorage.newEra();
+        inMemoryStorage.waitForCompaction();
+        inMemoryStorage.add(URI, MESSAGE);
+        Assert.assertEquals(inMemoryStorage.getPreviousEra(inMemoryStorage.getEra()), inMemoryStorage.getOldestEra());
+        Assert.assertEquals(2, inMemoryStorage.getChannel(URI).getMessages().size());
+
+        // stopped
+        inMemoryStorage.setRetentionPolicy(null, 0);
+        inMemoryStorage.newEra();
+        inMemoryStorage.add(URI, MESSAGE);
+        Assert.assertEquals(3, inMemoryStorage.getChannel(URI).getMessages().size());
+
+        // new era is not blocked by writers and sessions - compaction waits till they are done
+        inMemoryStorage.setRetentionPolicy(new ASAPRetentionPolicy(1,
+                ASAPRetentionPolicy.UNLIMITED, ASAPRetentionPolicy.UNLIMITED), 0);
+        int oldestEra = inMemoryStorage.getOldestEra();
+        inMemoryStorage.getEraLock().readLock().lock();
+        try {
+            inMemoryStorage.newEra();
+            Thread.sleep(100);
+            Assert.assertEquals(oldestEra, inMemoryStorage.getOldestEra());
+        }
+        finally {
+            inMemoryStorage.getEraLock().readLock().unlock();
+        }
+        inMemoryStorage.waitForCompaction();
+        Assert.assertEquals(inMemoryStorage.getEra(), inMemoryStorage.getOldestEra());
+    }
+}
@@ -0,0 +1,131 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPEncounterConnectionType;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.protocol.ASAP_AssimilationPDU_1_0;
+import net.sharksystem.asap.protocol.ASAP_Interest_PDU_1_0;
+import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Routing received chunks to encountered peers.
+ */
+public class RoutingIndexTests {
+    @Test
+    public void routingIndex() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "routingIndex");
+
+        ASAPEngine alice = ASAPEngineFS.getASAPStorage(
+                TestConstants.ALICE_NAME, testFolder + "/alice", FORMAT);
+        ASAPEngine bob = ASAPEngineFS.getASAPStorage(
+                TestConstants.BOB_NAME, testFolder + "/bob", FORMAT);
+        alice.setSecurityAdministrator(new DefaultSecurityAdministrator());
+        bob.setSecurityAdministrator(new DefaultSecurityAdministrator());
+        ASAP_1_0 protocol = new ASAP_Modem_Impl();
+
+        alice.add("sn2://routed", "message");
+        alice.newEra();
+
+        // Bob meets Alice
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        alice.handleASAPInterest(this.interest(protocol, TestConstants.BOB_NAME), protocol,
+                TestConstants.BOB_NAME, os, ASAPEncounterConnectionType.UNKNOWN);
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) protocol.readPDU(is);
+        bob.handleASAPAssimilate(assimilationPDU, protocol, TestConstants.ALICE_NAME, is, null,
+                ASAPEncounterConnectionType.UNKNOWN, null);
+
+        // Clara meets Bob - chunk of Alice is routed
+        os = new ByteArrayOutputStream();
+        bob.handleASAPInterest(this.interest(protocol, TestConstants.CLARA_NAME), protocol,
+                TestConstants.CLARA_NAME, os, ASAPEncounterConnectionType.UNKNOWN);
+        assimilationPDU = (ASAP_AssimilationPDU_1_0) protocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertEquals(TestConstants.ALICE_NAME, assimilationPDU.getSender());
+        Assert.assertEquals("sn2://routed", assimilationPDU.getChannelUri());
+
+        // not sent back to originator
+        os = new ByteArrayOutputStream();
+        bob.handleASAPInterest(this.interest(protocol, TestConstants.ALICE_NAME), protocol,
+                TestConstants.ALICE_NAME, os, ASAPEncounterConnectionType.UNKNOWN);
+        Assert.assertEquals(0, os.size());
+
+        // dropped chunks are not routed - index is shared by engine objects on that folder
+        bob.getReceivedChunksStorage(TestConstants.ALICE_NAME).dropChunks(assimilationPDU.getEra());
+        ASAPEngine otherBob = ASAPEngineFS.getASAPStorage(
+                TestConstants.BOB_NAME, testFolder + "/bob", FORMAT);
+        otherBob.setSecurityAdministrator(new DefaultSecurityAdministrator());
+        os = new ByteArrayOutputStream();
+        otherBob.handleASAPInterest(this.interest(protocol, TestConstants.CLARA_NAME), protocol,
+                TestConstants.CLARA_NAME, os, ASAPEncounterConnectionType.UNKNOWN);
+        Assert.assertEquals(0, os.size());
+    }
+
+    @Test
+    public void storageChangedByOthers() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "storageChangedByOthers");
+
+        ASAPEngine alice = ASAPEngineFS.getASAPStorage(
+                TestConstants.ALICE_NAME, testFolder + "/alice", FORMAT);
+        ASAPEngine bob = ASAPEngineFS.getASAPStorage(
+                TestConstants.BOB_NAME, testFolder + "/bob", FORMAT);
+        alice.setSecurityAdministrator(new DefaultSecurityAdministrator());
+        bob.setSecurityAdministrator(new DefaultSecurityAdministrator());
+        ASAP_1_0 protocol = new ASAP_Modem_Impl();
+
+        alice.add("sn2://routed", "message");
+        alice.newEra();
+
+        // Bob meets Alice
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        alice.handleASAPInterest(this.interest(protocol, TestConstants.BOB_NAME), protocol,
+                TestConstants.BOB_NAME, os, ASAPEncounterConnectionType.UNKNOWN);
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) protocol.readPDU(is);
+        bob.handleASAPAssimilate(assimilationPDU, protocol, TestConstants.ALICE_NAME, is, null,
+                ASAPEncounterConnectionType.UNKNOWN, null);
+
+        // written long ago - attributes are trusted when index reads storage of Alice
+        File aliceStorage = new File(testFolder + "/bob/" + TestConstants.ALICE_NAME);
+        long longAgo = System.currentTimeMillis() - 60000;
+        new File(aliceStorage, ASAPEngineFS.MEMENTO_FILENAME).setLastModified(longAgo);
+        new File(aliceStorage, Integer.toString(assimilationPDU.getEra())).setLastModified(longAgo);
+        Assert.assertEquals(1, this.routedChunks(bob, protocol, TestConstants.CLARA_NAME));
+
+        // chunk stored by another process - not announced to index
+        bob.getReceivedChunksStorage(TestConstants.ALICE_NAME)
+                .getChunk("sn2://storedByOthers", assimilationPDU.getEra()).addMessage("message".getBytes());
+        Assert.assertEquals(2, this.routedChunks(bob, protocol, TestConstants.CLARA_NAME));
+    }
+
+    private int routedChunks(ASAPEngine engine, ASAP_1_0 protocol, String peer) throws IOException, ASAPException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        engine.handleASAPInterest(this.interest(protocol, peer), protocol,
+                peer, os, ASAPEncounterConnectionType.UNKNOWN);
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+        int number = 0;
+        while(is.available() > 0) {
+            ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) protocol.readPDU(is);
+            // skip messages
+            is.skip(assimilationPDU.getLength());
+            number++;
+        }
+        return number;
+    }
+
+    private ASAP_Interest_PDU_1_0 interest(ASAP_1_0 protocol, String sender) throws IOException, ASAPException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocol.interest(sender, null, FORMAT, null, -1, -1, os, false, false, true, null);
+        return (ASAP_Interest_PDU_1_0) protocol.readPDU(new ByteArrayInputStream(os.toByteArray()));
+    }
+}
@@ -0,0 +1,104 @@
+package net.sharksystem.asap.engine;
+
+import net.sharksystem.asap.ASAPChannel;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Chunks of an era in a single segment file.
+ */
+public class SegmentStoreTests {
+    @Test
+    public void segmentStore() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "segmentStore");
+        ASAPEngineFS.useSegmentStore(testFolder);
+        ASAPEngine storage = aliceEngine(testFolder);
+        int firstEra = storage.getEra();
+        storage.add(URI, MESSAGE);
+        storage.add(URI, MESSAGE);
+        storage.newEra();
+        storage.add(URI, MESSAGE);
+        storage.putExtra(URI, "key", "value");
+        storage.getChunkStorage().getChunk(URI, storage.getEra()).addRecipient(TestConstants.BOB_NAME);
+
+        // no folder for each era - a file for each era
+        Assert.assertFalse(new File(testFolder + "/" + firstEra).exists());
+        Assert.assertTrue(new File(testFolder + "/" + firstEra + ".asapSegment").exists());
+
+        ASAPChannel channel = storage.getChannel(URI);
+        Assert.assertEquals(3, channel.getMessages().size());
+        Assert.assertEquals(MESSAGE, channel.getMessages().getMessageAsCharSequence(2, true));
+
+        // read by another storage - with and without footer
+        ASAPEngine otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        Assert.assertEquals(3, otherStorage.getChannel(URI).getMessages().size());
+        storage.getChunkStorage().flush();
+        otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+        ASAPInternalChunk chunk = otherStorage.getChunkStorage().getChunk(URI, storage.getEra());
+        Assert.assertEquals(1, chunk.getNumberMessage());
+        Assert.assertEquals("value", chunk.getExtra("key"));
+        Assert.assertTrue(chunk.getRecipients().contains(TestConstants.BOB_NAME));
+
+        // received chunks are stored in segments as well
+        storage.getReceivedChunksStorage(TestConstants.BOB_NAME).getChunk(URI, 0).addMessage(MESSAGE.getBytes());
+        Assert.assertTrue(new File(testFolder + "/" + TestConstants.BOB_NAME + "/0.asapSegment").exists());
+        Assert.assertEquals(1,
+                storage.getReceivedChunksStorage(TestConstants.BOB_NAME).getASAPMessages(URI, 0, 0).size());
+
+        storage.getChunkStorage().dropChunks(firstEra);
+        Assert.assertFalse(new File(testFolder + "/" + firstEra + ".asapSegment").exists());
+        Assert.assertEquals(1, storage.getChannel(URI).getMessages().size());
+    }
+
+    @Test
+    public void segmentChunkMetaDataAreCopies() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "segmentChunkMetaDataAreCopies");
+        ASAPEngineFS.useSegmentStore(testFolder);
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, MESSAGE);
+        ASAPInternalChunk chunk = storage.getChunkStorage().getChunk(URI, storage.getEra());
+        chunk.addRecipient(TestConstants.BOB_NAME);
+        chunk.putExtra("key", "value");
+        chunk.deliveredTo(TestConstants.BOB_NAME);
+
+        // changing returned collections must not change the chunk behind the scenes
+        chunk.getRecipients().add(TestConstants.CLARA_NAME);
+        chunk.getExtraData().put("key", "otherValue");
+        chunk.getDeliveredTo().add(TestConstants.CLARA_NAME);
+
+        Assert.assertFalse(chunk.getRecipients().contains(TestConstants.CLARA_NAME));
+        Assert.assertEquals("value", chunk.getExtra("key"));
+        Assert.assertEquals(1, chunk.getDeliveredTo().size());
+    }
+
+    @Test
+    public void segmentMessageBuffers() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "segmentMessageBuffers");
+        ASAPEngineFS.useSegmentStore(testFolder);
+        ASAPEngine storage = aliceEngine(testFolder);
+        storage.add(URI, new byte[] {0, 1});
+        storage.add(URI, new byte[] {2});
+        ASAPInternalChunk chunk = storage.getChunkStorage().getChunk(URI, storage.getEra());
+        ByteBuffer first = chunk.getMessageBuffer(0);
+        Assert.assertArrayEquals(new byte[] {2}, readBuffer(chunk.getMessageBuffer(1)));
+
+        // appended after segment was mapped
+        storage.add(URI, new byte[] {3, 4, 5});
+        Assert.assertArrayEquals(new byte[] {3, 4, 5}, readBuffer(chunk.getMessageBuffer(2)));
+        Assert.assertArrayEquals(new byte[] {0, 1}, readBuffer(first));
+
+        // segment set up again
+        storage.getChunkStorage().dropChunks(storage.getEra());
+        storage.add(URI, new byte[] {6});
+        chunk = storage.getChunkStorage().getChunk(URI, storage.getEra());
+        Assert.assertArrayEquals(new byte[] {6}, readBuffer(chunk.getMessageBuffer(0)));
+    }
+}
@@ -1,5 +1,6 @@
 package net.sharksystem.asap.engine;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 
@@ -123,4 +124,54 @@ public class WhiteBoxTests {
 
         Assert.assertEquals(storage.getChannelURIs().get(0), uri);
     }
+
+    @Test
+    public void deduplicateReceivedContent() throws IOException, ASAPException {
+        String folder = "tests/deduplicateReceivedContent";
+        String uri = "test://anURI";
+        FSUtils.removeFolder(folder);
+
+        ASAPEngineFS.useContentDeduplication(folder);
+        ASAPEngineFS storage = (ASAPEngineFS) ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+
+        // same chunk routed by two peers
+        ASAPInternalChunk chunkViaBob = storage.getIncomingStorage("Bob").getChunkStorage().getChunk(uri, 0);
+        ASAPInternalChunk chunkViaClara = storage.getIncomingStorage("Clara").getChunkStorage().getChunk(uri, 0);
+        chunkViaBob.addMessage("message".getBytes());
+        chunkViaClara.addMessage("message".getBytes());
+        storage.chunkAssimilated(chunkViaBob);
+        storage.chunkAssimilated(chunkViaClara);
+
+        File contentStore = new File(folder, ASAPContentStore.CONTENT_STORE_FOLDER);
+        Assert.assertEquals(1, contentStore.listFiles().length);
+        Assert.assertEquals(2, storage.getSender().size());
+
+        // copy on write
+        chunkViaBob.addMessage("another message".getBytes());
+        Assert.assertEquals(1, chunkViaClara.getNumberMessage());
+        Assert.assertEquals("message", new String(chunkViaClara.getMessages().next()));
+        Assert.assertEquals(2, chunkViaBob.getNumberMessage());
+
+        // stored content is removed with last chunk referring to it
+        chunkViaClara.drop();
+        Assert.assertEquals(0, contentStore.listFiles().length);
+
+        // content is hashed while written - or read if written by another engine object: same stored content
+        chunkViaClara = storage.getIncomingStorage("Clara").getChunkStorage().getChunk(uri, 0);
+        chunkViaClara.addMessage("message".getBytes());
+        ASAPEngineFS otherStorage = (ASAPEngineFS) ASAPEngineFS.getExistingASAPEngineFS(folder);
+        otherStorage.chunkAssimilated(
+                otherStorage.getIncomingStorage("Clara").getChunkStorage().getChunk(uri, 0));
+        ASAPInternalChunk chunkViaDavid =
+                storage.getIncomingStorage("David").getChunkStorage().getChunk(uri, 0);
+        chunkViaDavid.addMessage("message".getBytes());
+        storage.chunkAssimilated(chunkViaDavid);
+        Assert.assertEquals(1, contentStore.listFiles().length);
+        Assert.assertEquals(3, ASAPContentStore.getLinkCount(contentStore.listFiles()[0]));
+
+        // removed with era as well
+        storage.getIncomingStorage("Clara").getChunkStorage().dropChunks(0);
+        storage.getIncomingStorage("David").getChunkStorage().dropChunks(0);
+        Assert.assertEquals(0, contentStore.listFiles().length);
+    }
 }
@@ -65,4 +65,39 @@ public class Point2Point2Test2 {
 
         aliceSimplePeer.stopEncounter(bobSimplePeer);
     }
+
+    @Test
+    public void point2pointInMemory() throws IOException, ASAPException, InterruptedException {
+        TestHelper.removeFolder(WORKING_SUB_DIRECTORY);
+
+        String appName = "shark/inMemoryExampleMessages";
+        String uri = "asapExample://uriExample";
+        byte[] message = "ASAP example message".getBytes(StandardCharsets.UTF_8);
+
+        String aliceDirectory = WORKING_SUB_DIRECTORY + "/" + TestConstants.ALICE_ID;
+        String bobDirectory = WORKING_SUB_DIRECTORY + "/" + TestConstants.BOB_ID;
+
+        Collection<CharSequence> formats = new ArrayList<>();
+        formats.add(appName);
+
+        ASAPTestPeerFS aliceSimplePeer = new ASAPTestPeerFS(TestConstants.ALICE_ID, aliceDirectory, formats, true);
+        ASAPTestPeerFS bobSimplePeer = new ASAPTestPeerFS(TestConstants.BOB_ID, bobDirectory, formats, true);
+        StoreReceivedMessages bobListener = new StoreReceivedMessages();
+        bobSimplePeer.addASAPMessageReceivedListener(appName, bobListener);
+
+        // message is stored before encounter - chunk is exchanged
+        aliceSimplePeer.sendASAPMessage(appName, uri, message);
+
+        aliceSimplePeer.startEncounter(TestHelper.getPortNumber(), bobSimplePeer);
+        Thread.sleep(500);
+
+        Assert.assertEquals(1, bobListener.messageList.size());
+        byte[] messageReceived = bobListener.messageList.get(0).getMessages().next();
+        Assert.assertTrue(Utils.compareArrays(messageReceived, message));
+
+        aliceSimplePeer.stopEncounter(bobSimplePeer);
+
+        // nothing but peer settings in file system
+        Assert.assertFalse(new java.io.File(bobDirectory + "/" + Utils.url2FileName(appName)).exists());
+    }
 }
@@ -0,0 +1,19 @@
+package net.sharksystem.asap.storage;
+
+import net.sharksystem.utils.testsupport.TestConstants;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.engine.ASAPEngine;
+import net.sharksystem.asap.engine.ASAPEngineInMemory;
+
+import java.io.IOException;
+
+/**
+ * Storage tests run against an engine that keeps everything in memory - must behave like one
+ * in file system.
+ */
+public class InMemoryStorageTests extends StorageTests {
+    @Override
+    protected ASAPEngine getStorage(String testFolder) throws IOException, ASAPException {
+        return ASAPEngineInMemory.getASAPEngine(TestConstants.ALICE_NAME, FORMAT);
+    }
+}
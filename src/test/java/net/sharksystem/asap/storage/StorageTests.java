@@ -24,14 +24,19 @@ public class StorageTests {
     static final String URI = "test/anURI";
     static final String MESSAGE = "testmessage";
 
+    /**
+     * @return storage owned by Alice - test folder is empty
+     */
+    protected ASAPEngine getStorage(String testFolder) throws IOException, ASAPException {
+        FSUtils.removeFolder(testFolder);
+        return ASAPEngineFS.getASAPStorage(TestConstants.ALICE_NAME, testFolder, FORMAT);
+    }
+
     @Test
     public void removeChannel() throws IOException, ASAPException {
         String testFolder = ALICEFOLDER_0;
 
-        FSUtils.removeFolder(testFolder);
-        ASAPEngine storage =
-                ASAPEngineFS.getASAPStorage(
-                        TestConstants.ALICE_NAME, testFolder, FORMAT);
+        ASAPEngine storage = this.getStorage(testFolder);
 
         // fill it
         storage.add(URI, MESSAGE);
@@ -60,9 +65,7 @@ public class StorageTests {
         byte[] aliceMessageContent2 = new byte[] {4};
         byte[] claraMessageContent2 = new byte[] {5};
 
-        FSUtils.removeFolder(testFolder);
-
-        ASAPEngineFS storage = (ASAPEngineFS) ASAPEngineFS.getASAPStorage(TestConstants.ALICE_NAME, testFolder, FORMAT);
+        ASAPEngine storage = this.getStorage(testFolder);
         storage.add(URI, aliceMessageContent1);
         storage.add(URI, aliceMessageContent2);
 
@@ -104,9 +107,7 @@ public class StorageTests {
 
         byte[] aliceMessageContent1 = new byte[] {0};
 
-        FSUtils.removeFolder(testFolder);
-
-        ASAPEngineFS storage = (ASAPEngineFS) ASAPEngineFS.getASAPStorage(TestConstants.ALICE_NAME, testFolder, FORMAT);
+        ASAPEngine storage = this.getStorage(testFolder);
         storage.add(URI, aliceMessageContent1);
         ASAPMessages messages = storage.getChannel(URI).getMessages(false);
 
@@ -130,9 +131,7 @@ public class StorageTests {
         byte[] aliceMessageContent1 = new byte[] {4};
         byte[] aliceMessageContent2 = new byte[] {5};
 
-        FSUtils.removeFolder(testFolder);
-
-        ASAPEngineFS storage = (ASAPEngineFS) ASAPEngineFS.getASAPStorage(TestConstants.ALICE_NAME, testFolder, FORMAT);
+        ASAPEngine storage = this.getStorage(testFolder);
         storage.add(URI, aliceMessageContent1);
         storage.add(URI, aliceMessageContent2);
 
@@ -178,9 +177,7 @@ public class StorageTests {
         byte[] claraMessageContent1 = new byte[] {4};
         byte[] claraMessageContent2 = new byte[] {5};
 
-        FSUtils.removeFolder(testFolder);
-
-        ASAPEngineFS storage = (ASAPEngineFS) ASAPEngineFS.getASAPStorage(TestConstants.ALICE_NAME, testFolder, FORMAT);
+        ASAPEngine storage = this.getStorage(testFolder);
         storage.add(URI, aliceMessageContent1);
         storage.add(URI, aliceMessageContent2);
 
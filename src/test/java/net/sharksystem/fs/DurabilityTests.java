@@ -0,0 +1,75 @@
+package net.sharksystem.fs;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.engine.ASAPEngine;
+import net.sharksystem.asap.engine.ASAPEngineFS;
+import net.sharksystem.utils.testsupport.TestConstants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Durability modes of file system storage.
+ */
+public class DurabilityTests {
+    @Test
+    public void durabilityModes() throws IOException, ASAPException {
+        String testFolder = testFolder(getClass(), "durabilityModes");
+
+        try {
+            for(Durability.Mode mode : Durability.Mode.values()) {
+                Durability.setMode(mode, 10);
+                FSUtils.removeFolder(testFolder);
+                ASAPEngine storage = aliceEngine(testFolder);
+                storage.add(URI, MESSAGE);
+                storage.putExtra(URI, "key", mode.toString());
+                Durability.sync();
+
+                ASAPEngine otherStorage = ASAPEngineFS.getExistingASAPEngineFS(testFolder);
+                Assert.assertEquals(TestConstants.ALICE_NAME, otherStorage.getOwner());
+                Assert.assertEquals(1, otherStorage.getChannel(URI).getMessages().size());
+                Assert.assertEquals(mode.toString(), otherStorage.getExtra(URI, "key"));
+
+                // no temporary files left
+                for(String fileName : new File(testFolder + "/" + storage.getEra()).list()) {
+                    Assert.assertFalse(fileName.endsWith(".tmp"));
+                }
+            }
+        }
+        finally {
+            Durability.setMode(Durability.Mode.NONE);
+        }
+    }
+
+    @Test
+    public void replaceFile() throws IOException {
+        String testFolder = testFolder(getClass(), "replaceFile");
+        new File(testFolder).mkdirs();
+        File file = new File(testFolder, "replaced");
+
+        try {
+            for(Durability.Mode mode : Durability.Mode.values()) {
+                Durability.setMode(mode, 10);
+                Durability.writeFile(file, "old content".getBytes());
+                Durability.writeFile(file, mode.toString().getBytes());
+                Assert.assertEquals(mode.toString(), new String(Files.readAllBytes(file.toPath())));
+                Assert.assertEquals(1, new File(testFolder).list().length);
+            }
+
+            // replaced files are synchronized with next periodic sync
+            Durability.setMode(Durability.Mode.PERIODIC_SYNC, 60000);
+            Durability.writeFile(file, "periodic".getBytes());
+            Assert.assertTrue(Durability.syncPending(file));
+            Durability.sync();
+            Assert.assertFalse(Durability.syncPending(file));
+        }
+        finally {
+            Durability.setMode(Durability.Mode.NONE);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package net.sharksystem.fs;
+
+import net.sharksystem.SharkException;
+import net.sharksystem.asap.utils.ASAPSerialization;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static net.sharksystem.asap.engine.EngineTestFixture.*;
+
+/**
+ * Key value pairs in a log file shared by several objects.
+ */
+public class ExtraDataFSTests {
+    @Test
+    public void extraDataLog() throws IOException, SharkException {
+        String testFolder = testFolder(getClass(), "extraDataLog");
+
+        // two objects on same file - like two processes
+        ExtraDataFS extraData = new ExtraDataFS(testFolder);
+        ExtraDataFS otherExtraData = new ExtraDataFS(testFolder);
+        File extraFile = new File(testFolder + "/" + ExtraDataFS.DEFAULT_FILE_NAME);
+
+        extraData.putExtra("key", "value");
+        otherExtraData.putExtra("number", 42);
+        Assert.assertEquals("value", otherExtraData.getExtraString("key"));
+        Assert.assertEquals(42, extraData.getExtraInteger("number"));
+
+        // one record appended - nothing else written
+        long length = extraFile.length();
+        extraData.putExtra("key", "changed");
+        Assert.assertTrue(extraFile.length() - length < 40);
+        Assert.assertEquals("changed", otherExtraData.getExtraString("key"));
+
+        // outdated records are removed
+        byte[] value = new byte[100];
+        for(int i = 0; i < 1000; i++) {
+            value[0] = (byte) i;
+            extraData.putExtra("often", value);
+        }
+        Assert.assertTrue(extraFile.length() < 20000);
+        Assert.assertEquals((byte) 999, otherExtraData.getExtra("often")[0]);
+        Assert.assertEquals(42, otherExtraData.getExtraInteger("number"));
+        Assert.assertEquals(42, new ExtraDataFS(testFolder).getExtraInteger("number"));
+
+        otherExtraData.removeAll();
+        try {
+            extraData.getExtra("key");
+            Assert.fail("all values were removed");
+        } catch (SharkException e) {
+            // expected
+        }
+
+        // file written before log was introduced
+        FileOutputStream fos = new FileOutputStream(extraFile);
+        ASAPSerialization.writeLongParameter(System.currentTimeMillis(), fos);
+        ASAPSerialization.writeNonNegativeIntegerParameter(1, fos);
+        ASAPSerialization.writeCharSequenceParameter("old", fos);
+        ASAPSerialization.writeByteArray(new byte[] {1, 2, 3}, fos);
+        fos.close();
+
+        ExtraDataFS oldExtraData = new ExtraDataFS(testFolder);
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, oldExtraData.getExtra("old"));
+        oldExtraData.putExtra("new", "value");
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, new ExtraDataFS(testFolder).getExtra("old"));
+        Assert.assertEquals("value", extraData.getExtraString("new"));
+    }
+
+    @Test
+    public void recordsAppendedWhileCompacting() throws IOException, SharkException {
+        try {
+            // log is overwritten or replaced
+            for(Durability.Mode mode : Durability.Mode.values()) {
+                Durability.setMode(mode, 10);
+                String testFolder = testFolder(getClass(), "recordsAppendedWhileCompacting_" + mode);
+                ExtraDataFS extraData = new ExtraDataFS(testFolder);
+                ExtraDataFS otherExtraData = new ExtraDataFS(testFolder);
+                extraData.putExtra("key", "value");
+                otherExtraData.getExtraString("key");
+
+                // appended after other object read the log - other object compacts without reading it first
+                extraData.putExtra("appended", "value");
+                otherExtraData.saveExtraData();
+
+                Assert.assertEquals("value", new ExtraDataFS(testFolder).getExtraString("appended"));
+                Assert.assertEquals("value", otherExtraData.getExtraString("appended"));
+                Assert.assertEquals("value", extraData.getExtraString("appended"));
+            }
+        }
+        finally {
+            Durability.setMode(Durability.Mode.NONE);
+        }
+    }
+}